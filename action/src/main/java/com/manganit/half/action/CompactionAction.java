@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.action;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.util.ToolRunner;
+
+import com.manganit.half.client.CompactionScheduler;
+import com.manganit.half.client.HBaseAdminClient;
+
+/**
+ * Oozie Java action compacting the HBase regions which need it, inside the
+ * time windows of {@link CompactionScheduler}.
+ * <p>
+ * The arguments are the table names, all the tables when none is given. The
+ * scheduler is configured through the {@code half.hbase.compaction.*}
+ * properties of the action configuration. The numbers of selected, compacted
+ * and failed regions are output to the Oozie context.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class CompactionAction extends HalfJavaAction {
+
+  public static void main(String[] args) throws Exception {
+    System.exit(ToolRunner.run(new CompactionAction(), args));
+  }
+
+  @Override
+  protected void doRun(String[] args) throws Exception {
+    try (HBaseAdminClient client = new HBaseAdminClient(getConf())) {
+      CompactionScheduler scheduler = new CompactionScheduler(client);
+      boolean finished = scheduler.run(Arrays.asList(args));
+      setOutputProperty("compaction.selected", String.valueOf(scheduler.getSelected()));
+      setOutputProperty("compaction.completed", String.valueOf(scheduler.getCompleted()));
+      setOutputProperty("compaction.failed", String.valueOf(scheduler.getFailed()));
+      setOutputProperty("compaction.finished", String.valueOf(finished));
+    }
+  }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import com.manganit.half.util.NamedThreadFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Asynchronous HBase client returning {@link CompletableFuture}s.
+ * <p>
+ * Requests run on a bounded pool over the shared connection of an
+ * {@link HBaseClient}, so one caller thread can keep many requests in flight.
+ * The number of outstanding requests is capped: once the limit is reached,
+ * submitting a new request blocks the caller until one completes.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class AsyncHBaseClient implements Closeable {
+
+  /**
+   * Maximum number of submitted but not completed requests
+   */
+  public static final String MAX_OUTSTANDING_KEY = "half.hbase.async.max.outstanding";
+  /**
+   * Number of threads executing the requests
+   */
+  public static final String THREADS_KEY = "half.hbase.async.threads";
+
+  public static final int DEFAULT_MAX_OUTSTANDING = 1000;
+  public static final int DEFAULT_THREADS = 32;
+
+  // padding of the closest row before a key, as in the HBase client
+  private static final byte[] MAX_BYTE_ARRAY = Bytes.createMaxByteArray(9);
+
+  /**
+   * A page of scanned rows
+   */
+  public static class ScanPage {
+
+    private final List<Result> results;
+    private final Scan nextScan;
+
+    ScanPage(List<Result> results, Scan nextScan) {
+      this.results = results;
+      this.nextScan = nextScan;
+    }
+
+    /**
+     * @return rows of this page
+     */
+    public List<Result> getResults() {
+      return results;
+    }
+
+    /**
+     * @return true when more rows may follow
+     */
+    public boolean hasNext() {
+      return nextScan != null;
+    }
+
+    /**
+     * @return Scan resuming after the last row of this page, null at the end
+     */
+    public Scan getNextScan() {
+      return nextScan;
+    }
+  }
+
+  /**
+   * Table operation run on a worker thread
+   */
+  private interface TableCall<T> {
+
+    T call(Table table) throws IOException;
+  }
+
+  private final HBaseClient client;
+  private final boolean ownClient;
+  private final ExecutorService executor;
+  private final Semaphore outstanding;
+
+  /**
+   *
+   * @param conf Configuration
+   */
+  public AsyncHBaseClient(Configuration conf) {
+    this(new HBaseClient(conf), true);
+  }
+
+  /**
+   * Share the connection of an existing client, which is not closed by {@link #close()}
+   *
+   * @param client HBaseClient
+   */
+  public AsyncHBaseClient(HBaseClient client) {
+    this(client, false);
+  }
+
+  private AsyncHBaseClient(HBaseClient client, boolean ownClient) {
+    this.client = client;
+    this.ownClient = ownClient;
+    Configuration conf = client.getConf();
+    this.outstanding = new Semaphore(conf.getInt(MAX_OUTSTANDING_KEY, DEFAULT_MAX_OUTSTANDING));
+    this.executor = Executors.newFixedThreadPool(conf.getInt(THREADS_KEY, DEFAULT_THREADS),
+            new NamedThreadFactory("AsyncHBaseClient-"));
+  }
+
+  /**
+   * @param tableName tableName
+   * @param get Get
+   * @return future Result, empty when the row does not exist
+   */
+  public CompletableFuture<Result> get(String tableName, final Get get) {
+    return submit(tableName, table -> table.get(get));
+  }
+
+  /**
+   * @param tableName tableName
+   * @param put Put
+   * @return future completed once the put is acknowledged
+   */
+  public CompletableFuture<Void> put(String tableName, final Put put) {
+    return submit(tableName, table -> {
+      table.put(put);
+      client.invalidate(table.getName(), put.getRow());
+      return null;
+    });
+  }
+
+  /**
+   * @param tableName tableName
+   * @param delete Delete
+   * @return future completed once the delete is acknowledged
+   */
+  public CompletableFuture<Void> delete(String tableName, final Delete delete) {
+    return submit(tableName, table -> {
+      table.delete(delete);
+      client.invalidate(table.getName(), delete.getRow());
+      return null;
+    });
+  }
+
+  /**
+   * @param tableName tableName
+   * @param increment Increment
+   * @return future Result holding the new counter values
+   */
+  public CompletableFuture<Result> increment(String tableName, final Increment increment) {
+    return submit(tableName, table -> {
+      Result result = table.increment(increment);
+      client.invalidate(table.getName(), increment.getRow());
+      return result;
+    });
+  }
+
+  /**
+   * Read one page of a scan
+   *
+   * @param tableName tableName
+   * @param scan Scan, forward or reversed, left unchanged; use {@link ScanPage#getNextScan()} to read the next page
+   * @param pageSize maximum number of rows of the page
+   * @return future ScanPage
+   */
+  public CompletableFuture<ScanPage> scanPage(String tableName, final Scan scan, final int pageSize) {
+    return submit(tableName, table -> {
+      // the caller's Scan is left untouched, it may be reused
+      Scan page = new Scan(scan);
+      page.setCaching(pageSize);
+      List<Result> results = new ArrayList<>(pageSize);
+      try (ResultScanner scanner = table.getScanner(page)) {
+        Result r;
+        while (results.size() < pageSize && (r = scanner.next()) != null) {
+          results.add(r);
+        }
+      }
+      Scan next = null;
+      if (results.size() == pageSize && pageSize > 0) {
+        next = new Scan(scan);
+        byte[] last = results.get(pageSize - 1).getRow();
+        next.setStartRow(scan.isReversed() ? closestRowBefore(last) : Bytes.add(last, new byte[]{0}));
+      }
+      return new ScanPage(Collections.unmodifiableList(results), next);
+    });
+  }
+
+  /**
+   * Start row of the next page of a reversed scan: the closest key before a
+   * row, as the HBase client computes it when it reopens a reversed scanner
+   *
+   * @param row last returned row
+   * @return a key sorting just before row
+   */
+  static byte[] closestRowBefore(byte[] row) {
+    if (row.length == 0) {
+      return HConstants.EMPTY_START_ROW;
+    }
+    if (row[row.length - 1] == 0) {
+      return Arrays.copyOf(row, row.length - 1);
+    }
+    byte[] before = Arrays.copyOf(row, row.length);
+    before[row.length - 1]--;
+    return Bytes.add(before, MAX_BYTE_ARRAY);
+  }
+
+  /**
+   * @return number of requests that can still be submitted without blocking
+   */
+  public int getAvailablePermits() {
+    return outstanding.availablePermits();
+  }
+
+  private <T> CompletableFuture<T> submit(String tableName, final TableCall<T> call) {
+    final TableName name = TableName.valueOf(tableName);
+    try {
+      outstanding.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      CompletableFuture<T> failed = new CompletableFuture<>();
+      failed.completeExceptionally(new InterruptedIOException("Interrupted while waiting for a request slot"));
+      return failed;
+    }
+    CompletableFuture<T> future;
+    try {
+      future = CompletableFuture.supplyAsync(() -> {
+        try (Table table = client.getConnection().getTable(name)) {
+          return call.call(table);
+        } catch (IOException e) {
+          throw new CompletionException(e);
+        }
+      }, executor);
+    } catch (RuntimeException e) {
+      outstanding.release();
+      throw e;
+    }
+    return future.whenComplete((r, t) -> outstanding.release());
+  }
+
+  /**
+   * Wait for the outstanding requests and release resources
+   *
+   * @throws IOException IOException
+   */
+  @Override
+  public void close() throws IOException {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    if (ownClient) {
+      client.close();
+    }
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Parser;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Decoders reading directly from the backing arrays of a {@link Cell}.
+ * <p>
+ * Strings are always decoded as UTF-8, whatever the platform charset.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class CellDecoders {
+
+  private CellDecoders() {
+  }
+
+  /**
+   * @param cell Cell
+   * @return row key as an UTF-8 string
+   */
+  public static String rowAsString(Cell cell) {
+    return Bytes.toString(cell.getRowArray(), cell.getRowOffset(), cell.getRowLength());
+  }
+
+  /**
+   * @param cell Cell
+   * @return family as an UTF-8 string
+   */
+  public static String familyAsString(Cell cell) {
+    return Bytes.toString(cell.getFamilyArray(), cell.getFamilyOffset(), cell.getFamilyLength());
+  }
+
+  /**
+   * @param cell Cell
+   * @return qualifier as an UTF-8 string
+   */
+  public static String qualifierAsString(Cell cell) {
+    return Bytes.toString(cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength());
+  }
+
+  /**
+   * @param cell Cell
+   * @return value as an UTF-8 string
+   */
+  public static String valueAsString(Cell cell) {
+    return Bytes.toString(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
+  }
+
+  /**
+   * @param cell Cell
+   * @return value as a long, as written by {@link Bytes#toBytes(long)} or an Increment
+   */
+  public static long valueAsLong(Cell cell) {
+    return Bytes.toLong(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
+  }
+
+  /**
+   * @param cell Cell
+   * @return value as a double, as written by {@link Bytes#toBytes(double)}
+   */
+  public static double valueAsDouble(Cell cell) {
+    return Bytes.toDouble(cell.getValueArray(), cell.getValueOffset());
+  }
+
+  /**
+   * @param cell Cell
+   * @return a copy of the value
+   */
+  public static byte[] valueAsBytes(Cell cell) {
+    int offset = cell.getValueOffset();
+    return Arrays.copyOfRange(cell.getValueArray(), offset, offset + cell.getValueLength());
+  }
+
+  /**
+   * @param <T> protobuf message type
+   * @param cell Cell
+   * @param parser protobuf message parser, e.g. {@code MyMessage.PARSER}
+   * @return value parsed as a protobuf message
+   * @throws InvalidProtocolBufferException InvalidProtocolBufferException
+   */
+  public static <T> T valueAs(Cell cell, Parser<T> parser) throws InvalidProtocolBufferException {
+    return parser.parseFrom(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
+  }
+
+  /**
+   * @param cell Cell
+   * @param family family
+   * @param qualifier qualifier
+   * @return true when the cell belongs to this column, without any copy
+   */
+  public static boolean isColumn(Cell cell, byte[] family, byte[] qualifier) {
+    return Bytes.equals(cell.getFamilyArray(), cell.getFamilyOffset(), cell.getFamilyLength(),
+            family, 0, family.length)
+            && Bytes.equals(cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength(),
+            qualifier, 0, qualifier.length);
+  }
+}
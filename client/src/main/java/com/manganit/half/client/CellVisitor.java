@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.Cell;
+
+/**
+ * Callback receiving the cells of a read without any copy.
+ * <p>
+ * The {@link Cell} exposes its backing arrays with offsets and lengths
+ * ({@code getRowArray()}, {@code getValueOffset()}...). It is only valid during
+ * the call: decode what is needed with {@link CellDecoders} or copy it.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public interface CellVisitor {
+
+  /**
+   * @param cell current cell, backed by the RPC buffer
+   * @throws IOException IOException
+   */
+  void visit(Cell cell) throws IOException;
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.ClusterStatus;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.RegionLoad;
+import org.apache.hadoop.hbase.ServerLoad;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.protobuf.generated.AdminProtos.GetRegionInfoResponse.CompactionState;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+
+/**
+ * Off-peak compaction scheduler.
+ * <p>
+ * Selects the regions holding too many store files or having lost their
+ * HDFS locality, then compacts them one region after the other, with at most
+ * a few running compactions per RegionServer, and only inside the configured
+ * time windows. Once the windows are closed no compaction is started, the run
+ * ends when the running ones are done. A requested compaction holds its slot
+ * until the region is seen compacting then idle, or has fewer store files or
+ * a restored locality, or the queued timeout expires. Disable the time based
+ * major compactions ({@code hbase.hregion.majorcompaction=0}) to leave them
+ * to the scheduler.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class CompactionScheduler {
+
+  private final static Logger logger = Logger.getLogger(CompactionScheduler.class);
+
+  /**
+   * A region is compacted from this number of store files
+   */
+  public static final String MIN_STOREFILES_KEY = "half.hbase.compaction.min.storefiles";
+  /**
+   * A region is compacted below this HDFS locality, between 0 and 1
+   */
+  public static final String MIN_LOCALITY_KEY = "half.hbase.compaction.min.locality";
+  /**
+   * Maximum number of running compactions per RegionServer
+   */
+  public static final String PER_SERVER_KEY = "half.hbase.compaction.per.server";
+  /**
+   * Time windows, e.g. "01:00-05:00,22:30-23:30", empty for always
+   */
+  public static final String WINDOWS_KEY = "half.hbase.compaction.windows";
+  /**
+   * Run major compactions instead of minor ones
+   */
+  public static final String MAJOR_KEY = "half.hbase.compaction.major";
+  /**
+   * Interval in milliseconds between two progress checks
+   */
+  public static final String POLL_INTERVAL_KEY = "half.hbase.compaction.poll.interval.ms";
+  /**
+   * Maximum run time in milliseconds, 0 for no limit
+   */
+  public static final String MAX_RUNTIME_KEY = "half.hbase.compaction.max.runtime.ms";
+  /**
+   * Time in milliseconds after which a requested compaction never seen
+   * running no longer holds its slot
+   */
+  public static final String QUEUED_TIMEOUT_KEY = "half.hbase.compaction.queued.timeout.ms";
+
+  public static final int DEFAULT_MIN_STOREFILES = 5;
+  public static final float DEFAULT_MIN_LOCALITY = 0.7f;
+  public static final int DEFAULT_PER_SERVER = 1;
+  public static final long DEFAULT_POLL_INTERVAL = 10000L;
+  public static final long DEFAULT_QUEUED_TIMEOUT = 30 * 60 * 1000L;
+
+  /**
+   * Daily time window, possibly wrapping around midnight
+   */
+  static class TimeWindow {
+
+    private final LocalTime start;
+    private final LocalTime end;
+
+    TimeWindow(LocalTime start, LocalTime end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    boolean contains(LocalTime time) {
+      if (start.isBefore(end)) {
+        return !time.isBefore(start) && time.isBefore(end);
+      }
+      return !time.isBefore(start) || time.isBefore(end);
+    }
+
+    /**
+     * @param spec comma separated "HH:mm-HH:mm" windows
+     * @return the windows, empty for always
+     */
+    static List<TimeWindow> parse(String spec) {
+      List<TimeWindow> windows = new ArrayList<>();
+      if (spec == null) {
+        return windows;
+      }
+      for (String window : spec.split(",")) {
+        window = window.trim();
+        if (window.isEmpty()) {
+          continue;
+        }
+        String[] bounds = window.split("-");
+        if (bounds.length != 2) {
+          throw new IllegalArgumentException("Invalid time window " + window);
+        }
+        windows.add(new TimeWindow(LocalTime.parse(bounds[0].trim()), LocalTime.parse(bounds[1].trim())));
+      }
+      return windows;
+    }
+
+    static boolean isOpen(List<TimeWindow> windows, LocalTime time) {
+      if (windows.isEmpty()) {
+        return true;
+      }
+      for (TimeWindow window : windows) {
+        if (window.contains(time)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Region selected for compaction, its server follows the region moves
+   */
+  static class Candidate {
+
+    final HRegionInfo region;
+    ServerName server;
+    final int storefiles;
+    final float locality;
+    boolean seenCompacting = false;
+    long requested;
+
+    Candidate(HRegionInfo region, ServerName server, int storefiles, float locality) {
+      this.region = region;
+      this.server = server;
+      this.storefiles = storefiles;
+      this.locality = locality;
+    }
+
+    @Override
+    public String toString() {
+      return region.getRegionNameAsString() + " on " + server.getServerName()
+              + " (" + storefiles + " store files, locality " + locality + ")";
+    }
+  }
+
+  private final Admin admin;
+  private final int minStorefiles;
+  private final float minLocality;
+  private final int perServer;
+  private final List<TimeWindow> windows;
+  private final boolean major;
+  private final long pollInterval;
+  private final long maxRuntime;
+  private final long queuedTimeout;
+  private int selected = 0;
+  private int completed = 0;
+  private int failed = 0;
+
+  /**
+   *
+   * @param client HBaseAdminClient
+   * @throws IOException IOException
+   */
+  public CompactionScheduler(HBaseAdminClient client) throws IOException {
+    this(client.getAdmin(), client.getConf());
+  }
+
+  /**
+   *
+   * @param admin Admin
+   * @param conf Configuration
+   */
+  public CompactionScheduler(Admin admin, Configuration conf) {
+    this.admin = admin;
+    this.minStorefiles = conf.getInt(MIN_STOREFILES_KEY, DEFAULT_MIN_STOREFILES);
+    this.minLocality = conf.getFloat(MIN_LOCALITY_KEY, DEFAULT_MIN_LOCALITY);
+    this.perServer = conf.getInt(PER_SERVER_KEY, DEFAULT_PER_SERVER);
+    this.windows = TimeWindow.parse(conf.get(WINDOWS_KEY, ""));
+    this.major = conf.getBoolean(MAJOR_KEY, true);
+    this.pollInterval = conf.getLong(POLL_INTERVAL_KEY, DEFAULT_POLL_INTERVAL);
+    this.maxRuntime = conf.getLong(MAX_RUNTIME_KEY, 0L);
+    this.queuedTimeout = conf.getLong(QUEUED_TIMEOUT_KEY, DEFAULT_QUEUED_TIMEOUT);
+  }
+
+  /**
+   * @return number of regions selected by the last run
+   */
+  public synchronized int getSelected() {
+    return selected;
+  }
+
+  /**
+   * @return number of compactions completed by the last run
+   */
+  public synchronized int getCompleted() {
+    return completed;
+  }
+
+  /**
+   * @return number of compactions which could not be started
+   */
+  public synchronized int getFailed() {
+    return failed;
+  }
+
+  /**
+   * Compact the regions of some tables which need it
+   *
+   * @param tableNames table Names, all the tables when empty
+   * @return true if all the selected regions were compacted, false when the
+   * maximum run time was reached or the time windows closed first
+   * @throws IOException IOException
+   */
+  public boolean run(Collection<String> tableNames) throws IOException {
+    long deadline = maxRuntime > 0 ? System.currentTimeMillis() + maxRuntime : Long.MAX_VALUE;
+    LinkedList<Candidate> pending = select(tableNames);
+    synchronized (this) {
+      selected = pending.size();
+      completed = 0;
+      failed = 0;
+    }
+    logger.info("Selected " + pending.size() + " regions to compact");
+    List<Candidate> running = new ArrayList<>();
+    while (!pending.isEmpty() || !running.isEmpty()) {
+      if (System.currentTimeMillis() > deadline) {
+        logger.warn("Compaction run time exceeded, " + pending.size() + " regions left");
+        return false;
+      }
+      // the regions may have moved since the selection or the last poll
+      ClusterStatus status = admin.getClusterStatus();
+      Map<byte[], ServerName> servers = regionServers(status);
+      relocate(running, servers);
+      relocate(pending, servers);
+      // collect the finished compactions
+      Map<byte[], RegionLoad> loads = running.isEmpty() ? null : regionLoads(status);
+      for (Iterator<Candidate> it = running.iterator(); it.hasNext();) {
+        Candidate c = it.next();
+        if (isDone(c, loads.get(c.region.getRegionName()), compactionState(c))) {
+          it.remove();
+          synchronized (this) {
+            completed++;
+          }
+          logger.info("Compacted " + c);
+        } else if (isExpired(c, System.currentTimeMillis())) {
+          it.remove();
+          logger.warn("Compaction of " + c + " still not started, releasing its slot");
+        }
+      }
+      boolean open = TimeWindow.isOpen(windows, LocalTime.now());
+      if (!open && !pending.isEmpty() && running.isEmpty()) {
+        logger.info("Compaction windows closed, " + pending.size() + " regions left");
+        return false;
+      }
+      // start new compactions on the servers with a free slot
+      if (open) {
+        for (Iterator<Candidate> it = pending.iterator(); it.hasNext();) {
+          Candidate c = it.next();
+          if (!hasFreeSlot(c.server, running)) {
+            continue;
+          }
+          it.remove();
+          try {
+            if (major) {
+              admin.majorCompactRegion(c.region.getRegionName());
+            } else {
+              admin.compactRegion(c.region.getRegionName());
+            }
+            c.requested = System.currentTimeMillis();
+            running.add(c);
+            logger.info("Compacting " + c);
+          } catch (IOException e) {
+            synchronized (this) {
+              failed++;
+            }
+            logger.warn("Cannot compact " + c, e);
+          }
+        }
+      }
+      logger.info(String.format("Compaction progress: %d/%d done, %d running, %d pending",
+              getCompleted(), getSelected(), running.size(), pending.size()));
+      if (!pending.isEmpty() || !running.isEmpty()) {
+        try {
+          TimeUnit.MILLISECONDS.sleep(pollInterval);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted compaction scheduler");
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The compaction request is queued on the RegionServer, so a region looks
+   * idle until the compaction starts: it is done once it was seen compacting,
+   * or when its load shows fewer store files or a restored locality, a
+   * compaction faster than the poll interval being never seen running
+   *
+   * @param c requested compaction, marked when seen compacting
+   * @param load current load of the region, null when it is not hosted
+   * @param state current compaction state of the region, null when the region
+   * moved, split or closed
+   * @return true if the compaction is done or moot
+   */
+  boolean isDone(Candidate c, RegionLoad load, CompactionState state) {
+    if (state == null) {
+      return true;
+    }
+    if (state != CompactionState.NONE) {
+      c.seenCompacting = true;
+      return false;
+    }
+    if (c.seenCompacting || load == null) {
+      return true;
+    }
+    return load.getStorefiles() < c.storefiles
+            || (c.locality < minLocality && load.getDataLocality() >= minLocality);
+  }
+
+  /**
+   * @param c requested compaction
+   * @param now current time in milliseconds
+   * @return true if the compaction was never seen running within the queued
+   * timeout and no longer holds its slot
+   */
+  boolean isExpired(Candidate c, long now) {
+    return !c.seenCompacting && now - c.requested > queuedTimeout;
+  }
+
+  /**
+   * @param server RegionServer
+   * @param running running compactions, on their current servers
+   * @return true if the server runs fewer compactions than allowed
+   */
+  boolean hasFreeSlot(ServerName server, Collection<Candidate> running) {
+    int count = 0;
+    for (Candidate c : running) {
+      if (c.server.equals(server)) {
+        count++;
+      }
+    }
+    return count < perServer;
+  }
+
+  /**
+   * Move the candidates to the current server of their region, the ones not
+   * hosted right now keep their last server
+   *
+   * @param candidates candidates
+   * @param servers RegionServer by region name
+   */
+  static void relocate(Collection<Candidate> candidates, Map<byte[], ServerName> servers) {
+    for (Candidate c : candidates) {
+      ServerName server = servers.get(c.region.getRegionName());
+      if (server != null) {
+        c.server = server;
+      }
+    }
+  }
+
+  /**
+   * @return compaction state of the region, null when it moved, split or closed
+   */
+  private CompactionState compactionState(Candidate c) {
+    try {
+      return admin.getCompactionStateForRegion(c.region.getRegionName());
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return load of the regions of all the RegionServers by region name
+   */
+  private static Map<byte[], RegionLoad> regionLoads(ClusterStatus status) {
+    Map<byte[], RegionLoad> loads = new TreeMap<>(Bytes.BYTES_COMPARATOR);
+    for (ServerName server : status.getServers()) {
+      ServerLoad load = status.getLoad(server);
+      if (load != null) {
+        loads.putAll(load.getRegionsLoad());
+      }
+    }
+    return loads;
+  }
+
+  /**
+   * @return RegionServer of the regions by region name
+   */
+  private static Map<byte[], ServerName> regionServers(ClusterStatus status) {
+    Map<byte[], ServerName> servers = new TreeMap<>(Bytes.BYTES_COMPARATOR);
+    for (ServerName server : status.getServers()) {
+      ServerLoad load = status.getLoad(server);
+      if (load != null) {
+        for (byte[] region : load.getRegionsLoad().keySet()) {
+          servers.put(region, server);
+        }
+      }
+    }
+    return servers;
+  }
+
+  /**
+   * Select the regions holding too many store files or with a poor locality,
+   * the ones with the most store files first
+   */
+  private LinkedList<Candidate> select(Collection<String> tableNames) throws IOException {
+    Set<TableName> tables = new HashSet<>();
+    for (String tableName : tableNames) {
+      tables.add(TableName.valueOf(tableName));
+    }
+    Map<byte[], HRegionInfo> regions = new TreeMap<>(Bytes.BYTES_COMPARATOR);
+    for (TableName table : tables.isEmpty() ? Arrays.asList(admin.listTableNames()) : tables) {
+      for (HRegionInfo hri : admin.getTableRegions(table)) {
+        regions.put(hri.getRegionName(), hri);
+      }
+    }
+    List<Candidate> candidates = new ArrayList<>();
+    ClusterStatus status = admin.getClusterStatus();
+    for (ServerName server : status.getServers()) {
+      ServerLoad load = status.getLoad(server);
+      if (load == null) {
+        continue;
+      }
+      for (Map.Entry<byte[], RegionLoad> e : load.getRegionsLoad().entrySet()) {
+        HRegionInfo hri = regions.get(e.getKey());
+        RegionLoad rl = e.getValue();
+        if (hri != null && (rl.getStorefiles() >= minStorefiles
+                || (rl.getStorefiles() > 0 && rl.getDataLocality() < minLocality))) {
+          candidates.add(new Candidate(hri, server, rl.getStorefiles(), rl.getDataLocality()));
+        }
+      }
+    }
+    candidates.sort((a, b) -> Integer.compare(b.storefiles, a.storefiles));
+    return new LinkedList<>(candidates);
+  }
+}
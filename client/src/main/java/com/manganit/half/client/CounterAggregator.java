@@ -0,0 +1,310 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import com.manganit.half.util.NamedThreadFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+
+/**
+ * Coalesces counter increments in memory and flushes them as batched
+ * {@link Increment}s.
+ * <p>
+ * Deltas are accumulated per (row, family, qualifier) in a concurrent map of
+ * atomic counters, without locks on the increment path. Pending deltas are
+ * sent at least every flush interval, when too many distinct counters are
+ * pending, and on {@link #close()}. Deltas of a failed increment are put back
+ * and retried on the next flush.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class CounterAggregator implements Closeable {
+
+  private final static Logger logger = Logger.getLogger(CounterAggregator.class);
+
+  /**
+   * Maximum staleness of a pending delta in milliseconds
+   */
+  public static final String FLUSH_INTERVAL_KEY = "half.hbase.counters.flush.interval.ms";
+  /**
+   * Number of distinct pending counters triggering a flush
+   */
+  public static final String MAX_PENDING_KEY = "half.hbase.counters.max.pending";
+
+  public static final long DEFAULT_FLUSH_INTERVAL = 1000L;
+  public static final int DEFAULT_MAX_PENDING = 100000;
+
+  // marks a counter drained by the flusher, writers must use a fresh one
+  private static final long DRAINED = Long.MIN_VALUE;
+
+  private final HBaseClient client;
+  private final TableName tableName;
+  private final int maxPending;
+  private final ConcurrentHashMap<CounterKey, AtomicLong> counters = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService flusher;
+  // at most one size triggered flush queued at a time
+  private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+  private volatile boolean closed = false;
+
+  /**
+   *
+   * @param client owning client
+   * @param tableName table Name
+   * @param flushInterval maximum staleness in milliseconds
+   * @param maxPending number of distinct pending counters triggering a flush
+   */
+  CounterAggregator(HBaseClient client, TableName tableName, long flushInterval, int maxPending) {
+    this.client = client;
+    this.tableName = tableName;
+    this.maxPending = maxPending;
+    this.flusher = Executors.newSingleThreadScheduledExecutor(
+            new NamedThreadFactory("CounterAggregator-" + tableName.getNameAsString() + "-"));
+    flusher.scheduleWithFixedDelay(() -> {
+      try {
+        flush();
+      } catch (Exception e) {
+        logger.warn("Periodic counter flush of " + tableName + " failed", e);
+      }
+    }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Add a delta to a counter
+   *
+   * @param row row key
+   * @param family family
+   * @param qualifier qualifier
+   * @param delta amount to add
+   * @throws IOException IOException
+   */
+  public void increment(byte[] row, byte[] family, byte[] qualifier, long delta) throws IOException {
+    if (closed) {
+      throw new IOException("Counter aggregator on " + tableName + " is closed");
+    }
+    add(new CounterKey(row, family, qualifier), delta);
+    if (counters.size() >= maxPending && flushScheduled.compareAndSet(false, true)) {
+      try {
+        flusher.execute(this::flushQuietly);
+      } catch (RejectedExecutionException e) {
+        // closing, close() flushes the pending deltas
+        flushScheduled.set(false);
+      }
+    }
+  }
+
+  /**
+   * @param row row key
+   * @param family family
+   * @param qualifier qualifier
+   * @throws IOException IOException
+   */
+  public void increment(byte[] row, byte[] family, byte[] qualifier) throws IOException {
+    increment(row, family, qualifier, 1L);
+  }
+
+  private void add(CounterKey key, long delta) {
+    for (;;) {
+      AtomicLong counter = counters.computeIfAbsent(key, k -> new AtomicLong());
+      long current = counter.get();
+      while (current != DRAINED) {
+        if (counter.compareAndSet(current, current + delta)) {
+          return;
+        }
+        current = counter.get();
+      }
+      counters.remove(key, counter);
+    }
+  }
+
+  /**
+   * @return number of distinct counters with pending deltas
+   */
+  public int getPendingCount() {
+    return counters.size();
+  }
+
+  /**
+   * Send all pending deltas, one Increment per row
+   *
+   * @throws IOException IOException
+   */
+  public synchronized void flush() throws IOException {
+    Map<CounterKey, Long> drained = new LinkedHashMap<>();
+    for (Map.Entry<CounterKey, AtomicLong> e : counters.entrySet()) {
+      long delta = e.getValue().getAndSet(DRAINED);
+      counters.remove(e.getKey(), e.getValue());
+      if (delta != 0 && delta != DRAINED) {
+        drained.put(e.getKey(), delta);
+      }
+    }
+    if (drained.isEmpty()) {
+      return;
+    }
+    Map<RowKey, Increment> byRow = new LinkedHashMap<>();
+    for (Map.Entry<CounterKey, Long> e : drained.entrySet()) {
+      CounterKey key = e.getKey();
+      RowKey row = new RowKey(key.row);
+      Increment increment = byRow.get(row);
+      if (increment == null) {
+        increment = new Increment(key.row);
+        byRow.put(row, increment);
+      }
+      increment.addColumn(key.family, key.qualifier, e.getValue());
+    }
+    List<Row> actions = new ArrayList<Row>(byRow.values());
+    Object[] results = new Object[actions.size()];
+    try (Table table = client.getConnection().getTable(tableName)) {
+      table.batch(actions, results);
+    } catch (InterruptedException e) {
+      restoreFailed(actions, results);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted counter flush of " + tableName);
+    } catch (IOException e) {
+      restoreFailed(actions, results);
+      throw e;
+    }
+    for (Row action : actions) {
+      client.invalidate(tableName, action.getRow());
+    }
+  }
+
+  /**
+   * Put back the deltas of the increments without a successful result
+   */
+  private void restoreFailed(List<Row> actions, Object[] results) {
+    for (int i = 0; i < actions.size(); i++) {
+      if (results[i] == null || results[i] instanceof Throwable) {
+        Increment increment = (Increment) actions.get(i);
+        for (Map.Entry<byte[], NavigableMap<byte[], Long>> family : increment.getFamilyMapOfLongs().entrySet()) {
+          for (Map.Entry<byte[], Long> column : family.getValue().entrySet()) {
+            add(new CounterKey(increment.getRow(), family.getKey(), column.getKey()), column.getValue());
+          }
+        }
+      }
+    }
+  }
+
+  private void flushQuietly() {
+    flushScheduled.set(false);
+    try {
+      flush();
+    } catch (Exception e) {
+      logger.warn("Counter flush of " + tableName + " failed", e);
+    }
+  }
+
+  /**
+   * Flush the pending deltas and stop the periodic flush
+   *
+   * @throws IOException IOException
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    flusher.shutdown();
+    try {
+      flusher.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+  }
+
+  /**
+   * Row key with value semantics
+   */
+  private static class RowKey {
+
+    private final byte[] row;
+    private final int hash;
+
+    RowKey(byte[] row) {
+      this.row = row;
+      this.hash = Bytes.hashCode(row);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof RowKey && Bytes.equals(row, ((RowKey) o).row);
+    }
+  }
+
+  /**
+   * Row, family and qualifier of a counter
+   */
+  private static class CounterKey {
+
+    private final byte[] row;
+    private final byte[] family;
+    private final byte[] qualifier;
+    private final int hash;
+
+    CounterKey(byte[] row, byte[] family, byte[] qualifier) {
+      this.row = row;
+      this.family = family;
+      this.qualifier = qualifier;
+      this.hash = 31 * (31 * Arrays.hashCode(row) + Arrays.hashCode(family)) + Arrays.hashCode(qualifier);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof CounterKey)) {
+        return false;
+      }
+      CounterKey other = (CounterKey) o;
+      return Arrays.equals(row, other.row) && Arrays.equals(family, other.family)
+              && Arrays.equals(qualifier, other.qualifier);
+    }
+  }
+}
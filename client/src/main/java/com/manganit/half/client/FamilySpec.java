@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.io.compress.Compression;
+import org.apache.hadoop.hbase.io.encoding.DataBlockEncoding;
+import org.apache.hadoop.hbase.regionserver.BloomType;
+
+/**
+ * Storage settings of a column family, the settings left unset keep the
+ * HBase defaults.
+ * <pre>
+ * FamilySpec d = new FamilySpec("d")
+ *         .compression(Compression.Algorithm.SNAPPY)
+ *         .encoding(DataBlockEncoding.FAST_DIFF)
+ *         .bloom(BloomType.ROW)
+ *         .ttl(30 * 24 * 3600);
+ * </pre>
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class FamilySpec {
+
+  private final String name;
+  private Compression.Algorithm compression = null;
+  private DataBlockEncoding encoding = null;
+  private BloomType bloom = null;
+  private int blockSize = -1;
+  private int ttl = -1;
+  private int maxVersions = -1;
+  private Boolean inMemory = null;
+
+  /**
+   *
+   * @param name family name
+   */
+  public FamilySpec(String name) {
+    this.name = name;
+  }
+
+  /**
+   * @return family name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @param compression HFile compression
+   * @return this
+   */
+  public FamilySpec compression(Compression.Algorithm compression) {
+    this.compression = compression;
+    return this;
+  }
+
+  /**
+   * @param encoding data block encoding
+   * @return this
+   */
+  public FamilySpec encoding(DataBlockEncoding encoding) {
+    this.encoding = encoding;
+    return this;
+  }
+
+  /**
+   * @param bloom bloom filter type
+   * @return this
+   */
+  public FamilySpec bloom(BloomType bloom) {
+    this.bloom = bloom;
+    return this;
+  }
+
+  /**
+   * @param blockSize HFile block size in bytes
+   * @return this
+   */
+  public FamilySpec blockSize(int blockSize) {
+    this.blockSize = blockSize;
+    return this;
+  }
+
+  /**
+   * @param ttl time to live in seconds
+   * @return this
+   */
+  public FamilySpec ttl(int ttl) {
+    this.ttl = ttl;
+    return this;
+  }
+
+  /**
+   * @param maxVersions number of versions kept
+   * @return this
+   */
+  public FamilySpec maxVersions(int maxVersions) {
+    this.maxVersions = maxVersions;
+    return this;
+  }
+
+  /**
+   * @param inMemory give the blocks priority in the block cache
+   * @return this
+   */
+  public FamilySpec inMemory(boolean inMemory) {
+    this.inMemory = inMemory;
+    return this;
+  }
+
+  /**
+   * @return a new HColumnDescriptor
+   */
+  public HColumnDescriptor toDescriptor() {
+    return applyTo(new HColumnDescriptor(name));
+  }
+
+  /**
+   * Apply the settings set here to a descriptor
+   *
+   * @param hcd HColumnDescriptor
+   * @return hcd
+   */
+  public HColumnDescriptor applyTo(HColumnDescriptor hcd) {
+    if (compression != null) {
+      hcd.setCompressionType(compression);
+    }
+    if (encoding != null) {
+      hcd.setDataBlockEncoding(encoding);
+    }
+    if (bloom != null) {
+      hcd.setBloomFilterType(bloom);
+    }
+    if (blockSize > 0) {
+      hcd.setBlocksize(blockSize);
+    }
+    if (ttl > 0) {
+      hcd.setTimeToLive(ttl);
+    }
+    if (maxVersions > 0) {
+      hcd.setMaxVersions(maxVersions);
+    }
+    if (inMemory != null) {
+      hcd.setInMemory(inMemory);
+    }
+    return hcd;
+  }
+}
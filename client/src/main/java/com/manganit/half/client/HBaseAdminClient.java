@@ -16,23 +16,66 @@
 
 package com.manganit.half.client;
 
+import com.manganit.half.util.NamedThreadFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.DoNotRetryIOException;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.MasterNotRunningException;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.TableNotFoundException;
 import org.apache.hadoop.hbase.ZooKeeperConnectionException;
-import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.ConnectionFactory;
 
 /**
+ * HBase administration client.
+ * <p>
+ * A single Connection and Admin are created on first use and reused by all
+ * the calls, call {@link #close()} to release them. The batch operations
+ * submit the master procedures of many tables at once and wait for them
+ * together.
  *
  * @author Damien Claveau
- * 
+ *
  */
 
-public class HBaseAdminClient {
+public class HBaseAdminClient implements Closeable {
+
+  /**
+   * Number of concurrent DDL requests of the batch operations
+   */
+  public static final String THREADS_KEY = "half.hbase.admin.threads";
+  /**
+   * Maximum time in milliseconds a batch operation waits for its tables
+   */
+  public static final String DDL_TIMEOUT_KEY = "half.hbase.admin.ddl.timeout.ms";
+
+  public static final int DEFAULT_THREADS = 16;
+  public static final long DEFAULT_DDL_TIMEOUT = 10L * 60 * 1000;
 
   private Configuration conf = null;
+  private Connection connection = null;
+  private final boolean ownConnection;
+  private Admin admin = null;
 
   /**
    * Default Initialization
@@ -47,6 +90,73 @@ public class HBaseAdminClient {
    */
   public HBaseAdminClient(Configuration conf) {
     this.conf = conf;
+    this.ownConnection = true;
+  }
+
+  /**
+   * Share an existing connection, which is not closed by {@link #close()}
+   *
+   * @param connection Connection
+   */
+  public HBaseAdminClient(Connection connection) {
+    this.conf = connection.getConfiguration();
+    this.connection = connection;
+    this.ownConnection = false;
+  }
+
+  /**
+   * Get the Configuration
+   *
+   * @return Configuration
+   */
+  public Configuration getConf() {
+    return conf;
+  }
+
+  /**
+   * Get the shared connection, created on first call
+   *
+   * @return Connection
+   * @throws IOException IOException
+   */
+  public synchronized Connection getConnection() throws IOException {
+    if (connection == null) {
+      connection = ConnectionFactory.createConnection(conf);
+    }
+    return connection;
+  }
+
+  /**
+   * Get the shared Admin, created on first call and closed by {@link #close()}
+   *
+   * @return Admin
+   * @throws IOException IOException
+   */
+  public synchronized Admin getAdmin() throws IOException {
+    if (admin == null) {
+      admin = getConnection().getAdmin();
+    }
+    return admin;
+  }
+
+  /**
+   * Close the Admin, and the connection if it is owned by this client
+   *
+   * @throws IOException IOException
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      if (admin != null) {
+        admin.close();
+        admin = null;
+      }
+    } finally {
+      if (ownConnection && connection != null) {
+        connection.close();
+        connection = null;
+      }
+    }
   }
 
   /**
@@ -57,8 +167,8 @@ public class HBaseAdminClient {
    */
   public void printTables(String regex)
           throws Exception {
-    HBaseAdmin admin = new HBaseAdmin(conf);
-    // Getting all the list of tables using HBaseAdmin object
+    Admin admin = getAdmin();
+    // Getting all the list of tables using the Admin
     HTableDescriptor[] tableDescriptor = admin.listTables(regex);
     // printing all the table names.
     for (HTableDescriptor tableDescriptor1 : tableDescriptor) {
@@ -75,11 +185,11 @@ public class HBaseAdminClient {
    */
   public void creatTable(String tableName, String[] familys)
           throws Exception {
-    HBaseAdmin admin = new HBaseAdmin(conf);
-    if (admin.tableExists(tableName)) {
+    Admin admin = getAdmin();
+    if (admin.tableExists(TableName.valueOf(tableName))) {
       System.out.println("table already exists!");
     } else {
-      HTableDescriptor tableDesc = new HTableDescriptor(tableName);
+      HTableDescriptor tableDesc = new HTableDescriptor(TableName.valueOf(tableName));
       for (String family : familys) {
         tableDesc.addFamily(new HColumnDescriptor(family));
       }
@@ -88,6 +198,47 @@ public class HBaseAdminClient {
     }
   }
 
+  /**
+   * Create a table pre-split on explicit split points
+   *
+   * @param tableName table Name
+   * @param splitKeys sorted split points, empty for a single region
+   * @param families column families
+   * @throws java.lang.Exception Exception
+   */
+  public void createTable(String tableName, byte[][] splitKeys, FamilySpec... families)
+          throws Exception {
+    Admin admin = getAdmin();
+    TableName name = TableName.valueOf(tableName);
+    if (admin.tableExists(name)) {
+      System.out.println("table already exists!");
+      return;
+    }
+    HTableDescriptor tableDesc = descriptor(name, families);
+    if (splitKeys == null || splitKeys.length == 0) {
+      admin.createTable(tableDesc);
+    } else {
+      admin.createTable(tableDesc, splitKeys);
+    }
+    System.out.println("create table " + tableName + " with "
+            + (splitKeys == null ? 1 : splitKeys.length + 1) + " regions ok.");
+  }
+
+  /**
+   * Create a table pre-split on the key distribution of an existing table
+   *
+   * @param tableName table Name
+   * @param regions number of regions
+   * @param sampleTable table whose keys are sampled
+   * @param families column families
+   * @throws java.lang.Exception Exception
+   */
+  public void createTableLike(String tableName, int regions, String sampleTable, FamilySpec... families)
+          throws Exception {
+    createTable(tableName,
+            SplitPoints.fromTable(getConnection(), sampleTable, regions, SplitPoints.DEFAULT_SAMPLE_SIZE), families);
+  }
+
   /**
    * Delete a table
    *
@@ -96,9 +247,9 @@ public class HBaseAdminClient {
    */
   public void deleteTable(String tableName) throws Exception {
     try {
-      HBaseAdmin admin = new HBaseAdmin(conf);
-      admin.disableTable(tableName);
-      admin.deleteTable(tableName);
+      Admin admin = getAdmin();
+      admin.disableTable(TableName.valueOf(tableName));
+      admin.deleteTable(TableName.valueOf(tableName));
       System.out.println("delete table " + tableName + " ok.");
     } catch (MasterNotRunningException e) {
       e.printStackTrace();
@@ -107,4 +258,266 @@ public class HBaseAdminClient {
     }
   }
 
+  /**
+   * Create many tables concurrently, the existing ones are skipped
+   *
+   * @param tableNames table Names
+   * @param splitKeys sorted split points shared by the tables, empty for a single region
+   * @param families column families
+   * @throws java.lang.Exception Exception
+   */
+  public void createTables(Collection<String> tableNames, byte[][] splitKeys, FamilySpec... families)
+          throws Exception {
+    Admin admin = getAdmin();
+    List<TableName> created = new ArrayList<>();
+    for (String tableName : tableNames) {
+      TableName name = TableName.valueOf(tableName);
+      if (admin.tableExists(name)) {
+        System.out.println("table " + tableName + " already exists!");
+        continue;
+      }
+      admin.createTableAsync(descriptor(name, families),
+              splitKeys == null || splitKeys.length == 0 ? null : splitKeys);
+      created.add(name);
+    }
+    waitFor(created, admin::isTableAvailable, "created", true);
+    System.out.println("create " + created.size() + " tables ok.");
+  }
+
+  /**
+   * Disable many tables concurrently, the disabled ones are skipped
+   *
+   * @param tableNames table Names
+   * @throws java.lang.Exception Exception
+   */
+  public void disableTables(Collection<String> tableNames) throws Exception {
+    Admin admin = getAdmin();
+    List<TableName> disabled = new ArrayList<>();
+    for (String tableName : tableNames) {
+      TableName name = TableName.valueOf(tableName);
+      if (admin.isTableEnabled(name)) {
+        admin.disableTableAsync(name);
+      }
+      disabled.add(name);
+    }
+    waitFor(disabled, admin::isTableDisabled, "disabled", false);
+    System.out.println("disable " + disabled.size() + " tables ok.");
+  }
+
+  /**
+   * Truncate many tables concurrently, they are disabled first
+   *
+   * @param tableNames table Names
+   * @param preserveSplits keep the region boundaries
+   * @throws java.lang.Exception Exception
+   */
+  public void truncateTables(Collection<String> tableNames, final boolean preserveSplits)
+          throws Exception {
+    disableTables(tableNames);
+    forEachTable(tableNames, (admin, name) -> admin.truncateTable(name, preserveSplits));
+    System.out.println("truncate " + tableNames.size() + " tables ok.");
+  }
+
+  /**
+   * Delete many tables concurrently, they are disabled first
+   *
+   * @param tableNames table Names
+   * @throws java.lang.Exception Exception
+   */
+  public void deleteTables(Collection<String> tableNames) throws Exception {
+    disableTables(tableNames);
+    forEachTable(tableNames, (admin, name) -> admin.deleteTable(name));
+    System.out.println("delete " + tableNames.size() + " tables ok.");
+  }
+
+  /**
+   * Take a snapshot of a table
+   *
+   * @param tableName table Name
+   * @param snapshotName snapshot Name
+   * @throws java.lang.Exception Exception
+   */
+  public void snapshot(String tableName, String snapshotName) throws Exception {
+    getAdmin().snapshot(snapshotName, TableName.valueOf(tableName));
+    System.out.println("snapshot " + snapshotName + " of table " + tableName + " ok.");
+  }
+
+  /**
+   * Check if a snapshot exists
+   *
+   * @param snapshotName snapshot Name
+   * @return true if the snapshot exists
+   * @throws java.lang.Exception Exception
+   */
+  public boolean snapshotExists(String snapshotName) throws Exception {
+    return !getAdmin().listSnapshots(Pattern.quote(snapshotName)).isEmpty();
+  }
+
+  /**
+   * Delete a snapshot
+   *
+   * @param snapshotName snapshot Name
+   * @throws java.lang.Exception Exception
+   */
+  public void deleteSnapshot(String snapshotName) throws Exception {
+    getAdmin().deleteSnapshot(snapshotName);
+    System.out.println("delete snapshot " + snapshotName + " ok.");
+  }
+
+  /**
+   * Analyze the load skew of a table, and print or apply the resulting plan
+   *
+   * @param tableName table Name
+   * @param apply submit the plan to the master, otherwise only print it
+   * @return the plan
+   * @throws java.lang.Exception Exception
+   */
+  public RegionSkewAnalyzer.Plan analyzeSkew(String tableName, boolean apply) throws Exception {
+    RegionSkewAnalyzer.Plan plan = new RegionSkewAnalyzer(getAdmin(), conf).analyze(TableName.valueOf(tableName));
+    plan.print();
+    if (apply) {
+      plan.apply(getAdmin());
+    }
+    return plan;
+  }
+
+  /**
+   * Compare a live table with its spec
+   *
+   * @param spec desired state
+   * @return the differences
+   * @throws java.lang.Exception Exception
+   */
+  public SchemaDiff diffTable(TableSpec spec) throws Exception {
+    Admin admin = getAdmin();
+    HTableDescriptor live = admin.tableExists(spec.getTableName())
+            ? admin.getTableDescriptor(spec.getTableName()) : null;
+    return new SchemaDiff(live, spec);
+  }
+
+  /**
+   * Print the differences between a live table and its spec, and apply them
+   * online when asked to
+   *
+   * @param spec desired state
+   * @param apply apply the changes, otherwise only print them
+   * @return the differences
+   * @throws java.lang.Exception Exception
+   */
+  public SchemaDiff migrateTable(TableSpec spec, boolean apply) throws Exception {
+    SchemaDiff diff = diffTable(spec);
+    diff.print();
+    if (apply && !diff.isEmpty()) {
+      diff.apply(getAdmin(), conf.getLong(DDL_TIMEOUT_KEY, DEFAULT_DDL_TIMEOUT));
+    }
+    return diff;
+  }
+
+  private static HTableDescriptor descriptor(TableName name, FamilySpec... families) {
+    HTableDescriptor tableDesc = new HTableDescriptor(name);
+    for (FamilySpec family : families) {
+      tableDesc.addFamily(family.toDescriptor());
+    }
+    return tableDesc;
+  }
+
+  /**
+   * State of a table polled by {@link #waitFor}
+   */
+  private interface TableCheck {
+
+    boolean isDone(TableName name) throws IOException;
+  }
+
+  /**
+   * Synchronous DDL run by {@link #forEachTable}
+   */
+  private interface TableOperation {
+
+    void run(Admin admin, TableName name) throws IOException;
+  }
+
+  /**
+   * Poll the tables until they all reach a state. A table not found yet is
+   * polled again while it is being created, the other non retryable errors
+   * are thrown at once, and the last error of a table is the cause of the
+   * timeout.
+   */
+  private void waitFor(List<TableName> names, TableCheck check, String state, boolean creating)
+          throws IOException {
+    long deadline = System.currentTimeMillis() + conf.getLong(DDL_TIMEOUT_KEY, DEFAULT_DDL_TIMEOUT);
+    List<TableName> pending = new ArrayList<>(names);
+    Map<TableName, IOException> errors = new HashMap<>();
+    while (!pending.isEmpty()) {
+      for (Iterator<TableName> it = pending.iterator(); it.hasNext();) {
+        TableName name = it.next();
+        try {
+          if (check.isDone(name)) {
+            it.remove();
+            errors.remove(name);
+          }
+        } catch (TableNotFoundException e) {
+          if (!creating) {
+            throw e;
+          }
+          errors.put(name, e);
+        } catch (DoNotRetryIOException e) {
+          throw e;
+        } catch (IOException e) {
+          errors.put(name, e);
+        }
+      }
+      if (pending.isEmpty()) {
+        break;
+      }
+      if (System.currentTimeMillis() > deadline) {
+        IOException timeout = new IOException("Tables not " + state + " in time: " + pending);
+        for (TableName name : pending) {
+          IOException cause = errors.get(name);
+          if (cause != null) {
+            if (timeout.getCause() == null) {
+              timeout.initCause(cause);
+            } else {
+              timeout.addSuppressed(cause);
+            }
+          }
+        }
+        throw timeout;
+      }
+      try {
+        TimeUnit.MILLISECONDS.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for tables to be " + state);
+      }
+    }
+  }
+
+  /**
+   * Run a synchronous DDL on many tables from a bounded pool, each thread
+   * with its own Admin on the shared connection
+   */
+  private void forEachTable(Collection<String> tableNames, final TableOperation operation)
+          throws IOException {
+    final Connection c = getConnection();
+    ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(conf.getInt(THREADS_KEY, DEFAULT_THREADS), tableNames.size())),
+            new NamedThreadFactory("HBaseAdminClient-"));
+    try {
+      List<Future<?>> futures = new ArrayList<>(tableNames.size());
+      for (String tableName : tableNames) {
+        final TableName name = TableName.valueOf(tableName);
+        futures.add(executor.submit(() -> {
+          try (Admin a = c.getAdmin()) {
+            operation.run(a, name);
+          }
+          return null;
+        }));
+      }
+      HBaseClient.waitAll(futures);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
 }
@@ -0,0 +1,402 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import com.manganit.half.util.NamedThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.FuzzyRowFilter;
+import org.apache.hadoop.hbase.filter.InclusiveStopFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.MultiRowRangeFilter;
+import org.apache.hadoop.hbase.filter.PageFilter;
+import org.apache.hadoop.hbase.filter.PrefixFilter;
+import org.apache.hadoop.hbase.filter.RowFilter;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+
+/**
+ * Client side aggregation engine.
+ * <p>
+ * The key range of a template {@link Scan} is split along the region
+ * boundaries, only the needed columns are requested, and every region is
+ * reduced on a worker thread into primitive accumulators which are merged at
+ * the end. Values are read as 8 byte longs, as written by
+ * {@link Bytes#toBytes(long)} or an Increment.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class HBaseAggregator {
+
+  /**
+   * Count, sum, min and max of long values
+   */
+  public static class LongStats {
+
+    private long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+
+    void add(long value) {
+      count++;
+      sum += value;
+      if (value < min) {
+        min = value;
+      }
+      if (value > max) {
+        max = value;
+      }
+    }
+
+    void merge(LongStats other) {
+      count += other.count;
+      sum += other.sum;
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getSum() {
+      return sum;
+    }
+
+    /**
+     * @return minimum, Long.MAX_VALUE when empty
+     */
+    public long getMin() {
+      return min;
+    }
+
+    /**
+     * @return maximum, Long.MIN_VALUE when empty
+     */
+    public long getMax() {
+      return max;
+    }
+
+    /**
+     * @return average, NaN when empty
+     */
+    public double getAverage() {
+      return count == 0 ? Double.NaN : (double) sum / count;
+    }
+
+    @Override
+    public String toString() {
+      return "count=" + count + " sum=" + sum + " min=" + min + " max=" + max;
+    }
+  }
+
+  /**
+   * Reduces the rows of one region
+   */
+  private interface RegionReducer<T> {
+
+    T reduce(ResultScanner scanner) throws IOException;
+  }
+
+  private final Connection connection;
+  private final TableName tableName;
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+  private int caching = 5000;
+
+  /**
+   *
+   * @param connection Connection
+   * @param tableName table Name
+   */
+  public HBaseAggregator(Connection connection, TableName tableName) {
+    this.connection = connection;
+    this.tableName = tableName;
+  }
+
+  /**
+   * @param parallelism number of regions reduced concurrently
+   * @return this
+   */
+  public HBaseAggregator setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+    return this;
+  }
+
+  /**
+   * @param caching number of rows fetched per RPC
+   * @return this
+   */
+  public HBaseAggregator setCaching(int caching) {
+    this.caching = caching;
+    return this;
+  }
+
+  /**
+   * Count the rows of a key range. Without filter, or with row key filters
+   * only, only the first key of each row is transferred. A column filter must
+   * see the whole row, the scan is then projected on the filtered columns.
+   *
+   * @param template Scan giving the key range and filters
+   * @return number of rows
+   * @throws IOException IOException
+   */
+  public long count(Scan template) throws IOException {
+    Scan scan = countScan(template);
+    long total = 0;
+    for (long[] count : perRegion(scan, scanner -> {
+      long[] c = new long[1];
+      while (scanner.next() != null) {
+        c[0]++;
+      }
+      return c;
+    })) {
+      total += count[0];
+    }
+    return total;
+  }
+
+  /**
+   * @param template Scan giving the key range and filters
+   * @return the Scan returning one row per counted row
+   * @throws IOException IOException
+   */
+  static Scan countScan(Scan template) throws IOException {
+    Scan scan = new Scan(template);
+    Filter filter = template.getFilter();
+    if (filter == null || isRowKeyFilter(filter)) {
+      // FirstKeyOnlyFilter would hide the other cells from a column filter
+      FilterList filters = new FilterList(FilterList.Operator.MUST_PASS_ALL,
+              new FirstKeyOnlyFilter(), new KeyOnlyFilter());
+      if (filter != null) {
+        filters.addFilter(filter);
+      }
+      scan.setFilter(filters);
+    } else if (!template.hasFamilies()) {
+      List<SingleColumnValueFilter> columns = new ArrayList<>();
+      if (columnFilters(filter, columns)) {
+        // the rows missing a filtered column are dropped, so they need no other column
+        for (SingleColumnValueFilter f : columns) {
+          scan.addColumn(f.getFamily(), f.getQualifier());
+        }
+      }
+    }
+    return scan;
+  }
+
+  /**
+   * @return true if the filter only looks at the row keys
+   */
+  private static boolean isRowKeyFilter(Filter filter) {
+    if (filter instanceof FilterList) {
+      for (Filter f : ((FilterList) filter).getFilters()) {
+        if (!isRowKeyFilter(f)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return filter instanceof PrefixFilter || filter instanceof RowFilter
+            || filter instanceof FuzzyRowFilter || filter instanceof MultiRowRangeFilter
+            || filter instanceof InclusiveStopFilter || filter instanceof PageFilter
+            || filter instanceof FirstKeyOnlyFilter || filter instanceof KeyOnlyFilter;
+  }
+
+  /**
+   * Collect the columns of a conjunction of column value filters dropping
+   * the rows without the column, along with row key filters
+   *
+   * @return false if the filter needs other columns
+   */
+  private static boolean columnFilters(Filter filter, List<SingleColumnValueFilter> columns) {
+    if (filter instanceof FilterList) {
+      FilterList list = (FilterList) filter;
+      if (list.getOperator() != FilterList.Operator.MUST_PASS_ALL) {
+        return false;
+      }
+      for (Filter f : list.getFilters()) {
+        if (!columnFilters(f, columns)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (filter instanceof SingleColumnValueFilter
+            && ((SingleColumnValueFilter) filter).getFilterIfMissing()) {
+      columns.add((SingleColumnValueFilter) filter);
+      return true;
+    }
+    return isRowKeyFilter(filter) && !(filter instanceof FirstKeyOnlyFilter);
+  }
+
+  /**
+   * Count, sum, min and max of a long column
+   *
+   * @param template Scan giving the key range and filters
+   * @param family family
+   * @param qualifier qualifier
+   * @return LongStats
+   * @throws IOException IOException
+   */
+  public LongStats stats(Scan template, final byte[] family, final byte[] qualifier) throws IOException {
+    LongStats total = new LongStats();
+    for (LongStats stats : perRegion(project(template, family, qualifier), scanner -> {
+      LongStats s = new LongStats();
+      Result r;
+      while ((r = scanner.next()) != null) {
+        Cell cell = r.getColumnLatestCell(family, qualifier);
+        if (cell != null) {
+          s.add(CellDecoders.valueAsLong(cell));
+        }
+      }
+      return s;
+    })) {
+      total.merge(stats);
+    }
+    return total;
+  }
+
+  /**
+   * Count, sum, min and max of a long column per group
+   *
+   * @param template Scan giving the key range and filters
+   * @param family family
+   * @param qualifier qualifier
+   * @param groupKey group of a row, e.g. a row key prefix
+   * @return LongStats per group
+   * @throws IOException IOException
+   */
+  public Map<String, LongStats> groupBy(Scan template, final byte[] family, final byte[] qualifier,
+          final Function<Result, String> groupKey) throws IOException {
+    Map<String, LongStats> total = new HashMap<>();
+    for (Map<String, LongStats> groups : perRegion(project(template, family, qualifier), scanner -> {
+      Map<String, LongStats> g = new HashMap<>();
+      Result r;
+      while ((r = scanner.next()) != null) {
+        Cell cell = r.getColumnLatestCell(family, qualifier);
+        if (cell != null) {
+          g.computeIfAbsent(groupKey.apply(column(r, family, qualifier)), k -> new LongStats()).add(CellDecoders.valueAsLong(cell));
+        }
+      }
+      return g;
+    })) {
+      for (Map.Entry<String, LongStats> e : groups.entrySet()) {
+        total.computeIfAbsent(e.getKey(), k -> new LongStats()).merge(e.getValue());
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Project a scan on the aggregated column, along with the columns its
+   * value filters test: a filter only sees the projected columns
+   */
+  static Scan project(Scan template, byte[] family, byte[] qualifier) throws IOException {
+    Scan scan = new Scan(template);
+    scan.getFamilyMap().clear();
+    scan.addColumn(family, qualifier);
+    if (template.getFilter() != null) {
+      for (SingleColumnValueFilter f : valueFilters(template.getFilter(), new ArrayList<>())) {
+        scan.addColumn(f.getFamily(), f.getQualifier());
+      }
+    }
+    scan.setMaxVersions(1);
+    return scan;
+  }
+
+  /**
+   * @return the column value filters of a filter, at any depth
+   */
+  static List<SingleColumnValueFilter> valueFilters(Filter filter, List<SingleColumnValueFilter> found) {
+    if (filter instanceof FilterList) {
+      for (Filter f : ((FilterList) filter).getFilters()) {
+        valueFilters(f, found);
+      }
+    } else if (filter instanceof SingleColumnValueFilter) {
+      found.add((SingleColumnValueFilter) filter);
+    }
+    return found;
+  }
+
+  /**
+   * @return the row reduced to the aggregated column, without the filtered columns
+   */
+  private static Result column(Result r, byte[] family, byte[] qualifier) {
+    return Result.create(r.getColumnCells(family, qualifier));
+  }
+
+  private <T> List<T> perRegion(Scan template, final RegionReducer<T> reducer) throws IOException {
+    Pair<byte[][], byte[][]> keys;
+    try (RegionLocator locator = connection.getRegionLocator(tableName)) {
+      keys = locator.getStartEndKeys();
+    }
+    List<Scan> scans = ParallelScanner.split(template, keys);
+    if (scans.isEmpty()) {
+      return new ArrayList<>();
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, scans.size())),
+            new NamedThreadFactory("HBaseAggregator-" + tableName.getNameAsString() + "-"));
+    try {
+      List<Future<T>> futures = new ArrayList<>(scans.size());
+      for (final Scan scan : scans) {
+        scan.setCaching(caching);
+        scan.setCacheBlocks(false);
+        futures.add(executor.submit(() -> {
+          try (Table table = connection.getTable(tableName);
+               ResultScanner scanner = table.getScanner(scan)) {
+            return reducer.reduce(scanner);
+          }
+        }));
+      }
+      HBaseClient.waitAll(futures);
+      List<T> results = new ArrayList<>(futures.size());
+      for (Future<T> f : futures) {
+        results.add(f.get());
+      }
+      return results;
+    } catch (InterruptedException | ExecutionException e) {
+      // already reported by waitAll
+      throw new IOException(e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.HFileContext;
+import org.apache.hadoop.hbase.io.hfile.HFileContextBuilder;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+
+/**
+ * HFile bulk-load pipeline, bypassing the RegionServer write path.
+ * <p>
+ * KeyValues are partitioned by the current regions of the target table and
+ * buffered in memory. When the buffer is full, and on {@link #load()}, each
+ * partition is sorted and written as one HFile per family under the staging
+ * directory, using the compression, encoding, block size and bloom filter of
+ * the family. {@link #load()} then hands the HFiles over to the RegionServers.
+ * <p>
+ * The staging directory must be writable by the HBase service user, and is
+ * removed by {@link #close()}.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class HBaseBulkLoader implements Closeable {
+
+  private final static Logger logger = Logger.getLogger(HBaseBulkLoader.class);
+
+  /**
+   * Heap size of the KeyValues buffered before HFiles are written
+   */
+  public static final String BUFFER_SIZE_KEY = "half.hbase.bulkload.buffer.size";
+
+  public static final long DEFAULT_BUFFER_SIZE = 256L * 1024 * 1024;
+
+  private final Connection connection;
+  private final TableName tableName;
+  private final FileSystem fs;
+  private final Path stagingDir;
+  private final Configuration conf;
+  private final long bufferSize;
+  private final byte[][] startKeys;
+  private final HTableDescriptor descriptor;
+  private final List<List<KeyValue>> partitions;
+  private final long now = System.currentTimeMillis();
+  private long bufferedBytes = 0;
+  private long cellCount = 0;
+  private int fileCount = 0;
+
+  /**
+   *
+   * @param connection Connection
+   * @param tableName table Name
+   * @param fs FileSystem holding the staging directory
+   * @param stagingDir staging directory, created if needed
+   * @throws IOException IOException
+   */
+  public HBaseBulkLoader(Connection connection, TableName tableName, FileSystem fs, Path stagingDir)
+          throws IOException {
+    this.connection = connection;
+    this.tableName = tableName;
+    this.fs = fs;
+    this.stagingDir = stagingDir;
+    this.conf = connection.getConfiguration();
+    this.bufferSize = conf.getLong(BUFFER_SIZE_KEY, DEFAULT_BUFFER_SIZE);
+    try (RegionLocator locator = connection.getRegionLocator(tableName);
+         Admin admin = connection.getAdmin()) {
+      this.startKeys = locator.getStartKeys();
+      this.descriptor = admin.getTableDescriptor(tableName);
+    }
+    this.partitions = new ArrayList<>(startKeys.length);
+    for (byte[] startKey : startKeys) {
+      partitions.add(new ArrayList<KeyValue>());
+    }
+    fs.mkdirs(stagingDir);
+  }
+
+  /**
+   * Buffer a KeyValue, in any order
+   *
+   * @param kv KeyValue
+   * @throws IOException IOException
+   */
+  public void add(KeyValue kv) throws IOException {
+    if (descriptor.getFamily(kv.getFamily()) == null) {
+      throw new IOException("Unknown family " + Bytes.toString(kv.getFamily()) + " in " + tableName);
+    }
+    kv.updateLatestStamp(Bytes.toBytes(now));
+    partitions.get(regionIndex(startKeys, kv.getRowArray(), kv.getRowOffset(), kv.getRowLength())).add(kv);
+    cellCount++;
+    bufferedBytes += kv.heapSize();
+    if (bufferedBytes >= bufferSize) {
+      writeHFiles();
+    }
+  }
+
+  /**
+   * Buffer a single cell
+   *
+   * @param row row key
+   * @param family family
+   * @param qualifier qualifier
+   * @param value value
+   * @throws IOException IOException
+   */
+  public void add(byte[] row, byte[] family, byte[] qualifier, byte[] value) throws IOException {
+    add(new KeyValue(row, family, qualifier, value));
+  }
+
+  /**
+   * Write the remaining HFiles and load all of them into the table
+   *
+   * @throws Exception Exception
+   */
+  public void load() throws Exception {
+    writeHFiles();
+    logger.info("Bulk loading " + cellCount + " cells in " + fileCount + " HFiles into " + tableName);
+    try (Admin admin = connection.getAdmin();
+         Table table = connection.getTable(tableName);
+         RegionLocator locator = connection.getRegionLocator(tableName)) {
+      new LoadIncrementalHFiles(conf).doBulkLoad(stagingDir, admin, table, locator);
+    }
+    logger.info("Bulk load into " + tableName + " done");
+  }
+
+  /**
+   * @return number of cells added
+   */
+  public long getCellCount() {
+    return cellCount;
+  }
+
+  /**
+   * Find the region holding a row
+   *
+   * @param startKeys sorted region start keys, the first one being empty
+   * @param row row array
+   * @param offset row offset
+   * @param length row length
+   * @return index of the region
+   */
+  static int regionIndex(byte[][] startKeys, byte[] row, int offset, int length) {
+    int low = 0;
+    int high = startKeys.length - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (Bytes.compareTo(startKeys[mid], 0, startKeys[mid].length, row, offset, length) <= 0) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Sort every partition and write it as one HFile per family
+   */
+  private void writeHFiles() throws IOException {
+    for (List<KeyValue> partition : partitions) {
+      if (partition.isEmpty()) {
+        continue;
+      }
+      Collections.sort(partition, KeyValue.COMPARATOR);
+      Map<String, StoreFile.Writer> writers = new HashMap<>();
+      try {
+        for (KeyValue kv : partition) {
+          String family = Bytes.toString(kv.getFamily());
+          StoreFile.Writer writer = writers.get(family);
+          if (writer == null) {
+            writer = createWriter(descriptor.getFamily(kv.getFamily()));
+            writers.put(family, writer);
+          }
+          writer.append(kv);
+        }
+      } finally {
+        for (StoreFile.Writer writer : writers.values()) {
+          closeWriter(writer);
+        }
+      }
+      fileCount += writers.size();
+      partition.clear();
+    }
+    bufferedBytes = 0;
+  }
+
+  private StoreFile.Writer createWriter(HColumnDescriptor family) throws IOException {
+    Path familyDir = new Path(stagingDir, family.getNameAsString());
+    fs.mkdirs(familyDir);
+    HFileContext context = new HFileContextBuilder()
+            .withCompression(family.getCompressionType())
+            .withDataBlockEncoding(family.getDataBlockEncoding())
+            .withBlockSize(family.getBlocksize())
+            .withIncludesTags(false)
+            .build();
+    // HFiles written here must not be cached by the client
+    Configuration writerConf = new Configuration(conf);
+    writerConf.setFloat("hfile.block.cache.size", 0.0f);
+    return new StoreFile.WriterBuilder(writerConf, new CacheConfig(writerConf), fs)
+            .withOutputDir(familyDir)
+            .withBloomType(family.getBloomFilterType())
+            .withComparator(KeyValue.COMPARATOR)
+            .withFileContext(context)
+            .build();
+  }
+
+  private void closeWriter(StoreFile.Writer writer) throws IOException {
+    writer.appendFileInfo(StoreFile.BULKLOAD_TIME_KEY, Bytes.toBytes(System.currentTimeMillis()));
+    writer.appendFileInfo(StoreFile.BULKLOAD_TASK_KEY, Bytes.toBytes("half-" + tableName.getNameAsString()));
+    writer.appendFileInfo(StoreFile.MAJOR_COMPACTION_KEY, Bytes.toBytes(false));
+    writer.appendFileInfo(StoreFile.EXCLUDE_FROM_MINOR_COMPACTION_KEY, Bytes.toBytes(false));
+    writer.appendTrackedTimestampsToMetadata();
+    writer.close();
+  }
+
+  /**
+   * Remove the staging directory
+   *
+   * @throws IOException IOException
+   */
+  @Override
+  public void close() throws IOException {
+    for (List<KeyValue> partition : partitions) {
+      partition.clear();
+    }
+    if (fs.exists(stagingDir)) {
+      fs.delete(stagingDir, true);
+    }
+  }
+}
@@ -16,31 +16,68 @@
 
 package com.manganit.half.client;
 
+import com.manganit.half.util.NamedThreadFactory;
+
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.CellScanner;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.ConnectionFactory;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
-import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Table;
 import org.apache.hadoop.hbase.util.Bytes;
 
 /**
+ * HBase data client.
+ * <p>
+ * The client owns a single heavyweight {@link Connection}, created on first use
+ * and shared by all the threads calling this instance. Each operation borrows a
+ * lightweight {@link Table} handle from it and closes it when done.
+ * Call {@link #close()} to release the connection.
  *
  * @author Damien Claveau
  * 
  */
 
-public class HBaseClient {
+public class HBaseClient implements Closeable {
+
+  /**
+   * Number of worker threads used by the parallel operations
+   */
+  public static final String THREADS_KEY = "half.hbase.client.threads";
 
   private Configuration conf = null;
+  private volatile Connection connection = null;
+  private final boolean ownConnection;
+  private ExecutorService executor = null;
+  private volatile HBaseRowCache rowCache = null;
+  private volatile WriteThrottle writeThrottle = null;
+  private final Map<TableName, RegionLocator> locators = new ConcurrentHashMap<>();
 
   /**
    * Default Initialization
@@ -49,8 +86,486 @@ public class HBaseClient {
     this(HBaseConfiguration.create());
   }
 
+  /**
+   *
+   * @param conf Configuration
+   */
   public HBaseClient(Configuration conf) {
     this.conf = conf;
+    this.ownConnection = true;
+    initRowCache();
+    initWriteThrottle();
+  }
+
+  /**
+   * Share an existing connection, which is not closed by {@link #close()}
+   *
+   * @param connection Connection
+   */
+  public HBaseClient(Connection connection) {
+    this.conf = connection.getConfiguration();
+    this.connection = connection;
+    this.ownConnection = false;
+    initRowCache();
+    initWriteThrottle();
+  }
+
+  private void initRowCache() {
+    int maxEntries = conf.getInt(HBaseRowCache.MAX_ENTRIES_KEY, HBaseRowCache.DEFAULT_MAX_ENTRIES);
+    if (maxEntries > 0) {
+      rowCache = new HBaseRowCache(maxEntries, conf.getLong(HBaseRowCache.TTL_KEY, HBaseRowCache.DEFAULT_TTL));
+    }
+  }
+
+  private void initWriteThrottle() {
+    if (conf.getBoolean(WriteThrottle.ENABLED_KEY, false)) {
+      writeThrottle = new WriteThrottle(conf);
+    }
+  }
+
+  /**
+   * Enable, replace or disable (with null) the read-through row cache
+   *
+   * @param rowCache HBaseRowCache
+   */
+  public void setRowCache(HBaseRowCache rowCache) {
+    this.rowCache = rowCache;
+  }
+
+  /**
+   * Get the read-through row cache
+   *
+   * @return HBaseRowCache, null when disabled
+   */
+  public HBaseRowCache getRowCache() {
+    return rowCache;
+  }
+
+  /**
+   * Enable, replace or disable (with null) the adaptive write throttle
+   *
+   * @param writeThrottle WriteThrottle
+   */
+  public void setWriteThrottle(WriteThrottle writeThrottle) {
+    this.writeThrottle = writeThrottle;
+  }
+
+  /**
+   * Get the adaptive write throttle
+   *
+   * @return WriteThrottle, null when disabled
+   */
+  public WriteThrottle getWriteThrottle() {
+    return writeThrottle;
+  }
+
+  /**
+   * Invalidate a cached row after a write through this client
+   *
+   * @param tableName table Name
+   * @param row row key
+   */
+  void invalidate(TableName tableName, byte[] row) {
+    HBaseRowCache cache = rowCache;
+    if (cache != null) {
+      cache.invalidate(tableName, row);
+    }
+  }
+
+  /**
+   * Get a whole row, through the row cache when enabled
+   *
+   * @param tableName tableName
+   * @param row row key
+   * @return Result, empty when the row does not exist
+   * @throws IOException IOException
+   */
+  public Result getRow(String tableName, final byte[] row) throws IOException {
+    final TableName name = TableName.valueOf(tableName);
+    HBaseRowCache cache = rowCache;
+    if (cache == null) {
+      return loadRow(name, row);
+    }
+    return cache.get(name, row, () -> loadRow(name, row));
+  }
+
+  private Result loadRow(TableName name, byte[] row) throws IOException {
+    try (Table table = getConnection().getTable(name)) {
+      return table.get(new Get(row));
+    }
+  }
+
+  /**
+   * Get the shared connection, created on first call
+   *
+   * @return Connection
+   * @throws IOException IOException
+   */
+  public Connection getConnection() throws IOException {
+    Connection c = connection;
+    if (c == null) {
+      synchronized (this) {
+        c = connection;
+        if (c == null) {
+          c = ConnectionFactory.createConnection(conf);
+          connection = c;
+        }
+      }
+    }
+    return c;
+  }
+
+  /**
+   * Get the shared RegionLocator of a table, closed with this client
+   *
+   * @param name table Name
+   * @return RegionLocator, not to be closed by the caller
+   * @throws IOException IOException
+   */
+  RegionLocator getRegionLocator(TableName name) throws IOException {
+    RegionLocator locator = locators.get(name);
+    if (locator == null) {
+      synchronized (this) {
+        locator = locators.get(name);
+        if (locator == null) {
+          locator = getConnection().getRegionLocator(name);
+          locators.put(name, locator);
+        }
+      }
+    }
+    return locator;
+  }
+
+  /**
+   * Get a lightweight table handle, to be closed by the caller
+   *
+   * @param tableName tableName
+   * @return Table
+   * @throws IOException IOException
+   */
+  public Table getTable(String tableName) throws IOException {
+    return getConnection().getTable(TableName.valueOf(tableName));
+  }
+
+  /**
+   * Open a bulk writer configured from the client Configuration
+   *
+   * @param tableName tableName
+   * @return HBaseWriter
+   * @throws IOException IOException
+   * @see HBaseWriter#WRITE_BUFFER_SIZE_KEY
+   * @see HBaseWriter#FLUSH_INTERVAL_KEY
+   * @see HBaseWriter#MAX_INFLIGHT_BYTES_KEY
+   */
+  public HBaseWriter openWriter(String tableName) throws IOException {
+    return openWriter(tableName, null);
+  }
+
+  /**
+   * Open a bulk writer configured from the client Configuration
+   *
+   * @param tableName tableName
+   * @param listener failure callback, failures are logged when null
+   * @return HBaseWriter
+   * @throws IOException IOException
+   */
+  public HBaseWriter openWriter(String tableName, HBaseWriter.FailureListener listener) throws IOException {
+    return openWriter(tableName,
+            conf.getLong(HBaseWriter.WRITE_BUFFER_SIZE_KEY, HBaseWriter.DEFAULT_WRITE_BUFFER_SIZE),
+            conf.getLong(HBaseWriter.FLUSH_INTERVAL_KEY, HBaseWriter.DEFAULT_FLUSH_INTERVAL),
+            conf.getLong(HBaseWriter.MAX_INFLIGHT_BYTES_KEY, HBaseWriter.DEFAULT_MAX_INFLIGHT_BYTES),
+            listener);
+  }
+
+  /**
+   * Open a bulk writer
+   *
+   * @param tableName tableName
+   * @param writeBufferSize write buffer size in bytes
+   * @param flushInterval flush interval in milliseconds, 0 to disable
+   * @param maxInFlightBytes maximum unacknowledged bytes
+   * @param listener failure callback, failures are logged when null
+   * @return HBaseWriter
+   * @throws IOException IOException
+   */
+  public HBaseWriter openWriter(String tableName, long writeBufferSize, long flushInterval,
+          long maxInFlightBytes, HBaseWriter.FailureListener listener) throws IOException {
+    return new HBaseWriter(this, TableName.valueOf(tableName),
+            writeBufferSize, flushInterval, maxInFlightBytes, listener);
+  }
+
+  /**
+   * Get the Configuration
+   *
+   * @return Configuration
+   */
+  public Configuration getConf() {
+    return conf;
+  }
+
+  /**
+   * Get the bounded pool running the parallel operations, created on first call
+   *
+   * @return ExecutorService
+   */
+  protected synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      int threads = conf.getInt(THREADS_KEY, Runtime.getRuntime().availableProcessors() * 2);
+      executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("HBaseClient-"));
+    }
+    return executor;
+  }
+
+  /**
+   * Open a counter aggregator configured from the client Configuration
+   *
+   * @param tableName tableName
+   * @return CounterAggregator, to be closed to flush the last deltas
+   * @see CounterAggregator#FLUSH_INTERVAL_KEY
+   * @see CounterAggregator#MAX_PENDING_KEY
+   */
+  public CounterAggregator openCounterAggregator(String tableName) {
+    return new CounterAggregator(this, TableName.valueOf(tableName),
+            conf.getLong(CounterAggregator.FLUSH_INTERVAL_KEY, CounterAggregator.DEFAULT_FLUSH_INTERVAL),
+            conf.getInt(CounterAggregator.MAX_PENDING_KEY, CounterAggregator.DEFAULT_MAX_PENDING));
+  }
+
+  /**
+   * Open an HFile bulk loader staging its files on a FileSystem
+   *
+   * @param tableName tableName
+   * @param fs FileSystem, typically the one of the action
+   * @param stagingDir staging directory, removed when the loader is closed
+   * @return HBaseBulkLoader
+   * @throws IOException IOException
+   */
+  public HBaseBulkLoader openBulkLoader(String tableName, FileSystem fs, Path stagingDir)
+          throws IOException {
+    return new HBaseBulkLoader(getConnection(), TableName.valueOf(tableName), fs, stagingDir);
+  }
+
+  /**
+   * Run a filtered and projected scan
+   *
+   * @param tableName tableName
+   * @param query ScanQuery
+   * @return lazy iterator over the rows, to be closed
+   * @throws IOException IOException
+   */
+  public ScanResults query(String tableName, ScanQuery query) throws IOException {
+    Table table = getTable(tableName);
+    try {
+      return new ScanResults(table, table.getScanner(query.build()), query.getLimit());
+    } catch (IOException | RuntimeException e) {
+      table.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Create a parallel aggregation engine on a table
+   *
+   * @param tableName tableName
+   * @return HBaseAggregator
+   * @throws IOException IOException
+   */
+  public HBaseAggregator newAggregator(String tableName) throws IOException {
+    return new HBaseAggregator(getConnection(), TableName.valueOf(tableName));
+  }
+
+  /**
+   * Create an exporter of a table to files
+   *
+   * @param tableName tableName
+   * @return HBaseExporter
+   * @throws IOException IOException
+   */
+  public HBaseExporter newExporter(String tableName) throws IOException {
+    return new HBaseExporter(getConnection(), TableName.valueOf(tableName));
+  }
+
+  /**
+   * Create a parallel region-split scanner on a table
+   *
+   * @param tableName tableName
+   * @return ParallelScanner
+   * @throws IOException IOException
+   */
+  public ParallelScanner newParallelScanner(String tableName) throws IOException {
+    return new ParallelScanner(getConnection(), TableName.valueOf(tableName));
+  }
+
+  /**
+   * Create a scanner merging the salt buckets of a table in key order
+   *
+   * @param tableName tableName
+   * @param codec codec used to write the keys
+   * @return SaltedScanner
+   * @throws IOException IOException
+   */
+  public SaltedScanner newSaltedScanner(String tableName, RowKeyCodec codec) throws IOException {
+    return new SaltedScanner(getConnection(), TableName.valueOf(tableName), codec);
+  }
+
+  /**
+   * Get many rows, one parallel batch per RegionServer
+   *
+   * @param tableName tableName
+   * @param rows row keys
+   * @param columns optional "family" or "family:qualifier" projection
+   * @return results in input order, empty Results for missing rows
+   * @throws IOException IOException
+   */
+  public Result[] getAll(String tableName, Collection<byte[]> rows, String... columns)
+          throws IOException {
+    final List<Get> gets = toGets(rows, columns);
+    final Result[] results = new Result[gets.size()];
+    runByServer(tableName, gets, (table, indexes) -> {
+      List<Get> batch = new ArrayList<>(indexes.size());
+      for (int i : indexes) {
+        batch.add(gets.get(i));
+      }
+      Result[] batchResults = table.get(batch);
+      for (int i = 0; i < batchResults.length; i++) {
+        results[indexes.get(i)] = batchResults[i];
+      }
+    });
+    return results;
+  }
+
+  /**
+   * Check the existence of many rows, one parallel batch per RegionServer
+   *
+   * @param tableName tableName
+   * @param rows row keys
+   * @param columns optional "family" or "family:qualifier" restriction
+   * @return existence flags in input order
+   * @throws IOException IOException
+   */
+  public boolean[] existsAll(String tableName, Collection<byte[]> rows, String... columns)
+          throws IOException {
+    final List<Get> gets = toGets(rows, columns);
+    final boolean[] exists = new boolean[gets.size()];
+    runByServer(tableName, gets, (table, indexes) -> {
+      List<Get> batch = new ArrayList<>(indexes.size());
+      for (int i : indexes) {
+        batch.add(gets.get(i));
+      }
+      boolean[] batchExists = table.existsAll(batch);
+      for (int i = 0; i < batchExists.length; i++) {
+        exists[indexes.get(i)] = batchExists[i];
+      }
+    });
+    return exists;
+  }
+
+  /**
+   * Batch of row operations sent to a single RegionServer
+   */
+  private interface ServerBatch {
+
+    void run(Table table, List<Integer> indexes) throws IOException;
+  }
+
+  /**
+   * Group the gets by hosting RegionServer and run one batch per server in parallel
+   */
+  private void runByServer(String tableName, List<Get> gets, final ServerBatch batch)
+          throws IOException {
+    final TableName name = TableName.valueOf(tableName);
+    Map<ServerName, List<Integer>> byServer = new LinkedHashMap<>();
+    try (RegionLocator locator = getConnection().getRegionLocator(name)) {
+      for (int i = 0; i < gets.size(); i++) {
+        ServerName server = locator.getRegionLocation(gets.get(i).getRow()).getServerName();
+        List<Integer> indexes = byServer.get(server);
+        if (indexes == null) {
+          indexes = new ArrayList<>();
+          byServer.put(server, indexes);
+        }
+        indexes.add(i);
+      }
+    }
+    List<Future<Void>> futures = new ArrayList<>(byServer.size());
+    for (final List<Integer> indexes : byServer.values()) {
+      futures.add(getExecutor().submit(() -> {
+        try (Table table = getConnection().getTable(name)) {
+          batch.run(table, indexes);
+        }
+        return null;
+      }));
+    }
+    waitAll(futures);
+  }
+
+  /**
+   * Wait for all the tasks, cancelling the remaining ones on the first failure
+   *
+   * @param futures futures
+   * @throws IOException IOException
+   */
+  static void waitAll(List<? extends Future<?>> futures) throws IOException {
+    try {
+      for (Future<?> f : futures) {
+        f.get();
+      }
+    } catch (InterruptedException e) {
+      cancelAll(futures);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for HBase tasks");
+    } catch (ExecutionException e) {
+      cancelAll(futures);
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private static void cancelAll(List<? extends Future<?>> futures) {
+    for (Future<?> f : futures) {
+      f.cancel(true);
+    }
+  }
+
+  /**
+   * Build one Get per row with the column projection
+   */
+  private static List<Get> toGets(Collection<byte[]> rows, String... columns) {
+    List<Get> gets = new ArrayList<>(rows.size());
+    for (byte[] row : rows) {
+      Get get = new Get(row);
+      for (String column : columns) {
+        byte[][] fq = KeyValue.parseColumn(Bytes.toBytes(column));
+        if (fq.length > 1) {
+          get.addColumn(fq[0], fq[1]);
+        } else {
+          get.addFamily(fq[0]);
+        }
+      }
+      gets.add(get);
+    }
+    return gets;
+  }
+
+  /**
+   * Close the connection if it is owned by this client
+   *
+   * @throws IOException IOException
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+    for (RegionLocator locator : locators.values()) {
+      locator.close();
+    }
+    locators.clear();
+    if (ownConnection && connection != null) {
+      connection.close();
+      connection = null;
+    }
   }
 
   /**
@@ -65,12 +580,26 @@ public class HBaseClient {
    */
   public void addRecord(String tableName, String rowKey,
           String family, String qualifier, String value) throws Exception {
-    try {
-      HTable table = new HTable(conf, tableName);
+    try (Table table = getTable(tableName)) {
       Put put = new Put(Bytes.toBytes(rowKey));
       put.add(Bytes.toBytes(family), Bytes.toBytes(qualifier), Bytes
               .toBytes(value));
-      table.put(put);
+      WriteThrottle throttle = writeThrottle;
+      if (throttle != null) {
+        ServerName server = getRegionLocator(table.getName()).getRegionLocation(put.getRow()).getServerName();
+        throttle.acquire(table.getName(), server, put.heapSize());
+        long start = System.currentTimeMillis();
+        try {
+          table.put(put);
+        } catch (IOException e) {
+          throttle.onFailure(table.getName(), server, e);
+          throw e;
+        }
+        throttle.onSuccess(table.getName(), server, System.currentTimeMillis() - start);
+      } else {
+        table.put(put);
+      }
+      invalidate(table.getName(), put.getRow());
       System.out.println("insert record " + rowKey + " to table "
               + tableName + " ok.");
     } catch (IOException e) {
@@ -87,12 +616,14 @@ public class HBaseClient {
    */
   public void delRecord(String tableName, String rowKey)
           throws IOException {
-    HTable table = new HTable(conf, tableName);
-    List<Delete> list = new ArrayList<Delete>();
-    Delete del = new Delete(rowKey.getBytes());
-    list.add(del);
-    table.delete(list);
-    System.out.println("del record " + rowKey + " ok.");
+    try (Table table = getTable(tableName)) {
+      List<Delete> list = new ArrayList<Delete>();
+      Delete del = new Delete(rowKey.getBytes());
+      list.add(del);
+      table.delete(list);
+      invalidate(table.getName(), del.getRow());
+      System.out.println("del record " + rowKey + " ok.");
+    }
   }
 
   /**
@@ -103,16 +634,7 @@ public class HBaseClient {
    * @throws IOException IOException
    */
   public void printOneRecord(String tableName, String rowKey) throws IOException {
-    HTable table = new HTable(conf, tableName);
-    Get get = new Get(rowKey.getBytes());
-    Result rs = table.get(get);
-    for (KeyValue kv : rs.raw()) {
-      System.out.print(new String(kv.getRow()) + " ");
-      System.out.print(new String(kv.getFamily()) + ":");
-      System.out.print(new String(kv.getQualifier()) + " ");
-      System.out.print(kv.getTimestamp() + " ");
-      System.out.println(new String(kv.getValue()));
-    }
+    visitRow(tableName, Bytes.toBytes(rowKey), PRINTER);
   }
 
   /**
@@ -122,20 +644,66 @@ public class HBaseClient {
    */
   public void printAllRecords(String tableName) {
     try {
-      HTable table = new HTable(conf, tableName);
-      Scan s = new Scan();
-      ResultScanner ss = table.getScanner(s);
-      for (Result r : ss) {
-        for (KeyValue kv : r.raw()) {
-          System.out.print(new String(kv.getRow()) + " ");
-          System.out.print(new String(kv.getFamily()) + ":");
-          System.out.print(new String(kv.getQualifier()) + " ");
-          System.out.print(kv.getTimestamp() + " ");
-          System.out.println(new String(kv.getValue()));
-        }
-      }
+      visitAll(tableName, new Scan(), PRINTER);
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
+
+  /**
+   * Visit the cells of a row without copying them
+   *
+   * @param tableName tableName
+   * @param row row key
+   * @param visitor called for each cell of the row
+   * @throws IOException IOException
+   */
+  public void visitRow(String tableName, byte[] row, CellVisitor visitor) throws IOException {
+    try (Table table = getTable(tableName)) {
+      visit(table.get(new Get(row)), visitor);
+    }
+  }
+
+  /**
+   * Visit the cells of a scan without copying them
+   *
+   * @param tableName tableName
+   * @param scan Scan
+   * @param visitor called for each cell, row after row
+   * @throws IOException IOException
+   */
+  public void visitAll(String tableName, Scan scan, CellVisitor visitor) throws IOException {
+    try (Table table = getTable(tableName);
+         ResultScanner ss = table.getScanner(scan)) {
+      Result r;
+      while ((r = ss.next()) != null) {
+        visit(r, visitor);
+      }
+    }
+  }
+
+  /**
+   * Visit the cells of a Result through its CellScanner
+   *
+   * @param result Result
+   * @param visitor called for each cell
+   * @throws IOException IOException
+   */
+  public static void visit(Result result, CellVisitor visitor) throws IOException {
+    CellScanner scanner = result.cellScanner();
+    while (scanner.advance()) {
+      visitor.visit(scanner.current());
+    }
+  }
+
+  /**
+   * Print "row family:qualifier timestamp value", decoded as UTF-8
+   */
+  private static final CellVisitor PRINTER = cell -> {
+    System.out.print(CellDecoders.rowAsString(cell) + " ");
+    System.out.print(CellDecoders.familyAsString(cell) + ":");
+    System.out.print(CellDecoders.qualifierAsString(cell) + " ");
+    System.out.print(cell.getTimestamp() + " ");
+    System.out.println(CellDecoders.valueAsString(cell));
+  };
 }
@@ -0,0 +1,505 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import com.manganit.half.util.NamedThreadFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.io.compress.Lz4Codec;
+import org.apache.hadoop.io.compress.SnappyCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Export of a table to size-rolled files on any Hadoop FileSystem.
+ * <p>
+ * A {@link ParallelScanner} reads the regions concurrently and hands the rows
+ * to the writer threads through a bounded queue, so the memory stays flat
+ * whatever the size of the table. Each writer rolls its own files
+ * {@code part-<writer>-<sequence>} once they reach the roll size. The row key
+ * and the exported columns are written as UTF-8 strings, as CSV, JSON lines
+ * or Avro records.
+ * <pre>
+ * long rows = client.newExporter("events")
+ *         .setColumns("d:name", "d:amount")
+ *         .setFormat(HBaseExporter.Format.CSV)
+ *         .setCodec(HBaseExporter.Codec.GZIP)
+ *         .export(new Scan(), new Path("/data/export/events"));
+ * </pre>
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class HBaseExporter {
+
+  private final static Logger logger = Logger.getLogger(HBaseExporter.class);
+
+  /**
+   * Size in bytes after which an output file is rolled
+   */
+  public static final String ROLL_SIZE_KEY = "half.hbase.export.roll.size";
+  /**
+   * Number of writer threads
+   */
+  public static final String WRITERS_KEY = "half.hbase.export.writers";
+  /**
+   * Number of rows buffered between the scanners and the writers
+   */
+  public static final String QUEUE_SIZE_KEY = "half.hbase.export.queue.size";
+
+  public static final long DEFAULT_ROLL_SIZE = 256L * 1024 * 1024;
+  public static final int DEFAULT_WRITERS = 2;
+  public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+  private static final Result END = Result.create(new Cell[0]);
+
+  /**
+   * Output file format
+   */
+  public enum Format {
+    CSV(".csv"), JSON(".json"), AVRO(".avro");
+
+    private final String extension;
+
+    Format(String extension) {
+      this.extension = extension;
+    }
+  }
+
+  /**
+   * Compression codec, Avro files are compressed by blocks and do not support LZ4
+   */
+  public enum Codec {
+    NONE(null), GZIP(GzipCodec.class), SNAPPY(SnappyCodec.class), LZ4(Lz4Codec.class);
+
+    private final Class<? extends CompressionCodec> codecClass;
+
+    Codec(Class<? extends CompressionCodec> codecClass) {
+      this.codecClass = codecClass;
+    }
+  }
+
+  private final Connection connection;
+  private final TableName tableName;
+  private final Configuration conf;
+  private final List<byte[][]> columns = new ArrayList<>();
+  private final List<String> names = new ArrayList<>();
+  private Format format = Format.CSV;
+  private Codec codec = Codec.NONE;
+  private long rollSize;
+  private int writers;
+  private int queueSize;
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+
+  /**
+   *
+   * @param connection Connection
+   * @param tableName table Name
+   */
+  public HBaseExporter(Connection connection, TableName tableName) {
+    this.connection = connection;
+    this.tableName = tableName;
+    this.conf = connection.getConfiguration();
+    this.rollSize = conf.getLong(ROLL_SIZE_KEY, DEFAULT_ROLL_SIZE);
+    this.writers = conf.getInt(WRITERS_KEY, DEFAULT_WRITERS);
+    this.queueSize = conf.getInt(QUEUE_SIZE_KEY, DEFAULT_QUEUE_SIZE);
+  }
+
+  /**
+   * @param columns exported "family:qualifier" columns, in output order
+   * @return this
+   */
+  public HBaseExporter setColumns(String... columns) {
+    this.columns.clear();
+    this.names.clear();
+    for (String column : columns) {
+      byte[][] fq = KeyValue.parseColumn(Bytes.toBytes(column));
+      if (fq.length < 2 || fq[1].length == 0) {
+        throw new IllegalArgumentException("Column must be family:qualifier " + column);
+      }
+      this.columns.add(fq);
+      this.names.add(column);
+    }
+    return this;
+  }
+
+  /**
+   * @param format output format
+   * @return this
+   */
+  public HBaseExporter setFormat(Format format) {
+    this.format = format;
+    return this;
+  }
+
+  /**
+   * @param codec compression codec
+   * @return this
+   */
+  public HBaseExporter setCodec(Codec codec) {
+    this.codec = codec;
+    return this;
+  }
+
+  /**
+   * @param rollSize size in bytes after which an output file is rolled
+   * @return this
+   */
+  public HBaseExporter setRollSize(long rollSize) {
+    this.rollSize = rollSize;
+    return this;
+  }
+
+  /**
+   * @param writers number of writer threads
+   * @return this
+   */
+  public HBaseExporter setWriters(int writers) {
+    this.writers = writers;
+    return this;
+  }
+
+  /**
+   * @param queueSize number of rows buffered between the scanners and the writers
+   * @return this
+   */
+  public HBaseExporter setQueueSize(int queueSize) {
+    this.queueSize = queueSize;
+    return this;
+  }
+
+  /**
+   * @param parallelism number of regions read concurrently
+   * @return this
+   */
+  public HBaseExporter setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+    return this;
+  }
+
+  /**
+   * Export the key range of a template
+   *
+   * @param template Scan giving the key range and filters
+   * @param outputDir output directory, created if needed
+   * @return number of exported rows
+   * @throws IOException IOException
+   */
+  public long export(Scan template, Path outputDir) throws IOException {
+    if (columns.isEmpty()) {
+      throw new IllegalStateException("No column to export");
+    }
+    if (format == Format.AVRO && codec == Codec.LZ4) {
+      throw new IllegalArgumentException("Avro does not support the LZ4 codec");
+    }
+    final FileSystem fs = outputDir.getFileSystem(conf);
+    fs.mkdirs(outputDir);
+    // the columns tested by the value filters are read too, only the
+    // exported columns are written
+    Scan scan = new Scan(template);
+    scan.getFamilyMap().clear();
+    for (byte[][] column : columns) {
+      scan.addColumn(column[0], column[1]);
+    }
+    if (template.getFilter() != null) {
+      for (SingleColumnValueFilter f : HBaseAggregator.valueFilters(template.getFilter(), new ArrayList<>())) {
+        scan.addColumn(f.getFamily(), f.getQualifier());
+      }
+    }
+
+    final BlockingQueue<Result> queue = new ArrayBlockingQueue<>(queueSize);
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+    final AtomicLong rows = new AtomicLong();
+    ExecutorService executor = Executors.newFixedThreadPool(writers,
+            new NamedThreadFactory("HBaseExporter-" + tableName.getNameAsString() + "-"));
+    List<Future<?>> futures = new ArrayList<>(writers);
+    try {
+      for (int i = 0; i < writers; i++) {
+        final int writer = i;
+        futures.add(executor.submit(() -> {
+          try (RollingWriter out = new RollingWriter(fs, outputDir, writer)) {
+            Result r;
+            while ((r = queue.take()) != END) {
+              out.write(r);
+              rows.incrementAndGet();
+            }
+          } catch (Exception e) {
+            error.compareAndSet(null, e);
+            throw e;
+          }
+          return null;
+        }));
+      }
+      new ParallelScanner(connection, tableName)
+              .setParallelism(parallelism)
+              .setQueueSize(queueSize)
+              .scan(scan, r -> offer(queue, r, error));
+      for (int i = 0; i < writers; i++) {
+        offer(queue, END, error);
+      }
+      HBaseClient.waitAll(futures);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      executor.shutdownNow();
+    }
+    logger.info("Exported " + rows.get() + " rows of " + tableName + " to " + outputDir);
+    return rows.get();
+  }
+
+  /**
+   * Hand a row over to the writers, giving up when one of them failed
+   */
+  private static void offer(BlockingQueue<Result> queue, Result r, AtomicReference<Throwable> error) {
+    try {
+      while (!queue.offer(r, 100, TimeUnit.MILLISECONDS)) {
+        Throwable t = error.get();
+        if (t != null) {
+          throw new UncheckedIOException(t instanceof IOException ? (IOException) t : new IOException(t));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new UncheckedIOException(new InterruptedIOException("Interrupted export"));
+    }
+  }
+
+  /**
+   * @param r row
+   * @return the row key then the exported columns, null when missing
+   */
+  private String[] values(Result r) {
+    String[] values = new String[columns.size() + 1];
+    values[0] = Bytes.toString(r.getRow());
+    for (int i = 0; i < columns.size(); i++) {
+      byte[] value = r.getValue(columns.get(i)[0], columns.get(i)[1]);
+      values[i + 1] = value == null ? null : Bytes.toString(value);
+    }
+    return values;
+  }
+
+  private Schema avroSchema() {
+    List<Schema.Field> fields = new ArrayList<>(names.size() + 1);
+    fields.add(new Schema.Field("rowkey", Schema.create(Schema.Type.STRING), null, null));
+    Schema nullable = Schema.createUnion(Arrays.asList(
+            Schema.create(Schema.Type.NULL), Schema.create(Schema.Type.STRING)));
+    for (String name : names) {
+      fields.add(new Schema.Field(name.replaceAll("[^A-Za-z0-9_]", "_"), nullable, name, null));
+    }
+    Schema schema = Schema.createRecord(tableName.getQualifierAsString().replaceAll("[^A-Za-z0-9_]", "_"),
+            null, "com.manganit.half.export", false);
+    schema.setFields(fields);
+    return schema;
+  }
+
+  private static void csv(StringBuilder sb, String value) {
+    if (value == null) {
+      return;
+    }
+    if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+      sb.append(value);
+    } else {
+      sb.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+  }
+
+  private static void json(StringBuilder sb, String value) {
+    if (value == null) {
+      sb.append("null");
+      return;
+    }
+    sb.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            sb.append(String.format("\\u%04x", (int) c));
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+    sb.append('"');
+  }
+
+  /**
+   * Output files of a writer thread, rolled on their size on disk
+   */
+  private class RollingWriter implements Closeable {
+
+    private final FileSystem fs;
+    private final Path dir;
+    private final int writer;
+    private final StringBuilder line = new StringBuilder();
+    private int sequence = 0;
+    private FSDataOutputStream raw;
+    private Writer text;
+    private DataFileWriter<GenericRecord> avro;
+    private Schema schema;
+
+    RollingWriter(FileSystem fs, Path dir, int writer) {
+      this.fs = fs;
+      this.dir = dir;
+      this.writer = writer;
+    }
+
+    void write(Result r) throws IOException {
+      if (raw == null) {
+        open();
+      }
+      String[] values = values(r);
+      if (format == Format.AVRO) {
+        GenericRecord record = new GenericData.Record(schema);
+        for (int i = 0; i < values.length; i++) {
+          record.put(i, values[i]);
+        }
+        avro.append(record);
+      } else {
+        line.setLength(0);
+        if (format == Format.CSV) {
+          for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+              line.append(',');
+            }
+            csv(line, values[i]);
+          }
+        } else {
+          line.append('{');
+          json(line, "rowkey");
+          line.append(':');
+          json(line, values[0]);
+          for (int i = 1; i < values.length; i++) {
+            line.append(',');
+            json(line, names.get(i - 1));
+            line.append(':');
+            json(line, values[i]);
+          }
+          line.append('}');
+        }
+        text.append(line).append('\n');
+      }
+      if (raw.getPos() >= rollSize) {
+        close();
+      }
+    }
+
+    private void open() throws IOException {
+      String name = String.format("part-%03d-%05d%s", writer, sequence++, format.extension);
+      OutputStream out;
+      if (format == Format.AVRO) {
+        raw = fs.create(new Path(dir, name), false);
+        schema = avroSchema();
+        avro = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(schema));
+        switch (codec) {
+          case GZIP:
+            avro.setCodec(CodecFactory.deflateCodec(6));
+            break;
+          case SNAPPY:
+            avro.setCodec(CodecFactory.snappyCodec());
+            break;
+          default:
+            break;
+        }
+        avro.create(schema, raw);
+        return;
+      }
+      if (codec == Codec.NONE) {
+        raw = fs.create(new Path(dir, name), false);
+        out = raw;
+      } else {
+        CompressionCodec cc = ReflectionUtils.newInstance(codec.codecClass, conf);
+        raw = fs.create(new Path(dir, name + cc.getDefaultExtension()), false);
+        out = cc.createOutputStream(raw);
+      }
+      text = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        if (avro != null) {
+          avro.close();
+        } else if (text != null) {
+          text.close();
+        } else if (raw != null) {
+          raw.close();
+        }
+      } finally {
+        avro = null;
+        text = null;
+        raw = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Result;
+
+/**
+ * Size-bounded LRU read-through cache of whole rows, with a time to live.
+ * <p>
+ * Rows written or deleted through the owning {@link HBaseClient} are
+ * invalidated. A row loaded while a write of a row of the same stripe was in
+ * progress is not cached, so a stale value cannot overwrite a fresh
+ * invalidation. The writes of the other stripes do not prevent the caching.
+ * Writes made by other processes are only seen once the entry expires.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class HBaseRowCache {
+
+  /**
+   * Maximum number of cached rows, 0 disables the cache
+   */
+  public static final String MAX_ENTRIES_KEY = "half.hbase.cache.max.entries";
+  /**
+   * Time to live of a cached row in milliseconds
+   */
+  public static final String TTL_KEY = "half.hbase.cache.ttl.ms";
+
+  public static final int DEFAULT_MAX_ENTRIES = 0;
+  public static final long DEFAULT_TTL = 60000L;
+
+  /**
+   * Number of write versions, a power of two
+   */
+  static final int STRIPES = 64;
+
+  /**
+   * Row loader called on a cache miss
+   */
+  public interface Loader {
+
+    Result load() throws IOException;
+  }
+
+  private final int maxEntries;
+  private final long ttl;
+  private final Map<Key, Entry> entries;
+  // write versions by stripe of table and row, and of invalidateAll
+  private final AtomicLongArray writes = new AtomicLongArray(STRIPES);
+  private final AtomicLong clears = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   *
+   * @param maxEntries maximum number of cached rows
+   * @param ttl time to live in milliseconds
+   */
+  public HBaseRowCache(final int maxEntries, long ttl) {
+    this.maxEntries = maxEntries;
+    this.ttl = ttl;
+    this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+        if (size() > HBaseRowCache.this.maxEntries) {
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Get a row from the cache, loading it on a miss
+   *
+   * @param tableName table Name
+   * @param row row key
+   * @param loader loader of the row
+   * @return Result
+   * @throws IOException IOException
+   */
+  public Result get(TableName tableName, byte[] row, Loader loader) throws IOException {
+    Key key = new Key(tableName, row);
+    long now = System.currentTimeMillis();
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        if (entry.expires > now) {
+          hits.incrementAndGet();
+          return entry.result;
+        }
+        entries.remove(key);
+        evictions.incrementAndGet();
+      }
+    }
+    misses.incrementAndGet();
+    int stripe = key.stripe();
+    long version = writes.get(stripe);
+    long cleared = clears.get();
+    Result result = loader.load();
+    synchronized (entries) {
+      if (version == writes.get(stripe) && cleared == clears.get()) {
+        entries.put(key, new Entry(result, now + ttl));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Drop a row after a write
+   *
+   * @param tableName table Name
+   * @param row row key
+   */
+  public void invalidate(TableName tableName, byte[] row) {
+    Key key = new Key(tableName, row);
+    writes.incrementAndGet(key.stripe());
+    synchronized (entries) {
+      entries.remove(key);
+    }
+  }
+
+  /**
+   * Drop all rows
+   */
+  public void invalidateAll() {
+    clears.incrementAndGet();
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  /**
+   * @param tableName table Name
+   * @param row row key
+   * @return stripe of the write version of the row
+   */
+  static int stripe(TableName tableName, byte[] row) {
+    return new Key(tableName, row).stripe();
+  }
+
+  /**
+   * @return number of cached rows, including expired ones not yet evicted
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * @return number of reads served from the cache
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of reads sent to HBase
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return number of rows evicted for size or expiry
+   */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  @Override
+  public String toString() {
+    return "HBaseRowCache [size=" + size() + ", hits=" + hits + ", misses=" + misses
+            + ", evictions=" + evictions + "]";
+  }
+
+  /**
+   * Table and row key
+   */
+  private static class Key {
+
+    private final TableName tableName;
+    private final byte[] row;
+    private final int hash;
+
+    Key(TableName tableName, byte[] row) {
+      this.tableName = tableName;
+      this.row = row;
+      this.hash = 31 * tableName.hashCode() + Arrays.hashCode(row);
+    }
+
+    int stripe() {
+      return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return tableName.equals(other.tableName) && Arrays.equals(row, other.row);
+    }
+  }
+
+  /**
+   * Cached row and its expiry time
+   */
+  private static class Entry {
+
+    private final Result result;
+    private final long expires;
+
+    Entry(Result result, long expires) {
+      this.result = result;
+      this.expires = expires;
+    }
+  }
+}
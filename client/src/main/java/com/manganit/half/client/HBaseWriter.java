@@ -0,0 +1,448 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import com.manganit.half.util.NamedThreadFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.BufferedMutatorParams;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.log4j.Logger;
+
+/**
+ * Bulk writer backed by a {@link BufferedMutator}.
+ * <p>
+ * Mutations are buffered client side and sent in background batches once the
+ * write buffer is full or when the flush interval elapses. The bytes handed to
+ * the writer since the last completed flush, buffered or sent but not yet
+ * acknowledged, are bounded by the in-flight limit: a writer going over it
+ * waits on a flush until the RegionServers acknowledged them. Failed batches
+ * are reported to the {@link FailureListener} and do not interrupt the stream.
+ * <p>
+ * The written rows are invalidated in the row cache of the client when they
+ * are buffered, and again once a flush acknowledged them or reported them as
+ * failed, so a row read while its write was buffered is not served stale
+ * afterwards. The rows sent by the background flushes of a full write buffer
+ * are invalidated by the next flush.
+ * <p>
+ * Obtain an instance from {@link HBaseClient#openWriter(String)} and close it
+ * to flush the remaining mutations.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class HBaseWriter implements Closeable {
+
+  private final static Logger logger = Logger.getLogger(HBaseWriter.class);
+
+  /**
+   * Client side write buffer size in bytes
+   */
+  public static final String WRITE_BUFFER_SIZE_KEY = "half.hbase.writer.buffer.size";
+  /**
+   * Maximum delay in milliseconds before buffered mutations are flushed (0 disables)
+   */
+  public static final String FLUSH_INTERVAL_KEY = "half.hbase.writer.flush.interval.ms";
+  /**
+   * Maximum bytes written since the last completed flush, the writers going
+   * over it block until a flush is acknowledged by the RegionServers
+   */
+  public static final String MAX_INFLIGHT_BYTES_KEY = "half.hbase.writer.max.inflight.bytes";
+
+  public static final long DEFAULT_WRITE_BUFFER_SIZE = 8L * 1024 * 1024;
+  public static final long DEFAULT_FLUSH_INTERVAL = 1000L;
+  public static final long DEFAULT_MAX_INFLIGHT_BYTES = 64L * 1024 * 1024;
+
+  /**
+   * Callback notified of the mutations that could not be written
+   */
+  public interface FailureListener {
+
+    /**
+     * @param tableName table Name
+     * @param failed failed mutations
+     * @param causes cause of each failed mutation
+     */
+    void onFailure(TableName tableName, List<Mutation> failed, List<Throwable> causes);
+  }
+
+  /**
+   * Opens the BufferedMutator of a writer
+   */
+  interface MutatorFactory {
+
+    BufferedMutator open(BufferedMutator.ExceptionListener listener) throws IOException;
+  }
+
+  /**
+   * Rows and bytes per RegionServer buffered since the last flush, the rows
+   * are only kept while the client has a row cache to invalidate
+   */
+  private static class Pending {
+
+    final Queue<byte[]> rows = new ConcurrentLinkedQueue<>();
+    final Map<ServerName, AtomicLong> bytesByServer = new ConcurrentHashMap<>();
+    final AtomicLong bytes = new AtomicLong();
+
+    void add(byte[] row, ServerName server, long size) {
+      if (row != null) {
+        rows.add(row);
+      }
+      bytes.addAndGet(size);
+      if (server != null) {
+        bytesByServer.computeIfAbsent(server, k -> new AtomicLong()).addAndGet(size);
+      }
+    }
+
+    Map<ServerName, Long> getBytesByServer() {
+      Map<ServerName, Long> result = new HashMap<>();
+      for (Map.Entry<ServerName, AtomicLong> e : bytesByServer.entrySet()) {
+        result.put(e.getKey(), e.getValue().get());
+      }
+      return result;
+    }
+  }
+
+  private final HBaseClient client;
+  private final TableName tableName;
+  private final BufferedMutator mutator;
+  private final WriteThrottle throttle;
+  private final RegionLocator locator;
+  private final long maxInFlightBytes;
+  private final ScheduledExecutorService flusher;
+  // in-flight bytes are submittedBytes - acknowledgedBytes
+  private final AtomicLong submittedBytes = new AtomicLong();
+  private final AtomicLong acknowledgedBytes = new AtomicLong();
+  private final AtomicLong mutationCount = new AtomicLong();
+  // mutations buffered since the last flush, swapped under the write lock
+  private final ReadWriteLock rowsLock = new ReentrantReadWriteLock();
+  private Pending pending = new Pending();
+  private final AtomicLong failureCount = new AtomicLong();
+  private volatile boolean closed = false;
+
+  /**
+   *
+   * @param client owning client
+   * @param tableName table Name
+   * @param writeBufferSize write buffer size in bytes
+   * @param flushInterval flush interval in milliseconds, 0 to disable
+   * @param maxInFlightBytes maximum unacknowledged bytes
+   * @param listener failure callback, may be null
+   * @throws IOException IOException
+   */
+  HBaseWriter(HBaseClient client, TableName tableName, long writeBufferSize,
+          long flushInterval, long maxInFlightBytes, FailureListener listener) throws IOException {
+    this(client, tableName, flushInterval, maxInFlightBytes, listener,
+            l -> client.getConnection().getBufferedMutator(
+                    new BufferedMutatorParams(tableName).writeBufferSize(writeBufferSize).listener(l)));
+  }
+
+  /**
+   *
+   * @param client owning client
+   * @param tableName table Name
+   * @param flushInterval flush interval in milliseconds, 0 to disable
+   * @param maxInFlightBytes maximum unacknowledged bytes
+   * @param listener failure callback, may be null
+   * @param factory opens the mutator with the failure listener of the writer
+   * @throws IOException IOException
+   */
+  HBaseWriter(HBaseClient client, TableName tableName, long flushInterval, long maxInFlightBytes,
+          final FailureListener listener, MutatorFactory factory) throws IOException {
+    this.client = client;
+    this.tableName = tableName;
+    this.maxInFlightBytes = maxInFlightBytes;
+    this.mutator = factory.open(new BufferedMutator.ExceptionListener() {
+      @Override
+      public void onException(RetriesExhaustedWithDetailsException e, BufferedMutator m) {
+        notifyFailure(e, listener);
+      }
+    });
+    this.throttle = client.getWriteThrottle();
+    this.locator = throttle != null ? client.getRegionLocator(tableName) : null;
+    if (flushInterval > 0) {
+      flusher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("HBaseWriter-" + tableName.getNameAsString() + "-"));
+      flusher.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            flush();
+          } catch (Exception e) {
+            logger.warn("Periodic flush of " + HBaseWriter.this.tableName + " failed", e);
+          }
+        }
+      }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    } else {
+      flusher = null;
+    }
+  }
+
+  /**
+   * Buffer a put
+   *
+   * @param put Put
+   * @throws IOException IOException
+   */
+  public void put(Put put) throws IOException {
+    mutate(put);
+  }
+
+  /**
+   * Buffer a single cell put
+   *
+   * @param row row key
+   * @param family family
+   * @param qualifier qualifier
+   * @param value value
+   * @throws IOException IOException
+   */
+  public void put(byte[] row, byte[] family, byte[] qualifier, byte[] value) throws IOException {
+    Put put = new Put(row);
+    put.addColumn(family, qualifier, value);
+    mutate(put);
+  }
+
+  /**
+   * Buffer a delete
+   *
+   * @param delete Delete
+   * @throws IOException IOException
+   */
+  public void delete(Delete delete) throws IOException {
+    mutate(delete);
+  }
+
+  /**
+   * Buffer a whole row delete
+   *
+   * @param row row key
+   * @throws IOException IOException
+   */
+  public void delete(byte[] row) throws IOException {
+    mutate(new Delete(row));
+  }
+
+  /**
+   * Buffer a batch of mutations
+   *
+   * @param mutations Puts or Deletes
+   * @throws IOException IOException
+   */
+  public void mutate(List<? extends Mutation> mutations) throws IOException {
+    for (Mutation m : mutations) {
+      mutate(m);
+    }
+  }
+
+  /**
+   * Buffer a mutation, waiting for a flush first when the in-flight limit is
+   * reached
+   *
+   * @param mutation Put or Delete
+   * @throws IOException IOException
+   */
+  public void mutate(Mutation mutation) throws IOException {
+    if (closed) {
+      throw new IOException("Writer on " + tableName + " is closed");
+    }
+    long size = mutation.heapSize();
+    ServerName server = null;
+    if (throttle != null) {
+      server = serverOf(mutation.getRow());
+      throttle.acquire(tableName, server, size);
+    }
+    long inFlight = submittedBytes.get() - acknowledgedBytes.get();
+    if (inFlight > 0 && inFlight + size > maxInFlightBytes) {
+      // blocks until the RegionServers acknowledged the in-flight bytes,
+      // concurrent writers over the limit wait on the same mutator flush
+      flush();
+    }
+    // without a row cache there is nothing to invalidate after the flush
+    byte[] row = client.getRowCache() != null ? mutation.getRow() : null;
+    rowsLock.readLock().lock();
+    try {
+      mutator.mutate(mutation);
+      pending.add(row, server, size);
+    } finally {
+      rowsLock.readLock().unlock();
+    }
+    submittedBytes.addAndGet(size);
+    client.invalidate(tableName, mutation.getRow());
+    mutationCount.incrementAndGet();
+  }
+
+  /**
+   * Send all buffered mutations and wait for their completion
+   *
+   * @throws IOException IOException
+   */
+  public void flush() throws IOException {
+    // the bytes and rows submitted so far are acknowledged once the flush returns
+    long submitted = submittedBytes.get();
+    Pending flushed = takePending();
+    long start = System.currentTimeMillis();
+    try {
+      mutator.flush();
+    } finally {
+      invalidate(flushed.rows);
+    }
+    acknowledgedBytes.accumulateAndGet(submitted, Math::max);
+    if (throttle != null && flushed.bytes.get() > 0) {
+      throttle.onSuccess(tableName, flushed.getBytesByServer(), flushed.bytes.get(),
+              System.currentTimeMillis() - start);
+    }
+  }
+
+  private Pending takePending() {
+    rowsLock.writeLock().lock();
+    try {
+      Pending taken = pending;
+      pending = new Pending();
+      return taken;
+    } finally {
+      rowsLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Invalidate again the rows of a completed flush, a read during the flush
+   * may have cached their previous value
+   */
+  private void invalidate(Queue<byte[]> rows) {
+    for (byte[] row : rows) {
+      client.invalidate(tableName, row);
+    }
+  }
+
+  /**
+   * @param row row key
+   * @return RegionServer hosting the row, from the location cache
+   */
+  private ServerName serverOf(byte[] row) {
+    try {
+      return locator.getRegionLocation(row).getServerName();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return number of mutations submitted to this writer
+   */
+  public long getMutationCount() {
+    return mutationCount.get();
+  }
+
+  /**
+   * @return number of mutations reported as failed
+   */
+  public long getFailureCount() {
+    return failureCount.get();
+  }
+
+  /**
+   * @return target table name
+   */
+  public TableName getName() {
+    return tableName;
+  }
+
+  private void notifyFailure(RetriesExhaustedWithDetailsException e, FailureListener listener) {
+    int count = e.getNumExceptions();
+    failureCount.addAndGet(count);
+    List<Mutation> failed = new ArrayList<>(count);
+    List<Throwable> causes = new ArrayList<>(count);
+    // one congestion signal per server, not per failed row
+    Map<ServerName, Throwable> overloaded = new HashMap<>();
+    Throwable unlocated = null;
+    for (int i = 0; i < count; i++) {
+      if (e.getRow(i) instanceof Mutation) {
+        failed.add((Mutation) e.getRow(i));
+        causes.add(e.getCause(i));
+        client.invalidate(tableName, e.getRow(i).getRow());
+        if (throttle != null && WriteThrottle.isOverload(e.getCause(i))) {
+          ServerName server = serverOf(e.getRow(i).getRow());
+          if (server != null) {
+            overloaded.putIfAbsent(server, e.getCause(i));
+          } else if (unlocated == null) {
+            unlocated = e.getCause(i);
+          }
+        }
+      }
+    }
+    for (Map.Entry<ServerName, Throwable> o : overloaded.entrySet()) {
+      throttle.onFailure(tableName, o.getKey(), o.getValue());
+    }
+    if (unlocated != null) {
+      throttle.onFailure(tableName, null, unlocated);
+    }
+    if (listener != null) {
+      try {
+        listener.onFailure(tableName, failed, causes);
+      } catch (Exception le) {
+        logger.error("Failure listener error on " + tableName, le);
+      }
+    } else {
+      logger.error(count + " mutations failed on " + tableName + " : " + e.getExhaustiveDescription());
+    }
+  }
+
+  /**
+   * Flush the remaining mutations and release resources
+   *
+   * @throws IOException IOException
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (flusher != null) {
+      flusher.shutdown();
+    }
+    Pending flushed = takePending();
+    try {
+      mutator.close();
+    } finally {
+      invalidate(flushed.rows);
+    }
+  }
+}
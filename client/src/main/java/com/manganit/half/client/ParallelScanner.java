@@ -0,0 +1,276 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+
+/**
+ * Parallel full-table scanner.
+ * <p>
+ * The key range of a template {@link Scan} is split along the region
+ * boundaries, each region is read by its own sub-scan on a bounded pool, and
+ * the rows are handed over through bounded queues to the calling thread.
+ * When key order is kept, the regions are prefetched concurrently but
+ * delivered one after the other.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class ParallelScanner {
+
+  /**
+   * Rows fetched per RPC when neither the template nor the scanner set it
+   */
+  public static final int DEFAULT_CACHING = 1000;
+
+  private final Connection connection;
+  private final TableName tableName;
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+  // scan settings overriding the template, null when not set
+  private Integer caching = null;
+  private Integer batch = null;
+  private Boolean cacheBlocks = null;
+  private boolean keepOrder = false;
+  private int queueSize = 10000;
+
+  /**
+   *
+   * @param connection Connection
+   * @param tableName table Name
+   */
+  public ParallelScanner(Connection connection, TableName tableName) {
+    this.connection = connection;
+    this.tableName = tableName;
+  }
+
+  /**
+   * @param parallelism number of regions read concurrently
+   * @return this
+   */
+  public ParallelScanner setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+    return this;
+  }
+
+  /**
+   * @param caching number of rows fetched per RPC, overriding the template
+   * @return this
+   */
+  public ParallelScanner setCaching(int caching) {
+    this.caching = caching;
+    return this;
+  }
+
+  /**
+   * @param batch maximum number of cells per Result, -1 for whole rows,
+   * overriding the template
+   * @return this
+   */
+  public ParallelScanner setBatch(int batch) {
+    this.batch = batch;
+    return this;
+  }
+
+  /**
+   * @param cacheBlocks whether the RegionServers keep the scanned blocks in
+   * cache, overriding the template
+   * @return this
+   */
+  public ParallelScanner setCacheBlocks(boolean cacheBlocks) {
+    this.cacheBlocks = cacheBlocks;
+    return this;
+  }
+
+  /**
+   * @param keepOrder deliver the rows in key order
+   * @return this
+   */
+  public ParallelScanner setKeepOrder(boolean keepOrder) {
+    this.keepOrder = keepOrder;
+    return this;
+  }
+
+  /**
+   * @param queueSize number of rows buffered between the scanners and the consumer
+   * @return this
+   */
+  public ParallelScanner setQueueSize(int queueSize) {
+    this.queueSize = queueSize;
+    return this;
+  }
+
+  /**
+   * Scan the whole table
+   *
+   * @param consumer called from the calling thread for each row
+   * @throws IOException IOException
+   */
+  public void scan(Consumer<Result> consumer) throws IOException {
+    scan(new Scan(), consumer);
+  }
+
+  /**
+   * Scan the key range of a template
+   *
+   * @param template Scan giving the key range, columns and filters
+   * @param consumer called from the calling thread for each row
+   * @throws IOException IOException
+   */
+  public void scan(Scan template, Consumer<Result> consumer) throws IOException {
+    try (RegionMerger it = open(template)) {
+      while (it.hasNext()) {
+        consumer.accept(it.next());
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Stream the key range of a template, the stream must be closed
+   *
+   * @param template Scan giving the key range, columns and filters
+   * @return a sequential Stream of rows
+   * @throws IOException IOException
+   */
+  public Stream<Result> stream(Scan template) throws IOException {
+    final RegionMerger it = open(template);
+    int characteristics = Spliterator.NONNULL | (keepOrder ? Spliterator.ORDERED : 0);
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, characteristics), false)
+            .onClose(it::close);
+  }
+
+  /**
+   * Split a scan along the region boundaries
+   *
+   * @param template Scan giving the key range
+   * @param startEndKeys region start and end keys
+   * @return one Scan per region overlapping the range, in key order
+   * @throws IOException IOException
+   */
+  static List<Scan> split(Scan template, Pair<byte[][], byte[][]> startEndKeys) throws IOException {
+    if (template.isReversed()) {
+      throw new IllegalArgumentException("Reversed scans cannot be split");
+    }
+    byte[] scanStart = template.getStartRow();
+    byte[] scanStop = template.getStopRow();
+    List<Scan> scans = new ArrayList<>();
+    for (int i = 0; i < startEndKeys.getFirst().length; i++) {
+      byte[] regionStart = startEndKeys.getFirst()[i];
+      byte[] regionEnd = startEndKeys.getSecond()[i];
+      byte[] start = Bytes.compareTo(scanStart, regionStart) >= 0 ? scanStart : regionStart;
+      byte[] stop;
+      if (scanStop.length == 0) {
+        stop = regionEnd;
+      } else if (regionEnd.length == 0) {
+        stop = scanStop;
+      } else {
+        stop = Bytes.compareTo(scanStop, regionEnd) <= 0 ? scanStop : regionEnd;
+      }
+      if (stop.length > 0 && Bytes.compareTo(start, stop) >= 0) {
+        continue;
+      }
+      Scan scan = new Scan(template);
+      scan.setStartRow(start);
+      scan.setStopRow(stop);
+      scans.add(scan);
+    }
+    return scans;
+  }
+
+  private RegionMerger open(Scan template) throws IOException {
+    Pair<byte[][], byte[][]> keys;
+    try (RegionLocator locator = connection.getRegionLocator(tableName)) {
+      keys = locator.getStartEndKeys();
+    }
+    List<RegionMerger.ScannerSource> sources = new ArrayList<>();
+    int rows = DEFAULT_CACHING;
+    for (Scan scan : split(template, keys)) {
+      configure(scan);
+      rows = scan.getCaching();
+      sources.add(new TableScanSource(scan));
+    }
+    return new RegionMerger("ParallelScanner-" + tableName.getNameAsString(), sources,
+            parallelism, keepOrder, queueSize, rows);
+  }
+
+  /**
+   * Apply the settings given to this scanner over the ones of the template,
+   * a batch is only set when it changes: HBase rejects it along with a
+   * filter on whole rows such as SingleColumnValueFilter or PageFilter
+   *
+   * @param scan sub-scan
+   */
+  void configure(Scan scan) {
+    if (caching != null) {
+      scan.setCaching(caching);
+    } else if (scan.getCaching() <= 0) {
+      scan.setCaching(DEFAULT_CACHING);
+    }
+    if (batch != null && batch != scan.getBatch()) {
+      scan.setBatch(batch);
+    }
+    if (cacheBlocks != null) {
+      scan.setCacheBlocks(cacheBlocks);
+    }
+  }
+
+  /**
+   * Sub-scan of a single region, on its own table handle
+   */
+  private class TableScanSource implements RegionMerger.ScannerSource {
+
+    private final Scan scan;
+    private Table table;
+
+    TableScanSource(Scan scan) {
+      this.scan = scan;
+    }
+
+    @Override
+    public ResultScanner open() throws IOException {
+      table = connection.getTable(tableName);
+      return table.getScanner(scan);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (table != null) {
+        table.close();
+      }
+    }
+  }
+}
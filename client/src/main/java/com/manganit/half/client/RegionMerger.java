@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import com.manganit.half.util.NamedThreadFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+
+/**
+ * Runs one scanner per region on a bounded pool and merges their rows through
+ * bounded queues, either all at once or one region after the other to keep
+ * the key order. Failures of a region are rethrown as
+ * {@link UncheckedIOException} by the iterator.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+class RegionMerger implements Iterator<Result>, Closeable {
+
+  /**
+   * Opens the scanner of a region on a worker thread, and releases the
+   * resources it needs once the scanner is closed
+   */
+  interface ScannerSource extends Closeable {
+
+    ResultScanner open() throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+  }
+
+  private static final Result END_OF_REGION = Result.create(new Cell[0]);
+
+  private final String name;
+  private final ExecutorService executor;
+  private final List<BlockingQueue<Result>> queues = new ArrayList<>();
+  private final AtomicReference<Throwable> error = new AtomicReference<>();
+  private int current = 0;
+  private int remainingProducers;
+  private Result next = null;
+
+  /**
+   *
+   * @param name name of the worker threads
+   * @param sources one scanner source per region, in key order
+   * @param parallelism maximum number of regions read concurrently
+   * @param keepOrder deliver the regions one after the other
+   * @param queueSize total number of buffered rows
+   * @param minRegionQueueSize minimum number of buffered rows per region when keeping order
+   */
+  RegionMerger(String name, List<ScannerSource> sources, int parallelism, boolean keepOrder,
+          int queueSize, int minRegionQueueSize) {
+    this.name = name;
+    int threads = Math.max(1, Math.min(parallelism, sources.size()));
+    executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory(name + "-"));
+    if (keepOrder) {
+      int perRegion = Math.max(minRegionQueueSize, queueSize / threads);
+      for (ScannerSource source : sources) {
+        BlockingQueue<Result> queue = new ArrayBlockingQueue<>(perRegion);
+        queues.add(queue);
+        executor.execute(new RegionScan(source, queue));
+      }
+      remainingProducers = 1;
+    } else if (!sources.isEmpty()) {
+      BlockingQueue<Result> queue = new ArrayBlockingQueue<>(queueSize);
+      queues.add(queue);
+      for (ScannerSource source : sources) {
+        executor.execute(new RegionScan(source, queue));
+      }
+      remainingProducers = sources.size();
+    }
+    executor.shutdown();
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (next == null && current < queues.size()) {
+      Result r;
+      try {
+        r = queues.get(current).take();
+      } catch (InterruptedException e) {
+        close();
+        Thread.currentThread().interrupt();
+        throw new UncheckedIOException(new InterruptedIOException("Interrupted scan " + name));
+      }
+      if (r == END_OF_REGION) {
+        checkError();
+        if (--remainingProducers == 0) {
+          current++;
+          remainingProducers = 1;
+        }
+      } else {
+        next = r;
+      }
+    }
+    return next != null;
+  }
+
+  @Override
+  public Result next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    Result r = next;
+    next = null;
+    return r;
+  }
+
+  private void checkError() {
+    Throwable t = error.get();
+    if (t != null) {
+      close();
+      throw new UncheckedIOException(t instanceof IOException ? (IOException) t : new IOException(t));
+    }
+  }
+
+  @Override
+  public void close() {
+    current = queues.size();
+    executor.shutdownNow();
+  }
+
+  /**
+   * Scan of a single region
+   */
+  private class RegionScan implements Runnable {
+
+    private final ScannerSource source;
+    private final BlockingQueue<Result> queue;
+
+    RegionScan(ScannerSource source, BlockingQueue<Result> queue) {
+      this.source = source;
+      this.queue = queue;
+    }
+
+    @Override
+    public void run() {
+      try (ScannerSource s = source;
+           ResultScanner scanner = s.open()) {
+        Result r;
+        while ((r = scanner.next()) != null) {
+          queue.put(r);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (Throwable t) {
+        error.compareAndSet(null, t);
+      }
+      try {
+        queue.put(END_OF_REGION);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.ClusterStatus;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.RegionLoad;
+import org.apache.hadoop.hbase.ServerLoad;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Region hotspot and load skew analyzer.
+ * <p>
+ * Two snapshots of the {@link ClusterStatus} taken a sample interval apart
+ * give the request rate of every region of a table, along with its store
+ * file and memstore sizes and its locality. From these the analyzer computes
+ * the skew per region and per RegionServer and plans:
+ * <ul>
+ * <li>a split of each hot region, at the midpoint chosen by its RegionServer,</li>
+ * <li>a merge of adjacent cold and small regions,</li>
+ * <li>moves of hot regions from the most loaded RegionServers to the least
+ * loaded ones.</li>
+ * </ul>
+ * The plan is only printed in dry-run mode, and submitted to the master in
+ * apply mode.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class RegionSkewAnalyzer {
+
+  /**
+   * Interval in milliseconds between the two ClusterStatus snapshots
+   */
+  public static final String SAMPLE_INTERVAL_KEY = "half.hbase.skew.sample.interval.ms";
+  /**
+   * A region is hot above this multiple of the mean region request rate
+   */
+  public static final String HOT_FACTOR_KEY = "half.hbase.skew.hot.factor";
+  /**
+   * A region is cold below this fraction of the mean region request rate
+   */
+  public static final String COLD_FACTOR_KEY = "half.hbase.skew.cold.factor";
+  /**
+   * A RegionServer is overloaded above this multiple of the mean server request rate
+   */
+  public static final String SERVER_FACTOR_KEY = "half.hbase.skew.server.factor";
+  /**
+   * Maximum size in MB of a region resulting from a merge
+   */
+  public static final String MERGE_MAX_SIZE_KEY = "half.hbase.skew.merge.max.size.mb";
+  /**
+   * Maximum number of moves of a plan
+   */
+  public static final String MAX_MOVES_KEY = "half.hbase.skew.max.moves";
+
+  public static final long DEFAULT_SAMPLE_INTERVAL = 60000L;
+  public static final float DEFAULT_HOT_FACTOR = 3.0f;
+  public static final float DEFAULT_COLD_FACTOR = 0.1f;
+  public static final float DEFAULT_SERVER_FACTOR = 1.5f;
+  public static final int DEFAULT_MERGE_MAX_SIZE = 1024;
+  public static final int DEFAULT_MAX_MOVES = 10;
+
+  /**
+   * Load of a region over the sample interval
+   */
+  public static class RegionStats {
+
+    final HRegionInfo region;
+    final ServerName server;
+    final double requestRate;
+    final int storefileSizeMB;
+    final int memstoreSizeMB;
+    final int storefiles;
+    final float locality;
+
+    RegionStats(HRegionInfo region, ServerName server, double requestRate,
+            int storefileSizeMB, int memstoreSizeMB, int storefiles, float locality) {
+      this.region = region;
+      this.server = server;
+      this.requestRate = requestRate;
+      this.storefileSizeMB = storefileSizeMB;
+      this.memstoreSizeMB = memstoreSizeMB;
+      this.storefiles = storefiles;
+      this.locality = locality;
+    }
+
+    public HRegionInfo getRegion() {
+      return region;
+    }
+
+    public ServerName getServer() {
+      return server;
+    }
+
+    /**
+     * @return requests per second
+     */
+    public double getRequestRate() {
+      return requestRate;
+    }
+
+    public int getSizeMB() {
+      return storefileSizeMB + memstoreSizeMB;
+    }
+
+    public int getStorefiles() {
+      return storefiles;
+    }
+
+    public float getLocality() {
+      return locality;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s on %s: %.1f req/s, %d MB store files, %d MB memstore, %d files, locality %.2f",
+              region.getEncodedName(), server.getServerName(), requestRate,
+              storefileSizeMB, memstoreSizeMB, storefiles, locality);
+    }
+  }
+
+  /**
+   * Action of a plan
+   */
+  public static class Action {
+
+    public enum Type {
+      SPLIT, MERGE, MOVE
+    }
+
+    final Type type;
+    final HRegionInfo region;
+    final HRegionInfo other;
+    final ServerName target;
+    final String reason;
+
+    Action(Type type, HRegionInfo region, HRegionInfo other, ServerName target, String reason) {
+      this.type = type;
+      this.region = region;
+      this.other = other;
+      this.target = target;
+      this.reason = reason;
+    }
+
+    public Type getType() {
+      return type;
+    }
+
+    public HRegionInfo getRegion() {
+      return region;
+    }
+
+    /**
+     * Submit the action to the master, without waiting for its completion
+     *
+     * @param admin Admin
+     * @throws IOException IOException
+     */
+    public void apply(Admin admin) throws IOException {
+      switch (type) {
+        case SPLIT:
+          admin.splitRegion(region.getRegionName());
+          break;
+        case MERGE:
+          admin.mergeRegions(region.getEncodedNameAsBytes(), other.getEncodedNameAsBytes(), false);
+          break;
+        case MOVE:
+          admin.move(region.getEncodedNameAsBytes(), Bytes.toBytes(target.getServerName()));
+          break;
+        default:
+          throw new IllegalStateException("Unknown action " + type);
+      }
+    }
+
+    @Override
+    public String toString() {
+      switch (type) {
+        case MERGE:
+          return "MERGE " + region.getEncodedName() + " + " + other.getEncodedName() + " (" + reason + ")";
+        case MOVE:
+          return "MOVE " + region.getEncodedName() + " to " + target.getServerName() + " (" + reason + ")";
+        default:
+          return type + " " + region.getEncodedName() + " (" + reason + ")";
+      }
+    }
+  }
+
+  /**
+   * Statistics and actions of an analysis
+   */
+  public static class Plan {
+
+    final TableName tableName;
+    final List<RegionStats> regions;
+    final Map<ServerName, Double> serverRates;
+    final double meanRate;
+    final double stddevRate;
+    final double maxRate;
+    final List<Action> actions = new ArrayList<>();
+
+    Plan(TableName tableName, List<RegionStats> regions) {
+      this.tableName = tableName;
+      this.regions = regions;
+      this.serverRates = new TreeMap<>();
+      double sum = 0;
+      double max = 0;
+      for (RegionStats r : regions) {
+        sum += r.requestRate;
+        max = Math.max(max, r.requestRate);
+        Double rate = serverRates.get(r.server);
+        serverRates.put(r.server, (rate == null ? 0 : rate) + r.requestRate);
+      }
+      this.meanRate = regions.isEmpty() ? 0 : sum / regions.size();
+      double var = 0;
+      for (RegionStats r : regions) {
+        var += (r.requestRate - meanRate) * (r.requestRate - meanRate);
+      }
+      this.stddevRate = regions.isEmpty() ? 0 : Math.sqrt(var / regions.size());
+      this.maxRate = max;
+    }
+
+    public List<RegionStats> getRegions() {
+      return regions;
+    }
+
+    public List<Action> getActions() {
+      return actions;
+    }
+
+    /**
+     * @return max region request rate divided by the mean, 1 for an even load
+     */
+    public double getRegionSkew() {
+      return meanRate == 0 ? 1 : maxRate / meanRate;
+    }
+
+    /**
+     * @return max server request rate divided by the mean, 1 for an even load
+     */
+    public double getServerSkew() {
+      if (serverRates.isEmpty()) {
+        return 1;
+      }
+      double sum = 0;
+      double max = 0;
+      for (double rate : serverRates.values()) {
+        sum += rate;
+        max = Math.max(max, rate);
+      }
+      return sum == 0 ? 1 : max / (sum / serverRates.size());
+    }
+
+    /**
+     * Print the statistics and the actions
+     */
+    public void print() {
+      System.out.println("table " + tableName + ": " + regions.size() + " regions on "
+              + serverRates.size() + " servers");
+      System.out.println(String.format("region rate mean %.1f req/s, stddev %.1f, skew %.2f",
+              meanRate, stddevRate, getRegionSkew()));
+      System.out.println(String.format("server skew %.2f", getServerSkew()));
+      for (Map.Entry<ServerName, Double> e : serverRates.entrySet()) {
+        System.out.println(String.format("  %s %.1f req/s", e.getKey().getServerName(), e.getValue()));
+      }
+      for (RegionStats r : regions) {
+        System.out.println("  " + r);
+      }
+      if (actions.isEmpty()) {
+        System.out.println("no action needed.");
+      }
+      for (Action action : actions) {
+        System.out.println(action);
+      }
+    }
+
+    /**
+     * Submit all the actions to the master
+     *
+     * @param admin Admin
+     * @throws IOException IOException
+     */
+    public void apply(Admin admin) throws IOException {
+      for (Action action : actions) {
+        action.apply(admin);
+        System.out.println(action + " submitted.");
+      }
+    }
+  }
+
+  private final Admin admin;
+  private final long sampleInterval;
+  private final double hotFactor;
+  private final double coldFactor;
+  private final double serverFactor;
+  private final int mergeMaxSize;
+  private final int maxMoves;
+
+  /**
+   *
+   * @param admin Admin
+   * @param conf Configuration
+   */
+  public RegionSkewAnalyzer(Admin admin, Configuration conf) {
+    this.admin = admin;
+    this.sampleInterval = conf.getLong(SAMPLE_INTERVAL_KEY, DEFAULT_SAMPLE_INTERVAL);
+    this.hotFactor = conf.getFloat(HOT_FACTOR_KEY, DEFAULT_HOT_FACTOR);
+    this.coldFactor = conf.getFloat(COLD_FACTOR_KEY, DEFAULT_COLD_FACTOR);
+    this.serverFactor = conf.getFloat(SERVER_FACTOR_KEY, DEFAULT_SERVER_FACTOR);
+    this.mergeMaxSize = conf.getInt(MERGE_MAX_SIZE_KEY, DEFAULT_MERGE_MAX_SIZE);
+    this.maxMoves = conf.getInt(MAX_MOVES_KEY, DEFAULT_MAX_MOVES);
+  }
+
+  /**
+   * Sample the load of a table and plan the actions
+   *
+   * @param tableName table Name
+   * @return Plan
+   * @throws IOException IOException
+   */
+  public Plan analyze(TableName tableName) throws IOException {
+    List<HRegionInfo> regions = admin.getTableRegions(tableName);
+    Map<byte[], RegionLoad> before = regionLoads(admin.getClusterStatus(), null);
+    long start = System.nanoTime();
+    try {
+      TimeUnit.MILLISECONDS.sleep(sampleInterval);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while sampling " + tableName);
+    }
+    Map<byte[], ServerName> hosts = new TreeMap<>(Bytes.BYTES_COMPARATOR);
+    Map<byte[], RegionLoad> after = regionLoads(admin.getClusterStatus(), hosts);
+    double seconds = Math.max(1e-3, (System.nanoTime() - start) / 1e9);
+
+    List<RegionStats> stats = new ArrayList<>(regions.size());
+    for (HRegionInfo hri : regions) {
+      RegionLoad now = after.get(hri.getRegionName());
+      if (now == null) {
+        // offline or in transition
+        continue;
+      }
+      RegionLoad then = before.get(hri.getRegionName());
+      long requests = now.getRequestsCount() - (then == null ? 0 : then.getRequestsCount());
+      stats.add(new RegionStats(hri, hosts.get(hri.getRegionName()),
+              Math.max(0, requests) / seconds, now.getStorefileSizeMB(), now.getMemStoreSizeMB(),
+              now.getStorefiles(), now.getDataLocality()));
+    }
+    Collections.sort(stats, (a, b) -> a.region.compareTo(b.region));
+    return plan(tableName, stats);
+  }
+
+  /**
+   * Region loads by region name, optionally recording the hosting server of each region
+   */
+  private static Map<byte[], RegionLoad> regionLoads(ClusterStatus status, Map<byte[], ServerName> hosts) {
+    Map<byte[], RegionLoad> loads = new TreeMap<>(Bytes.BYTES_COMPARATOR);
+    for (ServerName server : status.getServers()) {
+      ServerLoad load = status.getLoad(server);
+      if (load == null) {
+        continue;
+      }
+      for (Map.Entry<byte[], RegionLoad> e : load.getRegionsLoad().entrySet()) {
+        loads.put(e.getKey(), e.getValue());
+        if (hosts != null) {
+          hosts.put(e.getKey(), server);
+        }
+      }
+    }
+    return loads;
+  }
+
+  /**
+   * Plan the actions of a table from the load of its regions
+   *
+   * @param tableName table Name
+   * @param stats region loads, in key order
+   * @return Plan
+   */
+  Plan plan(TableName tableName, List<RegionStats> stats) {
+    Plan plan = new Plan(tableName, stats);
+    if (stats.isEmpty() || plan.meanRate == 0) {
+      return plan;
+    }
+    Set<HRegionInfo> planned = new HashSet<>();
+
+    // split the hot regions
+    for (RegionStats r : stats) {
+      if (r.requestRate > hotFactor * plan.meanRate) {
+        plan.actions.add(new Action(Action.Type.SPLIT, r.region, null, null,
+                String.format("%.1f req/s is %.1fx the mean", r.requestRate, r.requestRate / plan.meanRate)));
+        planned.add(r.region);
+      }
+    }
+
+    // merge adjacent cold and small regions
+    for (int i = 0; i + 1 < stats.size(); i++) {
+      RegionStats a = stats.get(i);
+      RegionStats b = stats.get(i + 1);
+      if (planned.contains(a.region) || planned.contains(b.region)) {
+        continue;
+      }
+      if (a.requestRate < coldFactor * plan.meanRate && b.requestRate < coldFactor * plan.meanRate
+              && a.getSizeMB() + b.getSizeMB() < mergeMaxSize
+              && HRegionInfo.areAdjacent(a.region, b.region)) {
+        plan.actions.add(new Action(Action.Type.MERGE, a.region, b.region, null,
+                String.format("cold regions, %d MB together", a.getSizeMB() + b.getSizeMB())));
+        planned.add(a.region);
+        planned.add(b.region);
+        i++;
+      }
+    }
+
+    // move the hottest regions off the overloaded servers
+    Map<ServerName, Double> serverRates = new HashMap<>(plan.serverRates);
+    if (serverRates.size() > 1) {
+      double mean = 0;
+      for (double rate : serverRates.values()) {
+        mean += rate;
+      }
+      mean /= serverRates.size();
+      List<RegionStats> byRate = new ArrayList<>(stats);
+      Collections.sort(byRate, (a, b) -> Double.compare(b.requestRate, a.requestRate));
+      int moves = 0;
+      for (RegionStats r : byRate) {
+        if (moves >= maxMoves) {
+          break;
+        }
+        if (planned.contains(r.region) || serverRates.get(r.server) <= serverFactor * mean) {
+          continue;
+        }
+        ServerName coldest = Collections.min(serverRates.entrySet(), Map.Entry.comparingByValue()).getKey();
+        double source = serverRates.get(r.server) - r.requestRate;
+        double target = serverRates.get(coldest) + r.requestRate;
+        // only move when it does not simply shift the hotspot
+        if (coldest.equals(r.server) || target >= serverRates.get(r.server)) {
+          continue;
+        }
+        serverRates.put(r.server, source);
+        serverRates.put(coldest, target);
+        plan.actions.add(new Action(Action.Type.MOVE, r.region, null, coldest,
+                String.format("%.1f req/s off %s", r.requestRate, r.server.getServerName())));
+        planned.add(r.region);
+        moves++;
+      }
+    }
+    return plan;
+  }
+}
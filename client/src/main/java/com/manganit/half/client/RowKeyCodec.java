@@ -0,0 +1,273 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Row key codec spreading monotonic keys over salt buckets.
+ * <p>
+ * A key is built from components whose binary encoding keeps their natural
+ * order: strings are UTF-8 terminated by 0x00, numbers are fixed width with
+ * the sign bit flipped, and reversed timestamps sort the newest first. When
+ * buckets are configured, a one byte salt derived from the hash of the
+ * unsalted key is prepended, so that consecutive keys land on different
+ * regions. Use {@link SaltedScanner} to read a key range back in order.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class RowKeyCodec {
+
+  private final int buckets;
+
+  /**
+   * @param buckets number of salt buckets, from 0 (no salt) to 256
+   */
+  public RowKeyCodec(int buckets) {
+    if (buckets < 0 || buckets > 256) {
+      throw new IllegalArgumentException("Salt buckets must be between 0 and 256 : " + buckets);
+    }
+    this.buckets = buckets;
+  }
+
+  /**
+   * @return number of salt buckets, 0 when keys are not salted
+   */
+  public int getBuckets() {
+    return buckets;
+  }
+
+  /**
+   * @return length of the salt prefix
+   */
+  public int getSaltLength() {
+    return buckets > 0 ? 1 : 0;
+  }
+
+  /**
+   * @param key unsalted key
+   * @return salt bucket of the key
+   */
+  public int bucketOf(byte[] key) {
+    return buckets > 0 ? (Bytes.hashCode(key, key.length) & Integer.MAX_VALUE) % buckets : 0;
+  }
+
+  /**
+   * @param key unsalted key
+   * @return the key prefixed by its salt
+   */
+  public byte[] salt(byte[] key) {
+    return buckets > 0 ? withBucket(bucketOf(key), key) : key;
+  }
+
+  /**
+   * @param bucket salt bucket
+   * @param key unsalted key
+   * @return the key prefixed by the bucket
+   */
+  public byte[] withBucket(int bucket, byte[] key) {
+    if (buckets == 0) {
+      return key;
+    }
+    byte[] salted = new byte[key.length + 1];
+    salted[0] = (byte) bucket;
+    System.arraycopy(key, 0, salted, 1, key.length);
+    return salted;
+  }
+
+  /**
+   * @param salted salted key
+   * @return the key without its salt
+   */
+  public byte[] unsalt(byte[] salted) {
+    return buckets > 0 ? Arrays.copyOfRange(salted, 1, salted.length) : salted;
+  }
+
+  /**
+   * @return a builder of composite keys salted by this codec
+   */
+  public KeyBuilder newKey() {
+    return new KeyBuilder();
+  }
+
+  /**
+   * @param key salted key
+   * @return a reader of the components following the salt
+   */
+  public KeyReader read(byte[] key) {
+    return new KeyReader(key, getSaltLength());
+  }
+
+  /**
+   * @param timestamp timestamp
+   * @return a value sorting the newest timestamps first
+   */
+  public static long reverse(long timestamp) {
+    return Long.MAX_VALUE - timestamp;
+  }
+
+  /**
+   * Composite key builder
+   */
+  public class KeyBuilder {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+
+    private KeyBuilder() {
+    }
+
+    /**
+     * @param value string without 0x00, sorted as UTF-8 bytes
+     * @return this
+     */
+    public KeyBuilder add(String value) {
+      byte[] b = Bytes.toBytes(value);
+      out.write(b, 0, b.length);
+      out.write(0);
+      return this;
+    }
+
+    /**
+     * @param value long, sorted as a signed number
+     * @return this
+     */
+    public KeyBuilder add(long value) {
+      byte[] b = Bytes.toBytes(value ^ Long.MIN_VALUE);
+      out.write(b, 0, b.length);
+      return this;
+    }
+
+    /**
+     * @param value int, sorted as a signed number
+     * @return this
+     */
+    public KeyBuilder add(int value) {
+      byte[] b = Bytes.toBytes(value ^ Integer.MIN_VALUE);
+      out.write(b, 0, b.length);
+      return this;
+    }
+
+    /**
+     * @param timestamp timestamp, sorted newest first
+     * @return this
+     */
+    public KeyBuilder addReversedTimestamp(long timestamp) {
+      byte[] b = Bytes.toBytes(reverse(timestamp));
+      out.write(b, 0, b.length);
+      return this;
+    }
+
+    /**
+     * @param value raw bytes, must be fixed width or last to keep the order
+     * @return this
+     */
+    public KeyBuilder add(byte[] value) {
+      out.write(value, 0, value.length);
+      return this;
+    }
+
+    /**
+     * @return the unsalted key, e.g. to build a scan range
+     */
+    public byte[] toPrefix() {
+      return out.toByteArray();
+    }
+
+    /**
+     * @return the salted key
+     */
+    public byte[] build() {
+      return salt(out.toByteArray());
+    }
+  }
+
+  /**
+   * Composite key reader, components are read in the order they were added
+   */
+  public static class KeyReader {
+
+    private final byte[] key;
+    private int position;
+
+    private KeyReader(byte[] key, int position) {
+      this.key = key;
+      this.position = position;
+    }
+
+    /**
+     * @return next string component
+     */
+    public String readString() {
+      int end = position;
+      while (end < key.length && key[end] != 0) {
+        end++;
+      }
+      String value = Bytes.toString(key, position, end - position);
+      position = Math.min(end + 1, key.length);
+      return value;
+    }
+
+    /**
+     * @return next long component
+     */
+    public long readLong() {
+      long value = Bytes.toLong(key, position) ^ Long.MIN_VALUE;
+      position += Bytes.SIZEOF_LONG;
+      return value;
+    }
+
+    /**
+     * @return next int component
+     */
+    public int readInt() {
+      int value = Bytes.toInt(key, position) ^ Integer.MIN_VALUE;
+      position += Bytes.SIZEOF_INT;
+      return value;
+    }
+
+    /**
+     * @return next reversed timestamp component, as the original timestamp
+     */
+    public long readReversedTimestamp() {
+      long value = reverse(Bytes.toLong(key, position));
+      position += Bytes.SIZEOF_LONG;
+      return value;
+    }
+
+    /**
+     * @param length component length
+     * @return next raw component
+     */
+    public byte[] readBytes(int length) {
+      byte[] value = Arrays.copyOfRange(key, position, position + length);
+      position += length;
+      return value;
+    }
+
+    /**
+     * @return remaining bytes
+     */
+    public byte[] readRemaining() {
+      return readBytes(key.length - position);
+    }
+  }
+}
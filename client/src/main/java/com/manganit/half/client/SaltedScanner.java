@@ -0,0 +1,252 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import com.manganit.half.util.NamedThreadFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Scanner reading an unsalted key range from all the salt buckets of a
+ * {@link RowKeyCodec} in parallel, and merging the rows back in key order,
+ * descending for a reversed scan.
+ * <p>
+ * Every bucket is read by its own thread, since the merge needs the head of
+ * each bucket to make progress.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class SaltedScanner {
+
+  private static final Result END_OF_BUCKET = Result.create(new Cell[0]);
+
+  private final Connection connection;
+  private final TableName tableName;
+  private final RowKeyCodec codec;
+  private int caching = 1000;
+  private int queueSize = 1000;
+
+  /**
+   *
+   * @param connection Connection
+   * @param tableName table Name
+   * @param codec codec used to write the keys
+   */
+  public SaltedScanner(Connection connection, TableName tableName, RowKeyCodec codec) {
+    this.connection = connection;
+    this.tableName = tableName;
+    this.codec = codec;
+  }
+
+  /**
+   * @param caching number of rows fetched per RPC
+   * @return this
+   */
+  public SaltedScanner setCaching(int caching) {
+    this.caching = caching;
+    return this;
+  }
+
+  /**
+   * @param queueSize number of rows prefetched per bucket
+   * @return this
+   */
+  public SaltedScanner setQueueSize(int queueSize) {
+    this.queueSize = queueSize;
+    return this;
+  }
+
+  /**
+   * Build the scan of one bucket
+   *
+   * @param template Scan with an unsalted key range
+   * @param bucket salt bucket
+   * @return Scan restricted to the bucket
+   * @throws IOException IOException
+   */
+  Scan bucketScan(Scan template, int bucket) throws IOException {
+    Scan scan = new Scan(template);
+    boolean last = bucket + 1 == codec.getBuckets();
+    if (template.getStartRow().length > 0) {
+      scan.setStartRow(codec.withBucket(bucket, template.getStartRow()));
+    } else if (!template.isReversed()) {
+      scan.setStartRow(new byte[]{(byte) bucket});
+    } else if (!last) {
+      // the first key of the next bucket, dropped by the bucket reader
+      scan.setStartRow(new byte[]{(byte) (bucket + 1)});
+    }
+    if (template.getStopRow().length > 0) {
+      scan.setStopRow(codec.withBucket(bucket, template.getStopRow()));
+    } else if (!template.isReversed()) {
+      if (!last) {
+        scan.setStopRow(new byte[]{(byte) (bucket + 1)});
+      }
+    } else {
+      // below the first key of the bucket, above most keys of the previous one
+      scan.setStopRow(ScanQuery.previousPrefix(new byte[]{(byte) bucket}));
+    }
+    scan.setCaching(caching);
+    return scan;
+  }
+
+  /**
+   * @param reversed descending order
+   * @return order of the rows of all the buckets, ignoring the salt
+   */
+  Comparator<Result> rowOrder(boolean reversed) {
+    final int salt = codec.getSaltLength();
+    Comparator<Result> order = (a, b) -> {
+      byte[] ra = a.getRow();
+      byte[] rb = b.getRow();
+      return Bytes.compareTo(ra, salt, ra.length - salt, rb, salt, rb.length - salt);
+    };
+    return reversed ? order.reversed() : order;
+  }
+
+  /**
+   * Scan an unsalted key range in key order
+   *
+   * @param template Scan with an unsalted key range, columns and filters
+   * @param consumer called from the calling thread for each row
+   * @throws IOException IOException
+   */
+  public void scan(Scan template, Consumer<Result> consumer) throws IOException {
+    if (codec.getBuckets() == 0) {
+      try (Table table = connection.getTable(tableName);
+           ResultScanner scanner = table.getScanner(template)) {
+        for (Result r : scanner) {
+          consumer.accept(r);
+        }
+      }
+      return;
+    }
+    final int buckets = codec.getBuckets();
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+    final List<BlockingQueue<Result>> queues = new ArrayList<>(buckets);
+    ExecutorService executor = Executors.newFixedThreadPool(buckets,
+            new NamedThreadFactory("SaltedScanner-" + tableName.getNameAsString() + "-"));
+    try {
+      for (int b = 0; b < buckets; b++) {
+        final byte salt = (byte) b;
+        final Scan scan = bucketScan(template, b);
+        final BlockingQueue<Result> queue = new ArrayBlockingQueue<>(queueSize);
+        queues.add(queue);
+        executor.execute(() -> {
+          try (Table table = connection.getTable(tableName);
+               ResultScanner scanner = table.getScanner(scan)) {
+            for (Result r : scanner) {
+              // the open ends of a reversed scan may reach a neighbour bucket
+              if (r.getRow()[0] == salt) {
+                queue.put(r);
+              }
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          } catch (Throwable t) {
+            error.compareAndSet(null, t);
+          }
+          try {
+            queue.put(END_OF_BUCKET);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+      }
+      executor.shutdown();
+      merge(queues, rowOrder(template.isReversed()), error, consumer);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * k-way merge of the bucket heads, ordered by unsalted row key
+   */
+  private void merge(List<BlockingQueue<Result>> queues, Comparator<Result> order,
+          AtomicReference<Throwable> error, Consumer<Result> consumer) throws IOException {
+    PriorityQueue<Head> heads = new PriorityQueue<>(queues.size(), (a, b) -> order.compare(a.result, b.result));
+    for (BlockingQueue<Result> queue : queues) {
+      Head head = take(queue, error);
+      if (head != null) {
+        heads.add(head);
+      }
+    }
+    while (!heads.isEmpty()) {
+      Head head = heads.poll();
+      consumer.accept(head.result);
+      Head next = take(head.queue, error);
+      if (next != null) {
+        heads.add(next);
+      }
+    }
+  }
+
+  private Head take(BlockingQueue<Result> queue, AtomicReference<Throwable> error) throws IOException {
+    Result r;
+    try {
+      r = queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted scan of " + tableName);
+    }
+    if (r == END_OF_BUCKET) {
+      Throwable t = error.get();
+      if (t != null) {
+        throw t instanceof IOException ? (IOException) t : new IOException(t);
+      }
+      return null;
+    }
+    return new Head(r, queue);
+  }
+
+  /**
+   * Current row of a bucket
+   */
+  private static class Head {
+
+    private final Result result;
+    private final BlockingQueue<Result> queue;
+
+    Head(Result result, BlockingQueue<Result> queue) {
+      this.result = result;
+      this.queue = queue;
+    }
+  }
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.FuzzyRowFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.PageFilter;
+import org.apache.hadoop.hbase.filter.PrefixFilter;
+import org.apache.hadoop.hbase.filter.SingleColumnValueExcludeFilter;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+
+/**
+ * Typed builder of server side filtered and projected scans.
+ * <p>
+ * Only the projected columns and the rows accepted by the filters cross the
+ * wire. Filters are combined in a {@link FilterList}, all of them must pass
+ * unless {@link #matchAny()} is called. The columns tested by the value
+ * filters are read along with the projection, and left out of the results
+ * when they were not projected. Run it with
+ * {@link HBaseClient#query(String, ScanQuery)}.
+ * <pre>
+ * ScanQuery query = new ScanQuery()
+ *         .columns("d:name", "d:amount")
+ *         .prefix(Bytes.toBytes("2017-"))
+ *         .whereEquals("d", "status", Bytes.toBytes("OK"))
+ *         .limit(100);
+ * </pre>
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class ScanQuery {
+
+  private final List<byte[][]> columns = new ArrayList<>();
+  private final List<Filter> filters = new ArrayList<>();
+  private FilterList.Operator operator = FilterList.Operator.MUST_PASS_ALL;
+  private byte[] startRow = HConstants.EMPTY_START_ROW;
+  private byte[] stopRow = HConstants.EMPTY_END_ROW;
+  private byte[] prefix = null;
+  private long minStamp = 0L;
+  private long maxStamp = Long.MAX_VALUE;
+  private int maxVersions = 1;
+  private boolean reversed = false;
+  private boolean cacheBlocks = true;
+  private int caching = 100;
+  private long limit = -1;
+
+  /**
+   * Project on some columns
+   *
+   * @param columns "family" or "family:qualifier"
+   * @return this
+   */
+  public ScanQuery columns(String... columns) {
+    for (String column : columns) {
+      this.columns.add(KeyValue.parseColumn(Bytes.toBytes(column)));
+    }
+    return this;
+  }
+
+  /**
+   * Project on a column
+   *
+   * @param family family
+   * @param qualifier qualifier, null for the whole family
+   * @return this
+   */
+  public ScanQuery column(byte[] family, byte[] qualifier) {
+    columns.add(qualifier == null ? new byte[][]{family} : new byte[][]{family, qualifier});
+    return this;
+  }
+
+  /**
+   * Restrict to a key range, the start key being the greater one for reverse scans
+   *
+   * @param startRow inclusive start key
+   * @param stopRow exclusive stop key
+   * @return this
+   */
+  public ScanQuery range(byte[] startRow, byte[] stopRow) {
+    this.startRow = startRow;
+    this.stopRow = stopRow;
+    return this;
+  }
+
+  /**
+   * Restrict to the keys starting with a prefix, within the key range if one
+   * is also given
+   *
+   * @param prefix key prefix
+   * @return this
+   */
+  public ScanQuery prefix(byte[] prefix) {
+    this.prefix = prefix;
+    return this;
+  }
+
+  /**
+   * Restrict to the cells written in a time range
+   *
+   * @param minStamp inclusive minimum timestamp
+   * @param maxStamp exclusive maximum timestamp
+   * @return this
+   */
+  public ScanQuery timeRange(long minStamp, long maxStamp) {
+    this.minStamp = minStamp;
+    this.maxStamp = maxStamp;
+    return this;
+  }
+
+  /**
+   * @param maxVersions number of versions per column
+   * @return this
+   */
+  public ScanQuery versions(int maxVersions) {
+    this.maxVersions = maxVersions;
+    return this;
+  }
+
+  /**
+   * Keep the rows where a column equals a value, rows without the column are dropped
+   *
+   * @param family family
+   * @param qualifier qualifier
+   * @param value value
+   * @return this
+   */
+  public ScanQuery whereEquals(String family, String qualifier, byte[] value) {
+    return where(family, qualifier, CompareOp.EQUAL, value);
+  }
+
+  /**
+   * Keep the rows where a column compares to a value, rows without the column are dropped
+   *
+   * @param family family
+   * @param qualifier qualifier
+   * @param op comparison
+   * @param value value
+   * @return this
+   */
+  public ScanQuery where(String family, String qualifier, CompareOp op, byte[] value) {
+    SingleColumnValueFilter filter = new SingleColumnValueFilter(
+            Bytes.toBytes(family), Bytes.toBytes(qualifier), op, value);
+    filter.setFilterIfMissing(true);
+    filter.setLatestVersionOnly(true);
+    return filter(filter);
+  }
+
+  /**
+   * Keep the rows matching a fuzzy key, e.g. a fixed width key with unknown parts
+   *
+   * @param key row key template
+   * @param mask mask, 0 for the fixed bytes and 1 for the unknown ones
+   * @return this
+   */
+  public ScanQuery fuzzy(byte[] key, byte[] mask) {
+    return filter(new FuzzyRowFilter(Arrays.asList(new Pair<>(key, mask))));
+  }
+
+  /**
+   * Return the keys without the values
+   *
+   * @return this
+   */
+  public ScanQuery keysOnly() {
+    return filter(new KeyOnlyFilter());
+  }
+
+  /**
+   * Return only the first cell of each row, e.g. to count rows
+   *
+   * @return this
+   */
+  public ScanQuery firstCellOnly() {
+    return filter(new FirstKeyOnlyFilter());
+  }
+
+  /**
+   * Stop each RegionServer after a page of rows, see also {@link #limit(long)}
+   *
+   * @param pageSize rows per RegionServer
+   * @return this
+   */
+  public ScanQuery page(long pageSize) {
+    return filter(new PageFilter(pageSize));
+  }
+
+  /**
+   * Add a custom filter
+   *
+   * @param filter Filter
+   * @return this
+   */
+  public ScanQuery filter(Filter filter) {
+    filters.add(filter);
+    return this;
+  }
+
+  /**
+   * Keep the rows accepted by any filter instead of all of them
+   *
+   * @return this
+   */
+  public ScanQuery matchAny() {
+    this.operator = FilterList.Operator.MUST_PASS_ONE;
+    return this;
+  }
+
+  /**
+   * @param reversed scan in descending key order
+   * @return this
+   */
+  public ScanQuery reversed(boolean reversed) {
+    this.reversed = reversed;
+    return this;
+  }
+
+  /**
+   * @param caching rows fetched per RPC
+   * @return this
+   */
+  public ScanQuery caching(int caching) {
+    this.caching = caching;
+    return this;
+  }
+
+  /**
+   * @param cacheBlocks keep the scanned blocks in the RegionServer cache
+   * @return this
+   */
+  public ScanQuery cacheBlocks(boolean cacheBlocks) {
+    this.cacheBlocks = cacheBlocks;
+    return this;
+  }
+
+  /**
+   * @param limit maximum number of rows returned, -1 for no limit
+   * @return this
+   */
+  public ScanQuery limit(long limit) {
+    this.limit = limit;
+    return this;
+  }
+
+  /**
+   * @return maximum number of rows returned, -1 for no limit
+   */
+  public long getLimit() {
+    return limit;
+  }
+
+  /**
+   * @return the Scan
+   * @throws IOException IOException
+   */
+  public Scan build() throws IOException {
+    Scan scan = new Scan();
+    scan.setReversed(reversed);
+    scan.setStartRow(startRow);
+    scan.setStopRow(stopRow);
+    List<Filter> all = new ArrayList<>(filters);
+    if (prefix != null) {
+      // intersect the prefix keys with the key range, an empty stop key is unbounded
+      byte[] start;
+      byte[] stop;
+      if (reversed) {
+        // start at the first key after the prefix and stop below it, the filter drops both ends
+        start = min(startRow, nextPrefix(prefix));
+        stop = max(stopRow, previousPrefix(prefix));
+        if (start.length > 0 && Bytes.compareTo(start, stop) <= 0) {
+          throw new IllegalArgumentException("Key range does not overlap the prefix " + Bytes.toStringBinary(prefix));
+        }
+      } else {
+        start = Bytes.compareTo(startRow, prefix) > 0 ? startRow : prefix;
+        stop = min(stopRow, nextPrefix(prefix));
+        if (stop.length > 0 && Bytes.compareTo(start, stop) >= 0) {
+          throw new IllegalArgumentException("Key range does not overlap the prefix " + Bytes.toStringBinary(prefix));
+        }
+      }
+      scan.setStartRow(start);
+      scan.setStopRow(stop);
+      all.add(0, new PrefixFilter(prefix));
+    }
+    for (byte[][] column : columns) {
+      if (column.length > 1 && column[1].length > 0) {
+        scan.addColumn(column[0], column[1]);
+      } else {
+        scan.addFamily(column[0]);
+      }
+    }
+    if (!columns.isEmpty()) {
+      // a value filter only sees the projected columns, the ones not
+      // requested are read for the filter and left out of the results
+      for (int i = 0; i < all.size(); i++) {
+        if (all.get(i) instanceof SingleColumnValueFilter) {
+          SingleColumnValueFilter f = (SingleColumnValueFilter) all.get(i);
+          if (!isProjected(f.getFamily(), f.getQualifier())) {
+            scan.addColumn(f.getFamily(), f.getQualifier());
+            all.set(i, excludeColumn(f));
+          }
+        }
+      }
+    }
+    scan.setTimeRange(minStamp, maxStamp);
+    scan.setMaxVersions(maxVersions);
+    scan.setCaching(limit > 0 ? (int) Math.min(caching, limit) : caching);
+    scan.setCacheBlocks(cacheBlocks);
+    if (all.size() == 1) {
+      scan.setFilter(all.get(0));
+    } else if (!all.isEmpty()) {
+      if (prefix != null && operator == FilterList.Operator.MUST_PASS_ONE) {
+        // the prefix always applies, the other filters are alternatives
+        FilterList any = new FilterList(FilterList.Operator.MUST_PASS_ONE, all.subList(1, all.size()));
+        scan.setFilter(new FilterList(FilterList.Operator.MUST_PASS_ALL, all.get(0), any));
+      } else {
+        scan.setFilter(new FilterList(operator, all));
+      }
+    }
+    return scan;
+  }
+
+  private boolean isProjected(byte[] family, byte[] qualifier) {
+    for (byte[][] column : columns) {
+      if (Bytes.equals(column[0], family)
+              && (column.length == 1 || column[1].length == 0 || Bytes.equals(column[1], qualifier))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the same test, leaving the tested column out of the results
+   */
+  private static Filter excludeColumn(SingleColumnValueFilter f) {
+    if (f instanceof SingleColumnValueExcludeFilter) {
+      return f;
+    }
+    SingleColumnValueExcludeFilter exclude = new SingleColumnValueExcludeFilter(
+            f.getFamily(), f.getQualifier(), f.getOperator(), f.getComparator());
+    exclude.setFilterIfMissing(f.getFilterIfMissing());
+    exclude.setLatestVersionOnly(f.getLatestVersionOnly());
+    return exclude;
+  }
+
+  /**
+   * @param prefix key prefix
+   * @return the smallest key greater than all the keys starting with the prefix,
+   * empty when there is none
+   */
+  static byte[] nextPrefix(byte[] prefix) {
+    for (int i = prefix.length - 1; i >= 0; i--) {
+      if (prefix[i] != (byte) 0xff) {
+        byte[] next = Arrays.copyOf(prefix, i + 1);
+        next[i]++;
+        return next;
+      }
+    }
+    return HConstants.EMPTY_END_ROW;
+  }
+
+  /**
+   * @param prefix key prefix
+   * @return a key smaller than all the keys starting with the prefix and
+   * greater than most of the others, empty when there is none
+   */
+  static byte[] previousPrefix(byte[] prefix) {
+    if (prefix.length == 0) {
+      return HConstants.EMPTY_START_ROW;
+    }
+    int last = prefix.length - 1;
+    if (prefix[last] == 0) {
+      // nothing sorts between the shorter key and the prefix
+      return Arrays.copyOf(prefix, last);
+    }
+    byte[] previous = Bytes.add(prefix, Bytes.createMaxByteArray(9));
+    previous[last]--;
+    return previous;
+  }
+
+  /**
+   * Smaller of two upper bounds, an empty key being unbounded
+   */
+  private static byte[] min(byte[] left, byte[] right) {
+    if (left.length == 0) {
+      return right;
+    }
+    if (right.length == 0) {
+      return left;
+    }
+    return Bytes.compareTo(left, right) <= 0 ? left : right;
+  }
+
+  /**
+   * Greater of two lower bounds, an empty key being unbounded
+   */
+  private static byte[] max(byte[] left, byte[] right) {
+    return Bytes.compareTo(left, right) >= 0 ? left : right;
+  }
+}
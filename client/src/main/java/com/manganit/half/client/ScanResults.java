@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Table;
+
+/**
+ * Lazy iterator over the rows of a {@link ScanQuery}.
+ * <p>
+ * Rows are fetched from the RegionServers as the iteration goes, one caching
+ * batch at a time. Close it to release the server side scanner, which is
+ * done automatically once the last row or the limit is reached.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class ScanResults implements Iterator<Result>, Iterable<Result>, Closeable {
+
+  private final Table table;
+  private final ResultScanner scanner;
+  private final long limit;
+  private long count = 0;
+  private Result next = null;
+  private boolean closed = false;
+
+  ScanResults(Table table, ResultScanner scanner, long limit) {
+    this.table = table;
+    this.scanner = scanner;
+    this.limit = limit;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (next == null && !closed) {
+      if (limit >= 0 && count >= limit) {
+        closeQuietly();
+        return false;
+      }
+      try {
+        next = scanner.next();
+      } catch (IOException e) {
+        closeQuietly();
+        throw new UncheckedIOException(e);
+      }
+      if (next == null) {
+        closeQuietly();
+      }
+    }
+    return next != null;
+  }
+
+  @Override
+  public Result next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    Result r = next;
+    next = null;
+    count++;
+    return r;
+  }
+
+  /**
+   * @return this, for use in a for-each loop
+   */
+  @Override
+  public Iterator<Result> iterator() {
+    return this;
+  }
+
+  private void closeQuietly() {
+    try {
+      close();
+    } catch (IOException e) {
+      // the scanner lease expires on its own
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      scanner.close();
+      table.close();
+    }
+  }
+}
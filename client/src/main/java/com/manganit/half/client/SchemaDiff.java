@@ -0,0 +1,228 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+
+/**
+ * Differences between a live table and its {@link TableSpec}, and their
+ * online application.
+ * <p>
+ * Family changes are applied one family at a time with
+ * {@code modifyColumn}/{@code addColumn}/{@code deleteColumn}, table level
+ * changes with a single {@code modifyTable}. With the online schema update
+ * enabled, the default in HBase 1.x, the master reopens the regions one
+ * after the other so the table stays available; each change waits for the
+ * reopen of all the regions before the next one is submitted. The new
+ * compression or encoding applies to the HFiles written afterwards, a major
+ * compaction rewrites the existing ones.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class SchemaDiff {
+
+  private final TableSpec spec;
+  private final HTableDescriptor desired;
+  private final boolean create;
+  private final boolean tableChanged;
+  private final List<HColumnDescriptor> added = new ArrayList<>();
+  private final List<HColumnDescriptor> modified = new ArrayList<>();
+  private final List<HColumnDescriptor> removed = new ArrayList<>();
+  private final List<String> changes = new ArrayList<>();
+
+  /**
+   *
+   * @param live live descriptor, null when the table does not exist
+   * @param spec desired state
+   */
+  public SchemaDiff(HTableDescriptor live, TableSpec spec) {
+    this.spec = spec;
+    if (live == null) {
+      this.desired = spec.toDescriptor();
+      this.create = true;
+      this.tableChanged = false;
+      changes.add("create table " + spec.getTableName() + " with "
+              + (spec.getSplitKeys().length + 1) + " regions");
+      for (HColumnDescriptor hcd : desired.getColumnFamilies()) {
+        added.add(hcd);
+        changes.add("add family " + hcd.getNameAsString());
+      }
+      return;
+    }
+    this.desired = spec.toDescriptor(live);
+    this.create = false;
+    this.tableChanged = compare("table", live.getValues(), desired.getValues());
+    for (HColumnDescriptor hcd : desired.getColumnFamilies()) {
+      HColumnDescriptor before = live.getFamily(hcd.getName());
+      if (before == null) {
+        added.add(hcd);
+        changes.add("add family " + hcd.getNameAsString());
+      } else if (compare("family " + hcd.getNameAsString(), before.getValues(), hcd.getValues())) {
+        modified.add(hcd);
+      }
+    }
+    for (HColumnDescriptor hcd : live.getColumnFamilies()) {
+      if (!desired.hasFamily(hcd.getName())) {
+        removed.add(hcd);
+        changes.add("drop family " + hcd.getNameAsString());
+      }
+    }
+  }
+
+  /**
+   * Record the changed values
+   *
+   * @return true if any value changed
+   */
+  private boolean compare(String what, Map<ImmutableBytesWritable, ImmutableBytesWritable> before,
+          Map<ImmutableBytesWritable, ImmutableBytesWritable> after) {
+    Map<String, String> from = strings(before);
+    Map<String, String> to = strings(after);
+    boolean changed = false;
+    for (Map.Entry<String, String> e : to.entrySet()) {
+      String old = from.get(e.getKey());
+      if (!Objects.equals(old, e.getValue())) {
+        changes.add(what + " " + e.getKey() + ": " + old + " -> " + e.getValue());
+        changed = true;
+      }
+    }
+    for (String key : from.keySet()) {
+      if (!to.containsKey(key)) {
+        changes.add(what + " " + key + ": " + from.get(key) + " -> default");
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  private static Map<String, String> strings(Map<ImmutableBytesWritable, ImmutableBytesWritable> values) {
+    Map<String, String> strings = new TreeMap<>();
+    for (Map.Entry<ImmutableBytesWritable, ImmutableBytesWritable> e : values.entrySet()) {
+      strings.put(Bytes.toString(e.getKey().get(), e.getKey().getOffset(), e.getKey().getLength()),
+              Bytes.toString(e.getValue().get(), e.getValue().getOffset(), e.getValue().getLength()));
+    }
+    return strings;
+  }
+
+  /**
+   * @return true if the live table already matches the spec
+   */
+  public boolean isEmpty() {
+    return changes.isEmpty();
+  }
+
+  /**
+   * @return human readable changes
+   */
+  public List<String> getChanges() {
+    return changes;
+  }
+
+  /**
+   * Print the changes
+   */
+  public void print() {
+    if (changes.isEmpty()) {
+      System.out.println("table " + spec.getTableName() + " is up to date.");
+    }
+    for (String change : changes) {
+      System.out.println(change);
+    }
+  }
+
+  /**
+   * Apply the changes online, waiting for the regions to reopen after each one
+   *
+   * @param admin Admin
+   * @param timeout maximum time in milliseconds to wait for each change
+   * @throws IOException IOException
+   */
+  public void apply(Admin admin, long timeout) throws IOException {
+    TableName name = spec.getTableName();
+    if (create) {
+      if (spec.getSplitKeys().length == 0) {
+        admin.createTable(desired);
+      } else {
+        admin.createTable(desired, spec.getSplitKeys());
+      }
+      System.out.println("create table " + name + " ok.");
+      return;
+    }
+    if (tableChanged) {
+      // one modifyTable carries the family changes too
+      admin.modifyTable(name, desired);
+      waitForAlter(admin, name, timeout);
+      System.out.println("modify table " + name + " ok.");
+      return;
+    }
+    for (HColumnDescriptor hcd : added) {
+      admin.addColumn(name, hcd);
+      waitForAlter(admin, name, timeout);
+      System.out.println("add family " + hcd.getNameAsString() + " ok.");
+    }
+    for (HColumnDescriptor hcd : modified) {
+      admin.modifyColumn(name, hcd);
+      waitForAlter(admin, name, timeout);
+      System.out.println("modify family " + hcd.getNameAsString() + " ok.");
+    }
+    for (HColumnDescriptor hcd : removed) {
+      admin.deleteColumn(name, hcd.getName());
+      waitForAlter(admin, name, timeout);
+      System.out.println("drop family " + hcd.getNameAsString() + " ok.");
+    }
+  }
+
+  /**
+   * Wait until all the regions of the table have reopened with the new schema
+   */
+  private static void waitForAlter(Admin admin, TableName name, long timeout) throws IOException {
+    long deadline = System.currentTimeMillis() + timeout;
+    while (true) {
+      Pair<Integer, Integer> status = admin.getAlterStatus(name);
+      if (status.getFirst() == 0) {
+        return;
+      }
+      if (System.currentTimeMillis() > deadline) {
+        throw new IOException("Regions of " + name + " not reopened in time: "
+                + status.getFirst() + "/" + status.getSecond() + " pending");
+      }
+      try {
+        TimeUnit.SECONDS.sleep(1);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while altering " + name);
+      }
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.ClientSideRegionScanner;
+import org.apache.hadoop.hbase.client.IsolationLevel;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.snapshot.RestoreSnapshotHelper;
+import org.apache.hadoop.hbase.util.FSUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Offline scanner reading the HFiles of an HBase snapshot directly from HDFS.
+ * <p>
+ * The snapshot is restored as file links under a temporary directory, then
+ * every region overlapping the scan range is opened client side and read on
+ * a bounded pool, like {@code TableSnapshotScanner} but in parallel. The
+ * RegionServers are not involved, so their block cache and handlers are left
+ * to the online traffic. The temporary directory is removed after the scan.
+ * <p>
+ * The restore directory must be on the same FileSystem as the HBase root
+ * directory, and the user needs read access to the HBase files.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class SnapshotScanner {
+
+  private final static Logger logger = Logger.getLogger(SnapshotScanner.class);
+
+  private final Configuration conf;
+  private final String snapshotName;
+  private final Path restoreRoot;
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+  private boolean keepOrder = false;
+  private int queueSize = 10000;
+
+  /**
+   *
+   * @param conf Configuration
+   * @param snapshotName name of an existing snapshot
+   * @param restoreRoot parent of the temporary restore directory
+   */
+  public SnapshotScanner(Configuration conf, String snapshotName, Path restoreRoot) {
+    this.conf = new Configuration(conf);
+    // the regions are opened client side, they must not allocate a block cache
+    this.conf.setFloat("hfile.block.cache.size", 0.0f);
+    this.snapshotName = snapshotName;
+    this.restoreRoot = restoreRoot;
+  }
+
+  /**
+   * @param parallelism number of regions read concurrently
+   * @return this
+   */
+  public SnapshotScanner setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+    return this;
+  }
+
+  /**
+   * @param keepOrder deliver the rows in key order
+   * @return this
+   */
+  public SnapshotScanner setKeepOrder(boolean keepOrder) {
+    this.keepOrder = keepOrder;
+    return this;
+  }
+
+  /**
+   * @param queueSize number of rows buffered between the scanners and the consumer
+   * @return this
+   */
+  public SnapshotScanner setQueueSize(int queueSize) {
+    this.queueSize = queueSize;
+    return this;
+  }
+
+  /**
+   * Scan the key range of a template
+   *
+   * @param template Scan giving the key range, columns and filters
+   * @param consumer called from the calling thread for each row
+   * @throws IOException IOException
+   */
+  public void scan(Scan template, Consumer<Result> consumer) throws IOException {
+    final Path rootDir = FSUtils.getRootDir(conf);
+    final FileSystem fs = rootDir.getFileSystem(conf);
+    final Path restoreDir = new Path(restoreRoot, UUID.randomUUID().toString());
+    try {
+      RestoreSnapshotHelper.RestoreMetaChanges meta =
+              RestoreSnapshotHelper.copySnapshotForScanner(conf, fs, rootDir, restoreDir, snapshotName);
+      final HTableDescriptor htd = meta.getTableDescriptor();
+      List<HRegionInfo> regions = new ArrayList<>();
+      for (HRegionInfo hri : meta.getRegionsToAdd()) {
+        // the daughters of a split parent hold its rows
+        if (hri.isOffline() && (hri.isSplit() || hri.isSplitParent())) {
+          continue;
+        }
+        if (CellUtil.overlappingKeys(template.getStartRow(), template.getStopRow(),
+                hri.getStartKey(), hri.getEndKey())) {
+          regions.add(hri);
+        }
+      }
+      Collections.sort(regions);
+      logger.info("Scanning " + regions.size() + " regions of snapshot " + snapshotName);
+      List<RegionMerger.ScannerSource> sources = new ArrayList<>(regions.size());
+      for (final HRegionInfo hri : regions) {
+        final Scan scan = new Scan(template);
+        scan.setIsolationLevel(IsolationLevel.READ_UNCOMMITTED);
+        sources.add(() -> new ClientSideRegionScanner(conf, fs, restoreDir, htd, hri, scan, null));
+      }
+      try (RegionMerger it = new RegionMerger("SnapshotScanner-" + snapshotName, sources,
+              parallelism, keepOrder, queueSize, 100)) {
+        while (it.hasNext()) {
+          consumer.accept(it.next());
+        }
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+    } finally {
+      fs.delete(restoreDir, true);
+    }
+  }
+
+  /**
+   * Scan a table offline through a snapshot, taken for the occasion unless it
+   * already exists, and deleted afterwards when it was taken here
+   *
+   * @param admin HBaseAdminClient
+   * @param tableName table Name
+   * @param snapshotName snapshot Name
+   * @param restoreRoot parent of the temporary restore directory
+   * @param template Scan giving the key range, columns and filters
+   * @param consumer called from the calling thread for each row
+   * @throws Exception Exception
+   */
+  public static void scanTable(HBaseAdminClient admin, String tableName, String snapshotName,
+          Path restoreRoot, Scan template, Consumer<Result> consumer) throws Exception {
+    boolean taken = false;
+    if (!admin.snapshotExists(snapshotName)) {
+      admin.snapshot(tableName, snapshotName);
+      taken = true;
+    }
+    try {
+      new SnapshotScanner(admin.getConf(), snapshotName, restoreRoot).scan(template, consumer);
+    } finally {
+      if (taken) {
+        admin.deleteSnapshot(snapshotName);
+      }
+    }
+  }
+}
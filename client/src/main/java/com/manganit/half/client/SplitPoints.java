@@ -0,0 +1,199 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.ConnectionFactory;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Split points of a pre-split table.
+ * <p>
+ * The points are either uniform over a fixed width key space, or the
+ * quantiles of a uniform reservoir sample of the expected keys, read from an
+ * existing table or from a file, so that each region receives about the same
+ * share of the rows.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class SplitPoints {
+
+  /**
+   * Default number of sampled keys
+   */
+  public static final int DEFAULT_SAMPLE_SIZE = 100000;
+
+  private SplitPoints() {
+  }
+
+  /**
+   * Split points of the keys starting with a uniformly distributed byte, e.g. salted keys
+   *
+   * @param regions number of regions, at most 256
+   * @return regions - 1 one byte split points
+   */
+  public static byte[][] uniform(int regions) {
+    if (regions < 1 || regions > 256) {
+      throw new IllegalArgumentException("Regions must be between 1 and 256: " + regions);
+    }
+    byte[][] splits = new byte[regions - 1][];
+    for (int i = 1; i < regions; i++) {
+      splits[i - 1] = new byte[]{(byte) (i * 256 / regions)};
+    }
+    return splits;
+  }
+
+  /**
+   * Split points from a sample of keys
+   *
+   * @param keys key source, read once
+   * @param regions number of regions
+   * @param sampleSize number of keys kept in the reservoir
+   * @return at most regions - 1 distinct sorted split points
+   */
+  public static byte[][] fromSample(Iterator<byte[]> keys, int regions, int sampleSize) {
+    byte[][] reservoir = new byte[sampleSize][];
+    Random random = new Random(0);
+    long seen = 0;
+    while (keys.hasNext()) {
+      byte[] key = keys.next();
+      if (seen < sampleSize) {
+        reservoir[(int) seen] = key;
+      } else {
+        long slot = (long) (random.nextDouble() * (seen + 1));
+        if (slot < sampleSize) {
+          reservoir[(int) slot] = key;
+        }
+      }
+      seen++;
+    }
+    int n = (int) Math.min(seen, sampleSize);
+    byte[][] sample = Arrays.copyOf(reservoir, n);
+    Arrays.sort(sample, Bytes.BYTES_COMPARATOR);
+    List<byte[]> splits = new ArrayList<>(regions);
+    for (int i = 1; i < regions && n > 0; i++) {
+      byte[] split = sample[(int) ((long) i * n / regions)];
+      if (split.length > 0
+              && (splits.isEmpty() || Bytes.compareTo(splits.get(splits.size() - 1), split) < 0)) {
+        splits.add(split);
+      }
+    }
+    return splits.toArray(new byte[splits.size()][]);
+  }
+
+  /**
+   * Split points from the keys of an existing table, through a new connection
+   *
+   * @param conf Configuration
+   * @param tableName table Name
+   * @param regions number of regions
+   * @param sampleSize number of keys kept in the reservoir
+   * @return split points
+   * @throws IOException IOException
+   */
+  public static byte[][] fromTable(Configuration conf, String tableName, int regions, int sampleSize)
+          throws IOException {
+    try (Connection connection = ConnectionFactory.createConnection(conf)) {
+      return fromTable(connection, tableName, regions, sampleSize);
+    }
+  }
+
+  /**
+   * Split points from the keys of an existing table
+   *
+   * @param connection Connection, left open
+   * @param tableName table Name
+   * @param regions number of regions
+   * @param sampleSize number of keys kept in the reservoir
+   * @return split points
+   * @throws IOException IOException
+   */
+  public static byte[][] fromTable(Connection connection, String tableName, int regions, int sampleSize)
+          throws IOException {
+    Scan scan = new Scan();
+    scan.setFilter(new FilterList(FilterList.Operator.MUST_PASS_ALL,
+            new FirstKeyOnlyFilter(), new KeyOnlyFilter()));
+    scan.setCaching(5000);
+    scan.setCacheBlocks(false);
+    try (Table table = connection.getTable(TableName.valueOf(tableName));
+         ResultScanner scanner = table.getScanner(scan)) {
+      final Iterator<Result> it = scanner.iterator();
+      return fromSample(new Iterator<byte[]>() {
+        @Override
+        public boolean hasNext() {
+          return it.hasNext();
+        }
+
+        @Override
+        public byte[] next() {
+          return it.next().getRow();
+        }
+      }, regions, sampleSize);
+    }
+  }
+
+  /**
+   * Split points from a text file holding one key per line, in the
+   * {@link Bytes#toStringBinary(byte[])} format
+   *
+   * @param fs FileSystem
+   * @param file key file
+   * @param regions number of regions
+   * @param sampleSize number of keys kept in the reservoir
+   * @return split points
+   * @throws IOException IOException
+   */
+  public static byte[][] fromFile(FileSystem fs, Path file, int regions, int sampleSize) throws IOException {
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(file), StandardCharsets.UTF_8))) {
+      final Iterator<String> it = reader.lines().filter(line -> !line.isEmpty()).iterator();
+      return fromSample(new Iterator<byte[]>() {
+        @Override
+        public boolean hasNext() {
+          return it.hasNext();
+        }
+
+        @Override
+        public byte[] next() {
+          return Bytes.toBytesBinary(it.next());
+        }
+      }, regions, sampleSize);
+    }
+  }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.io.compress.Compression;
+import org.apache.hadoop.hbase.io.encoding.DataBlockEncoding;
+import org.apache.hadoop.hbase.regionserver.BloomType;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Desired state of a table, loaded from a properties file:
+ * <pre>
+ * table=ns:events
+ * splits=\\x10,\\x20,\\x30
+ * max.filesize=10737418240
+ * memstore.flushsize=268435456
+ * drop.unlisted.families=false
+ * family.d.compression=SNAPPY
+ * family.d.encoding=FAST_DIFF
+ * family.d.bloom=ROW
+ * family.d.blocksize=65536
+ * family.d.ttl=2592000
+ * family.d.versions=1
+ * family.d.inmemory=false
+ * family.raw.enabled=true
+ * </pre>
+ * The settings left out keep their live value, or the HBase default for a
+ * new table or family, {@code enabled} declares a family without settings.
+ * The split points, in the {@link Bytes#toStringBinary(byte[])} format with
+ * the backslashes escaped, only apply at creation.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class TableSpec {
+
+  private static final String FAMILY_PREFIX = "family.";
+
+  private final TableName tableName;
+  private final Map<String, FamilySpec> families = new LinkedHashMap<>();
+  private byte[][] splitKeys = new byte[0][];
+  private long maxFileSize = -1;
+  private long memstoreFlushSize = -1;
+  private boolean dropUnlistedFamilies = false;
+
+  /**
+   *
+   * @param tableName table Name
+   */
+  public TableSpec(String tableName) {
+    this.tableName = TableName.valueOf(tableName);
+  }
+
+  public TableName getTableName() {
+    return tableName;
+  }
+
+  /**
+   * @param family column family settings
+   * @return this
+   */
+  public TableSpec family(FamilySpec family) {
+    families.put(family.getName(), family);
+    return this;
+  }
+
+  public Map<String, FamilySpec> getFamilies() {
+    return families;
+  }
+
+  /**
+   * @param splitKeys split points used when the table is created
+   * @return this
+   */
+  public TableSpec splitKeys(byte[][] splitKeys) {
+    this.splitKeys = splitKeys;
+    return this;
+  }
+
+  public byte[][] getSplitKeys() {
+    return splitKeys;
+  }
+
+  /**
+   * @param maxFileSize region size in bytes above which a region is split
+   * @return this
+   */
+  public TableSpec maxFileSize(long maxFileSize) {
+    this.maxFileSize = maxFileSize;
+    return this;
+  }
+
+  /**
+   * @param memstoreFlushSize memstore size in bytes above which it is flushed
+   * @return this
+   */
+  public TableSpec memstoreFlushSize(long memstoreFlushSize) {
+    this.memstoreFlushSize = memstoreFlushSize;
+    return this;
+  }
+
+  /**
+   * @param dropUnlistedFamilies delete the live families missing from the spec, with their data
+   * @return this
+   */
+  public TableSpec dropUnlistedFamilies(boolean dropUnlistedFamilies) {
+    this.dropUnlistedFamilies = dropUnlistedFamilies;
+    return this;
+  }
+
+  public boolean isDropUnlistedFamilies() {
+    return dropUnlistedFamilies;
+  }
+
+  /**
+   * Apply the table settings set here to a descriptor
+   *
+   * @param htd HTableDescriptor
+   * @return htd
+   */
+  public HTableDescriptor applyTo(HTableDescriptor htd) {
+    if (maxFileSize > 0) {
+      htd.setMaxFileSize(maxFileSize);
+    }
+    if (memstoreFlushSize > 0) {
+      htd.setMemStoreFlushSize(memstoreFlushSize);
+    }
+    return htd;
+  }
+
+  /**
+   * @return the descriptor of a new table
+   */
+  public HTableDescriptor toDescriptor() {
+    HTableDescriptor htd = applyTo(new HTableDescriptor(tableName));
+    for (FamilySpec family : families.values()) {
+      htd.addFamily(family.toDescriptor());
+    }
+    return htd;
+  }
+
+  /**
+   * Desired state of a live table: its descriptor with the settings of the
+   * spec applied, and the unlisted families dropped when asked to
+   *
+   * @param live live descriptor
+   * @return a new HTableDescriptor
+   */
+  public HTableDescriptor toDescriptor(HTableDescriptor live) {
+    HTableDescriptor htd = applyTo(new HTableDescriptor(live));
+    for (FamilySpec family : families.values()) {
+      HColumnDescriptor hcd = htd.getFamily(Bytes.toBytes(family.getName()));
+      if (hcd == null) {
+        htd.addFamily(family.toDescriptor());
+      } else {
+        htd.modifyFamily(family.applyTo(new HColumnDescriptor(hcd)));
+      }
+    }
+    if (dropUnlistedFamilies) {
+      for (HColumnDescriptor hcd : live.getColumnFamilies()) {
+        if (!families.containsKey(hcd.getNameAsString())) {
+          htd.removeFamily(hcd.getName());
+        }
+      }
+    }
+    return htd;
+  }
+
+  /**
+   * Load a spec from a properties file
+   *
+   * @param fs FileSystem
+   * @param file properties file
+   * @return TableSpec
+   * @throws IOException IOException
+   */
+  public static TableSpec load(FileSystem fs, Path file) throws IOException {
+    try (InputStream in = fs.open(file)) {
+      return load(in);
+    }
+  }
+
+  /**
+   * Load a spec from a properties stream
+   *
+   * @param in properties
+   * @return TableSpec
+   * @throws IOException IOException
+   */
+  public static TableSpec load(InputStream in) throws IOException {
+    Properties props = new Properties();
+    props.load(in);
+    return fromProperties(props);
+  }
+
+  /**
+   * @param props properties
+   * @return TableSpec
+   */
+  public static TableSpec fromProperties(Properties props) {
+    String table = props.getProperty("table");
+    if (table == null || table.trim().isEmpty()) {
+      throw new IllegalArgumentException("Missing table property");
+    }
+    TableSpec spec = new TableSpec(table.trim());
+    String splits = props.getProperty("splits", "").trim();
+    if (!splits.isEmpty()) {
+      List<byte[]> keys = new ArrayList<>();
+      for (String split : splits.split(",")) {
+        keys.add(Bytes.toBytesBinary(split.trim()));
+      }
+      spec.splitKeys(keys.toArray(new byte[keys.size()][]));
+    }
+    spec.maxFileSize(Long.parseLong(props.getProperty("max.filesize", "-1").trim()));
+    spec.memstoreFlushSize(Long.parseLong(props.getProperty("memstore.flushsize", "-1").trim()));
+    spec.dropUnlistedFamilies(Boolean.parseBoolean(props.getProperty("drop.unlisted.families", "false").trim()));
+    for (String key : props.stringPropertyNames()) {
+      if (!key.startsWith(FAMILY_PREFIX)) {
+        continue;
+      }
+      int dot = key.lastIndexOf('.');
+      if (dot <= FAMILY_PREFIX.length()) {
+        throw new IllegalArgumentException("Invalid family property " + key);
+      }
+      String name = key.substring(FAMILY_PREFIX.length(), dot);
+      FamilySpec family = spec.families.computeIfAbsent(name, FamilySpec::new);
+      String value = props.getProperty(key).trim();
+      switch (key.substring(dot + 1)) {
+        case "compression":
+          family.compression(Compression.Algorithm.valueOf(value.toUpperCase()));
+          break;
+        case "encoding":
+          family.encoding(DataBlockEncoding.valueOf(value.toUpperCase()));
+          break;
+        case "bloom":
+          family.bloom(BloomType.valueOf(value.toUpperCase()));
+          break;
+        case "blocksize":
+          family.blockSize(Integer.parseInt(value));
+          break;
+        case "ttl":
+          family.ttl(Integer.parseInt(value));
+          break;
+        case "versions":
+          family.maxVersions(Integer.parseInt(value));
+          break;
+        case "inmemory":
+          family.inMemory(Boolean.parseBoolean(value));
+          break;
+        case "enabled":
+          // declares a family with the default settings
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown family property " + key);
+      }
+    }
+    return spec;
+  }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.client;
+
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.RegionTooBusyException;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.RetriesExhaustedException;
+import org.apache.log4j.Logger;
+
+/**
+ * Adaptive client side write rate limiter.
+ * <p>
+ * Writes take permits, in bytes, from a token bucket per table and a token
+ * bucket per RegionServer. The rates follow an AIMD law: they grow by a fixed
+ * step after each write acknowledged under the target latency, and are cut by
+ * a factor when a write is slow, retried until exhaustion or rejected with a
+ * {@link RegionTooBusyException}. A bucket is cut at most once per decrease
+ * interval, so the many failed rows of one congestion event count once, and
+ * does not grow during that interval. The latency of a batch is scaled down
+ * to the target batch size, so large healthy batches do not read as
+ * congestion. The throughput thus settles near what the cluster can sustain
+ * instead of oscillating between overload and backoff.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class WriteThrottle {
+
+  private final static Logger logger = Logger.getLogger(WriteThrottle.class);
+
+  /**
+   * Enable the throttle on the HBaseClient write path
+   */
+  public static final String ENABLED_KEY = "half.hbase.throttle.enabled";
+  /**
+   * Initial rate in bytes per second of each bucket
+   */
+  public static final String INITIAL_RATE_KEY = "half.hbase.throttle.initial.rate";
+  /**
+   * Minimum rate in bytes per second
+   */
+  public static final String MIN_RATE_KEY = "half.hbase.throttle.min.rate";
+  /**
+   * Maximum rate in bytes per second
+   */
+  public static final String MAX_RATE_KEY = "half.hbase.throttle.max.rate";
+  /**
+   * Write latency in milliseconds above which the rate is decreased
+   */
+  public static final String TARGET_LATENCY_KEY = "half.hbase.throttle.target.latency.ms";
+  /**
+   * Additive increase in bytes per second
+   */
+  public static final String INCREASE_STEP_KEY = "half.hbase.throttle.increase.step";
+  /**
+   * Multiplicative decrease factor, between 0 and 1
+   */
+  public static final String DECREASE_FACTOR_KEY = "half.hbase.throttle.decrease.factor";
+  /**
+   * Minimum delay in milliseconds between two decreases of a bucket
+   */
+  public static final String DECREASE_INTERVAL_KEY = "half.hbase.throttle.decrease.interval.ms";
+  /**
+   * Batch size in bytes the target latency applies to
+   */
+  public static final String TARGET_BATCH_SIZE_KEY = "half.hbase.throttle.target.batch.size";
+
+  public static final long DEFAULT_INITIAL_RATE = 16L * 1024 * 1024;
+  public static final long DEFAULT_MIN_RATE = 256L * 1024;
+  public static final long DEFAULT_MAX_RATE = 512L * 1024 * 1024;
+  public static final long DEFAULT_TARGET_LATENCY = 500L;
+  public static final long DEFAULT_INCREASE_STEP = 1024L * 1024;
+  public static final float DEFAULT_DECREASE_FACTOR = 0.5f;
+  public static final long DEFAULT_DECREASE_INTERVAL = 1000L;
+  public static final long DEFAULT_TARGET_BATCH_SIZE = 2L * 1024 * 1024;
+
+  private final double initialRate;
+  private final double minRate;
+  private final double maxRate;
+  private final long targetLatency;
+  private final double increaseStep;
+  private final double decreaseFactor;
+  private final long decreaseInterval;
+  private final long targetBatchSize;
+  private final ConcurrentHashMap<TableName, TokenBucket> tableBuckets = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<ServerName, TokenBucket> serverBuckets = new ConcurrentHashMap<>();
+
+  /**
+   *
+   * @param conf Configuration
+   */
+  public WriteThrottle(Configuration conf) {
+    this(conf.getLong(INITIAL_RATE_KEY, DEFAULT_INITIAL_RATE),
+            conf.getLong(MIN_RATE_KEY, DEFAULT_MIN_RATE),
+            conf.getLong(MAX_RATE_KEY, DEFAULT_MAX_RATE),
+            conf.getLong(TARGET_LATENCY_KEY, DEFAULT_TARGET_LATENCY),
+            conf.getLong(INCREASE_STEP_KEY, DEFAULT_INCREASE_STEP),
+            conf.getFloat(DECREASE_FACTOR_KEY, DEFAULT_DECREASE_FACTOR),
+            conf.getLong(DECREASE_INTERVAL_KEY, DEFAULT_DECREASE_INTERVAL),
+            conf.getLong(TARGET_BATCH_SIZE_KEY, DEFAULT_TARGET_BATCH_SIZE));
+  }
+
+  /**
+   *
+   * @param initialRate initial rate in bytes per second
+   * @param minRate minimum rate in bytes per second
+   * @param maxRate maximum rate in bytes per second
+   * @param targetLatency latency in milliseconds above which the rate is decreased
+   * @param increaseStep additive increase in bytes per second
+   * @param decreaseFactor multiplicative decrease factor
+   */
+  public WriteThrottle(long initialRate, long minRate, long maxRate, long targetLatency,
+          long increaseStep, float decreaseFactor) {
+    this(initialRate, minRate, maxRate, targetLatency, increaseStep, decreaseFactor,
+            DEFAULT_DECREASE_INTERVAL, DEFAULT_TARGET_BATCH_SIZE);
+  }
+
+  /**
+   *
+   * @param initialRate initial rate in bytes per second
+   * @param minRate minimum rate in bytes per second
+   * @param maxRate maximum rate in bytes per second
+   * @param targetLatency latency in milliseconds above which the rate is decreased
+   * @param increaseStep additive increase in bytes per second
+   * @param decreaseFactor multiplicative decrease factor
+   * @param decreaseInterval minimum delay in milliseconds between two decreases of a bucket
+   * @param targetBatchSize batch size in bytes the target latency applies to
+   */
+  public WriteThrottle(long initialRate, long minRate, long maxRate, long targetLatency,
+          long increaseStep, float decreaseFactor, long decreaseInterval, long targetBatchSize) {
+    this.initialRate = initialRate;
+    this.minRate = minRate;
+    this.maxRate = maxRate;
+    this.targetLatency = targetLatency;
+    this.increaseStep = increaseStep;
+    this.decreaseFactor = decreaseFactor;
+    this.decreaseInterval = TimeUnit.MILLISECONDS.toNanos(decreaseInterval);
+    this.targetBatchSize = targetBatchSize;
+  }
+
+  /**
+   * Wait until both the table and the server allow a write
+   *
+   * @param tableName table Name
+   * @param server hosting RegionServer, may be null when unknown
+   * @param bytes size of the write
+   * @throws InterruptedIOException InterruptedIOException
+   */
+  public void acquire(TableName tableName, ServerName server, long bytes) throws InterruptedIOException {
+    long wait = tableBucket(tableName).reserve(bytes);
+    if (server != null) {
+      wait = Math.max(wait, serverBucket(server).reserve(bytes));
+    }
+    if (wait > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while throttling writes to " + tableName);
+      }
+    }
+  }
+
+  /**
+   * Report an acknowledged write
+   *
+   * @param tableName table Name
+   * @param server hosting RegionServer, may be null when unknown
+   * @param latency write latency in milliseconds
+   */
+  public void onSuccess(TableName tableName, ServerName server, long latency) {
+    if (latency > targetLatency) {
+      decrease(tableName, server);
+    } else {
+      increase(tableBucket(tableName));
+      if (server != null) {
+        increase(serverBucket(server));
+      }
+    }
+  }
+
+  /**
+   * Report an acknowledged batch, each server is credited with the latency
+   * scaled to the target batch size of its share of the batch
+   *
+   * @param tableName table Name
+   * @param bytesByServer bytes of the batch sent to each RegionServer
+   * @param bytes total bytes of the batch
+   * @param latency batch latency in milliseconds
+   */
+  public void onSuccess(TableName tableName, Map<ServerName, Long> bytesByServer, long bytes, long latency) {
+    // the servers are written in parallel, the largest share bounds the table latency
+    long largest = 0;
+    for (Map.Entry<ServerName, Long> e : bytesByServer.entrySet()) {
+      largest = Math.max(largest, e.getValue());
+      onLatency(serverBucket(e.getKey()), normalize(latency, e.getValue()));
+    }
+    if (onLatency(tableBucket(tableName), normalize(latency, largest > 0 ? largest : bytes))
+            && logger.isDebugEnabled()) {
+      logger.debug("Write rate of " + tableName + " decreased to " + (long) getRate(tableName) + " bytes/s");
+    }
+  }
+
+  /**
+   * Report a failed write, the rates are only decreased on overload signals
+   *
+   * @param tableName table Name
+   * @param server hosting RegionServer, may be null when unknown
+   * @param cause failure
+   */
+  public void onFailure(TableName tableName, ServerName server, Throwable cause) {
+    if (isOverload(cause)) {
+      decrease(tableName, server);
+    }
+  }
+
+  /**
+   * @param tableName table Name
+   * @return current rate of the table in bytes per second
+   */
+  public double getRate(TableName tableName) {
+    return tableBucket(tableName).getRate();
+  }
+
+  /**
+   * @param server RegionServer
+   * @return current rate of the server in bytes per second
+   */
+  public double getRate(ServerName server) {
+    return serverBucket(server).getRate();
+  }
+
+  private void decrease(TableName tableName, ServerName server) {
+    boolean decreased = tableBucket(tableName).decrease(decreaseFactor, decreaseInterval);
+    if (server != null) {
+      serverBucket(server).decrease(decreaseFactor, decreaseInterval);
+    }
+    if (decreased && logger.isDebugEnabled()) {
+      logger.debug("Write rate of " + tableName + " decreased to " + (long) getRate(tableName) + " bytes/s");
+    }
+  }
+
+  private void increase(TokenBucket bucket) {
+    bucket.increase(increaseStep, decreaseInterval);
+  }
+
+  /**
+   * @return true if the bucket was decreased
+   */
+  private boolean onLatency(TokenBucket bucket, long latency) {
+    if (latency > targetLatency) {
+      return bucket.decrease(decreaseFactor, decreaseInterval);
+    }
+    increase(bucket);
+    return false;
+  }
+
+  /**
+   * Latency of a batch scaled down to the target batch size, the latency of
+   * smaller batches is kept as is
+   */
+  long normalize(long latency, long bytes) {
+    if (bytes <= targetBatchSize || targetBatchSize <= 0) {
+      return latency;
+    }
+    return (long) (latency * ((double) targetBatchSize / bytes));
+  }
+
+  static boolean isOverload(Throwable cause) {
+    for (Throwable t = cause; t != null; t = t.getCause()) {
+      if (t instanceof RegionTooBusyException || t instanceof RetriesExhaustedException
+              || t.getClass().getSimpleName().equals("CallQueueTooBigException")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private TokenBucket tableBucket(TableName tableName) {
+    return tableBuckets.computeIfAbsent(tableName, k -> new TokenBucket(initialRate, minRate, maxRate));
+  }
+
+  private TokenBucket serverBucket(ServerName server) {
+    return serverBuckets.computeIfAbsent(server, k -> new TokenBucket(initialRate, minRate, maxRate));
+  }
+
+  /**
+   * Token bucket refilled at an adjustable rate, holding at most one second of tokens
+   */
+  static class TokenBucket {
+
+    private final double minRate;
+    private final double maxRate;
+    private double rate;
+    private double tokens;
+    private long last;
+    private long lastDecrease;
+    private boolean decreased = false;
+
+    TokenBucket(double rate, double minRate, double maxRate) {
+      this.rate = rate;
+      this.minRate = minRate;
+      this.maxRate = maxRate;
+      this.tokens = rate;
+      this.last = System.nanoTime();
+    }
+
+    /**
+     * Take permits, possibly going into debt
+     *
+     * @param permits permits
+     * @return nanoseconds to wait before the debt is paid back
+     */
+    synchronized long reserve(long permits) {
+      refill();
+      tokens -= permits;
+      return tokens >= 0 ? 0 : (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * @param increase additive increase
+     * @param factor multiplicative factor
+     * @return new rate
+     */
+    synchronized double adjust(double increase, double factor) {
+      refill();
+      rate = Math.max(minRate, Math.min(maxRate, rate * factor + increase));
+      return rate;
+    }
+
+    /**
+     * Additive increase, skipped within the interval following a decrease
+     *
+     * @param increase additive increase
+     * @param interval decrease interval in nanoseconds
+     */
+    synchronized void increase(double increase, long interval) {
+      if (!inCongestion(interval)) {
+        adjust(increase, 1.0);
+      }
+    }
+
+    /**
+     * Multiplicative decrease, at most once per interval
+     *
+     * @param factor multiplicative factor
+     * @param interval decrease interval in nanoseconds
+     * @return true if the rate was decreased
+     */
+    synchronized boolean decrease(double factor, long interval) {
+      if (inCongestion(interval)) {
+        return false;
+      }
+      adjust(0, factor);
+      lastDecrease = System.nanoTime();
+      decreased = true;
+      return true;
+    }
+
+    private boolean inCongestion(long interval) {
+      return decreased && System.nanoTime() - lastDecrease < interval;
+    }
+
+    synchronized double getRate() {
+      return rate;
+    }
+
+    private void refill() {
+      long now = System.nanoTime();
+      tokens = Math.min(rate, tokens + rate * (now - last) / TimeUnit.SECONDS.toNanos(1));
+      last = now;
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package com.manganit.half.client;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.protobuf.ByteString;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.RegionLoad;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.protobuf.generated.AdminProtos.GetRegionInfoResponse.CompactionState;
+import org.apache.hadoop.hbase.protobuf.generated.ClusterStatusProtos;
+import org.apache.hadoop.hbase.protobuf.generated.HBaseProtos.RegionSpecifier;
+import org.apache.hadoop.hbase.protobuf.generated.HBaseProtos.RegionSpecifier.RegionSpecifierType;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Unit test for CompactionScheduler.
+ */
+public class CompactionSchedulerTest
+        extends TestCase {
+
+  private static final TableName TABLE = TableName.valueOf("t");
+  private static final ServerName RS1 = ServerName.valueOf("rs1", 16020, 1L);
+  private static final ServerName RS2 = ServerName.valueOf("rs2", 16020, 1L);
+
+  private CompactionScheduler scheduler;
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public CompactionSchedulerTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(CompactionSchedulerTest.class);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    Configuration conf = new Configuration(false);
+    conf.setInt(CompactionScheduler.PER_SERVER_KEY, 2);
+    conf.setLong(CompactionScheduler.QUEUED_TIMEOUT_KEY, 1000L);
+    scheduler = new CompactionScheduler(null, conf);
+  }
+
+  private static CompactionScheduler.Candidate candidate(String start, ServerName server,
+          int storefiles, float locality) {
+    HRegionInfo region = new HRegionInfo(TABLE, Bytes.toBytes(start), null);
+    CompactionScheduler.Candidate c = new CompactionScheduler.Candidate(region, server, storefiles, locality);
+    c.requested = 10000L;
+    return c;
+  }
+
+  private static RegionLoad load(CompactionScheduler.Candidate c, int storefiles, float locality) {
+    return new RegionLoad(ClusterStatusProtos.RegionLoad.newBuilder()
+            .setRegionSpecifier(RegionSpecifier.newBuilder()
+                    .setType(RegionSpecifierType.REGION_NAME)
+                    .setValue(ByteString.copyFrom(c.region.getRegionName())))
+            .setStorefiles(storefiles)
+            .setDataLocality(locality)
+            .build());
+  }
+
+  public void testSeenCompactingIsDoneOnceIdle() {
+    CompactionScheduler.Candidate c = candidate("a", RS1, 8, 1.0f);
+    // queued, the load is unchanged
+    assertFalse(scheduler.isDone(c, load(c, 8, 1.0f), CompactionState.NONE));
+    assertFalse(scheduler.isDone(c, load(c, 8, 1.0f), CompactionState.MAJOR));
+    assertTrue(c.seenCompacting);
+    // idle again, even before the store files were reported
+    assertTrue(scheduler.isDone(c, load(c, 8, 1.0f), CompactionState.NONE));
+  }
+
+  public void testFewerStoreFilesIsDone() {
+    CompactionScheduler.Candidate c = candidate("a", RS1, 8, 1.0f);
+    assertTrue(scheduler.isDone(c, load(c, 1, 1.0f), CompactionState.NONE));
+    assertFalse(c.seenCompacting);
+  }
+
+  public void testRestoredLocalityIsDone() {
+    CompactionScheduler.Candidate c = candidate("a", RS1, 2, 0.2f);
+    assertFalse(scheduler.isDone(c, load(c, 2, 0.5f), CompactionState.NONE));
+    assertTrue(scheduler.isDone(c, load(c, 2, 0.9f), CompactionState.NONE));
+  }
+
+  public void testMovedRegionIsDone() {
+    CompactionScheduler.Candidate c = candidate("a", RS1, 8, 1.0f);
+    assertTrue(scheduler.isDone(c, load(c, 8, 1.0f), null));
+    assertTrue(scheduler.isDone(c, null, CompactionState.NONE));
+  }
+
+  public void testQueuedTimeoutReleasesTheSlot() {
+    CompactionScheduler.Candidate c = candidate("a", RS1, 8, 1.0f);
+    assertFalse(scheduler.isExpired(c, c.requested + 1000L));
+    assertTrue(scheduler.isExpired(c, c.requested + 1001L));
+    // a running compaction keeps its slot
+    c.seenCompacting = true;
+    assertFalse(scheduler.isExpired(c, c.requested + 5000L));
+  }
+
+  public void testSlotsPerServer() {
+    List<CompactionScheduler.Candidate> running = new ArrayList<>();
+    assertTrue(scheduler.hasFreeSlot(RS1, running));
+    running.add(candidate("a", RS1, 8, 1.0f));
+    running.add(candidate("b", RS2, 8, 1.0f));
+    assertTrue(scheduler.hasFreeSlot(RS1, running));
+    running.add(candidate("c", RS1, 8, 1.0f));
+    assertFalse(scheduler.hasFreeSlot(RS1, running));
+    assertTrue(scheduler.hasFreeSlot(RS2, running));
+  }
+
+  public void testSlotsFollowTheMovedRegions() {
+    CompactionScheduler.Candidate a = candidate("a", RS1, 8, 1.0f);
+    CompactionScheduler.Candidate b = candidate("b", RS1, 8, 1.0f);
+    List<CompactionScheduler.Candidate> running = Arrays.asList(a, b);
+    assertFalse(scheduler.hasFreeSlot(RS1, running));
+    Map<byte[], ServerName> servers = new TreeMap<>(Bytes.BYTES_COMPARATOR);
+    servers.put(a.region.getRegionName(), RS2);
+    CompactionScheduler.relocate(running, servers);
+    assertEquals(RS2, a.server);
+    // b is not hosted right now, it keeps its last server
+    assertEquals(RS1, b.server);
+    assertTrue(scheduler.hasFreeSlot(RS1, running));
+  }
+
+  public void testWindows() {
+    List<CompactionScheduler.TimeWindow> windows = CompactionScheduler.TimeWindow.parse("01:00-05:00, 22:30-00:30");
+    assertEquals(2, windows.size());
+    assertTrue(CompactionScheduler.TimeWindow.isOpen(windows, LocalTime.of(1, 0)));
+    assertTrue(CompactionScheduler.TimeWindow.isOpen(windows, LocalTime.of(4, 59)));
+    assertFalse(CompactionScheduler.TimeWindow.isOpen(windows, LocalTime.of(5, 0)));
+    assertFalse(CompactionScheduler.TimeWindow.isOpen(windows, LocalTime.of(12, 0)));
+    assertTrue(CompactionScheduler.TimeWindow.isOpen(windows, LocalTime.of(23, 0)));
+    assertTrue(CompactionScheduler.TimeWindow.isOpen(windows, LocalTime.of(0, 15)));
+    assertFalse(CompactionScheduler.TimeWindow.isOpen(windows, LocalTime.of(0, 30)));
+  }
+
+  public void testNoWindowIsAlwaysOpen() {
+    assertTrue(CompactionScheduler.TimeWindow.isOpen(CompactionScheduler.TimeWindow.parse(""), LocalTime.NOON));
+  }
+}
@@ -0,0 +1,171 @@
+package com.manganit.half.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableSet;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.PrefixFilter;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Unit test for HBaseAggregator.
+ */
+public class HBaseAggregatorTest
+        extends TestCase {
+
+  private static final byte[] ROW = Bytes.toBytes("r1");
+  private static final byte[] A = Bytes.toBytes("a");
+  private static final byte[] D = Bytes.toBytes("d");
+  private static final byte[] STATUS = Bytes.toBytes("status");
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public HBaseAggregatorTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(HBaseAggregatorTest.class);
+  }
+
+  /**
+   * A row whose first cell is not the filtered column
+   */
+  private static List<Cell> row() {
+    return Arrays.<Cell>asList(
+            new KeyValue(ROW, A, Bytes.toBytes("x"), Bytes.toBytes(1L)),
+            new KeyValue(ROW, D, STATUS, Bytes.toBytes("OK")));
+  }
+
+  /**
+   * @return true if the row is returned
+   */
+  private static boolean returns(Scan scan, List<Cell> cells) throws IOException {
+    return scan(scan, cells) != null;
+  }
+
+  /**
+   * Evaluate the projection and filter of a scan on one row, in the order
+   * of a RegionServer
+   *
+   * @return the returned row, null if it is filtered out
+   */
+  private static Result scan(Scan scan, List<Cell> cells) throws IOException {
+    Filter filter = scan.getFilter();
+    List<Cell> kept = new ArrayList<>();
+    if (filter != null) {
+      filter.reset();
+      if (filter.filterRowKey(ROW, 0, ROW.length)) {
+        return null;
+      }
+    }
+    for (Cell cell : cells) {
+      byte[] family = CellUtil.cloneFamily(cell);
+      if (scan.hasFamilies()) {
+        if (!scan.getFamilyMap().containsKey(family)) {
+          continue;
+        }
+        NavigableSet<byte[]> qualifiers = scan.getFamilyMap().get(family);
+        if (qualifiers != null && !qualifiers.contains(CellUtil.cloneQualifier(cell))) {
+          continue;
+        }
+      }
+      if (filter == null) {
+        kept.add(cell);
+        continue;
+      }
+      if (filter.filterAllRemaining()) {
+        break;
+      }
+      Filter.ReturnCode rc = filter.filterKeyValue(cell);
+      if (rc == Filter.ReturnCode.INCLUDE || rc == Filter.ReturnCode.INCLUDE_AND_NEXT_COL) {
+        kept.add(filter.transformCell(cell));
+      } else if (rc == Filter.ReturnCode.NEXT_ROW) {
+        break;
+      }
+    }
+    if (filter != null) {
+      filter.filterRowCells(kept);
+      if (filter.hasFilterRow() && filter.filterRow()) {
+        return null;
+      }
+    }
+    return kept.isEmpty() ? null : Result.create(kept);
+  }
+
+  public void testCountWithoutFilterReturnsFirstKeyOnly() throws IOException {
+    Scan scan = HBaseAggregator.countScan(new Scan());
+    assertTrue(scan.getFilter() instanceof FilterList);
+    assertTrue(((FilterList) scan.getFilter()).getFilters().get(0) instanceof FirstKeyOnlyFilter);
+    assertTrue(returns(scan, row()));
+  }
+
+  public void testCountWithRowKeyFilter() throws IOException {
+    Scan scan = HBaseAggregator.countScan(new Scan().setFilter(new PrefixFilter(Bytes.toBytes("r"))));
+    assertTrue(scan.getFilter() instanceof FilterList);
+    assertEquals(3, ((FilterList) scan.getFilter()).getFilters().size());
+    assertTrue(returns(scan, row()));
+    Scan other = HBaseAggregator.countScan(new Scan().setFilter(new PrefixFilter(Bytes.toBytes("s"))));
+    assertFalse(returns(other, row()));
+  }
+
+  public void testCountWithValueFilter() throws IOException {
+    SingleColumnValueFilter ok = new SingleColumnValueFilter(D, STATUS, CompareOp.EQUAL, Bytes.toBytes("OK"));
+    ok.setFilterIfMissing(true);
+    Scan scan = HBaseAggregator.countScan(new Scan().setFilter(ok));
+    assertFalse(scan.getFilter() instanceof FilterList);
+    assertTrue(scan.getFamilyMap().get(D).contains(STATUS));
+    assertFalse(scan.getFamilyMap().containsKey(A));
+    assertTrue(returns(scan, row()));
+
+    SingleColumnValueFilter ko = new SingleColumnValueFilter(D, STATUS, CompareOp.EQUAL, Bytes.toBytes("KO"));
+    ko.setFilterIfMissing(true);
+    assertFalse(returns(HBaseAggregator.countScan(new Scan().setFilter(ko)), row()));
+  }
+
+  public void testCountWithValueFilterKeepingMissingColumns() throws IOException {
+    SingleColumnValueFilter filter = new SingleColumnValueFilter(D, Bytes.toBytes("other"),
+            CompareOp.EQUAL, Bytes.toBytes("OK"));
+    Scan scan = HBaseAggregator.countScan(new Scan().setFilter(filter));
+    // the rows without the column pass, they must not be projected away
+    assertFalse(scan.hasFamilies());
+    assertTrue(returns(scan, row()));
+  }
+
+  public void testStatsProjectionKeepsFilteredColumn() throws IOException {
+    byte[] x = Bytes.toBytes("x");
+    SingleColumnValueFilter ok = new SingleColumnValueFilter(D, STATUS, CompareOp.EQUAL, Bytes.toBytes("OK"));
+    ok.setFilterIfMissing(true);
+    Scan scan = HBaseAggregator.project(new Scan().setFilter(ok), A, x);
+    assertTrue(scan.getFamilyMap().get(A).contains(x));
+    assertTrue(scan.getFamilyMap().get(D).contains(STATUS));
+    Result r = scan(scan, row());
+    assertNotNull(r);
+    assertEquals(1L, Bytes.toLong(r.getValue(A, x)));
+
+    SingleColumnValueFilter ko = new SingleColumnValueFilter(D, STATUS, CompareOp.EQUAL, Bytes.toBytes("KO"));
+    ko.setFilterIfMissing(true);
+    assertNull(scan(HBaseAggregator.project(new Scan().setFilter(ko), A, x), row()));
+  }
+}
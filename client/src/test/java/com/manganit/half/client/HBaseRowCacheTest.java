@@ -0,0 +1,90 @@
+package com.manganit.half.client;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Unit test for the write versions of HBaseRowCache.
+ */
+public class HBaseRowCacheTest
+        extends TestCase {
+
+  private static final TableName TABLE = TableName.valueOf("t");
+  private static final byte[] ROW = Bytes.toBytes("r1");
+
+  private HBaseRowCache cache;
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public HBaseRowCacheTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(HBaseRowCacheTest.class);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    cache = new HBaseRowCache(100, 60000L);
+  }
+
+  private static Result empty() {
+    return Result.create(Collections.<Cell>emptyList());
+  }
+
+  /**
+   * @return a row of another stripe than ROW
+   */
+  private static byte[] otherStripe() {
+    int stripe = HBaseRowCache.stripe(TABLE, ROW);
+    for (int i = 0;; i++) {
+      byte[] row = Bytes.toBytes("o" + i);
+      if (HBaseRowCache.stripe(TABLE, row) != stripe) {
+        return row;
+      }
+    }
+  }
+
+  public void testLoadDuringWriteOfTheRowIsNotCached() throws IOException {
+    cache.get(TABLE, ROW, () -> {
+      cache.invalidate(TABLE, ROW);
+      return empty();
+    });
+    assertEquals(0, cache.size());
+  }
+
+  public void testLoadDuringWriteOfAnotherStripeIsCached() throws IOException {
+    final byte[] other = otherStripe();
+    cache.get(TABLE, ROW, () -> {
+      cache.invalidate(TABLE, other);
+      return empty();
+    });
+    assertEquals(1, cache.size());
+    long misses = cache.getMissCount();
+    cache.get(TABLE, ROW, HBaseRowCacheTest::empty);
+    assertEquals(misses, cache.getMissCount());
+  }
+
+  public void testLoadDuringInvalidateAllIsNotCached() throws IOException {
+    cache.get(TABLE, ROW, () -> {
+      cache.invalidateAll();
+      return empty();
+    });
+    assertEquals(0, cache.size());
+  }
+}
@@ -0,0 +1,176 @@
+package com.manganit.half.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Unit test for HBaseWriter.
+ */
+public class HBaseWriterTest
+        extends TestCase {
+
+  private static final TableName TABLE = TableName.valueOf("t");
+  private static final byte[] FAMILY = Bytes.toBytes("f");
+  private static final byte[] QUALIFIER = Bytes.toBytes("q");
+
+  /**
+   * Mutator applying the buffered puts to a map on flush, or failing them
+   */
+  private static class FakeMutator implements BufferedMutator {
+
+    final Map<String, String> store = new HashMap<>();
+    final List<Mutation> buffer = new ArrayList<>();
+    ExceptionListener listener;
+    boolean failing = false;
+
+    @Override
+    public TableName getName() {
+      return TABLE;
+    }
+
+    @Override
+    public Configuration getConfiguration() {
+      return new Configuration(false);
+    }
+
+    @Override
+    public synchronized void mutate(Mutation mutation) {
+      buffer.add(mutation);
+    }
+
+    @Override
+    public synchronized void mutate(List<? extends Mutation> mutations) {
+      buffer.addAll(mutations);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+      List<Mutation> sent = new ArrayList<>(buffer);
+      buffer.clear();
+      if (failing) {
+        List<Throwable> causes = new ArrayList<>();
+        List<Row> rows = new ArrayList<>();
+        List<String> hosts = new ArrayList<>();
+        for (Mutation m : sent) {
+          causes.add(new IOException("region server down"));
+          rows.add(m);
+          hosts.add("rs1");
+        }
+        listener.onException(new RetriesExhaustedWithDetailsException(causes, rows, hosts), this);
+        return;
+      }
+      for (Mutation m : sent) {
+        Cell cell = m.getFamilyCellMap().get(FAMILY).get(0);
+        store.put(Bytes.toString(m.getRow()), Bytes.toString(CellUtil.cloneValue(cell)));
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+
+    @Override
+    public long getWriteBufferSize() {
+      return Long.MAX_VALUE;
+    }
+  }
+
+  private HBaseClient client;
+  private FakeMutator mutator;
+  private HBaseWriter writer;
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public HBaseWriterTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(HBaseWriterTest.class);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    Configuration conf = new Configuration(false);
+    conf.setInt(HBaseRowCache.MAX_ENTRIES_KEY, 100);
+    client = new HBaseClient(conf);
+    mutator = new FakeMutator();
+    writer = new HBaseWriter(client, TABLE, 0, Long.MAX_VALUE, null, l -> {
+      mutator.listener = l;
+      return mutator;
+    });
+  }
+
+  /**
+   * Read a row through the row cache, loading it from the fake store
+   */
+  private String read(String row) throws IOException {
+    final byte[] key = Bytes.toBytes(row);
+    Result result = client.getRowCache().get(TABLE, key, () -> {
+      String value = mutator.store.get(row);
+      if (value == null) {
+        return Result.create(Collections.<Cell>emptyList());
+      }
+      return Result.create(new Cell[]{new KeyValue(key, FAMILY, QUALIFIER, Bytes.toBytes(value))});
+    });
+    byte[] value = result.getValue(FAMILY, QUALIFIER);
+    return value == null ? null : Bytes.toString(value);
+  }
+
+  public void testReadDuringBufferedWriteIsNotServedStale() throws IOException {
+    mutator.store.put("r1", "old");
+    assertEquals("old", read("r1"));
+    writer.put(Bytes.toBytes("r1"), FAMILY, QUALIFIER, Bytes.toBytes("new"));
+    // the write is still buffered, the read reloads and caches the old value
+    assertEquals("old", read("r1"));
+    writer.flush();
+    assertEquals("new", read("r1"));
+  }
+
+  public void testFailedMutationsAreInvalidated() throws IOException {
+    mutator.store.put("r2", "old");
+    writer.put(new Put(Bytes.toBytes("r2")).addColumn(FAMILY, QUALIFIER, Bytes.toBytes("new")));
+    assertEquals("old", read("r2"));
+    long misses = client.getRowCache().getMissCount();
+    mutator.failing = true;
+    writer.flush();
+    assertEquals(1, writer.getFailureCount());
+    assertEquals("old", read("r2"));
+    assertEquals(misses + 1, client.getRowCache().getMissCount());
+  }
+
+  public void testCloseFlushesAndInvalidates() throws IOException {
+    mutator.store.put("r3", "old");
+    writer.put(Bytes.toBytes("r3"), FAMILY, QUALIFIER, Bytes.toBytes("new"));
+    assertEquals("old", read("r3"));
+    writer.close();
+    assertEquals("new", read("r3"));
+  }
+}
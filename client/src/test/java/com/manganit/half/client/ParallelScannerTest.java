@@ -0,0 +1,99 @@
+package com.manganit.half.client;
+
+import java.util.List;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+
+/**
+ * Unit test for ParallelScanner.
+ */
+public class ParallelScannerTest
+        extends TestCase {
+
+  private static final byte[] E = HConstants.EMPTY_BYTE_ARRAY;
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public ParallelScannerTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ParallelScannerTest.class);
+  }
+
+  private static Pair<byte[][], byte[][]> regions() {
+    byte[][] starts = {E, Bytes.toBytes("g"), Bytes.toBytes("p")};
+    byte[][] ends = {Bytes.toBytes("g"), Bytes.toBytes("p"), E};
+    return new Pair<>(starts, ends);
+  }
+
+  public void testSplitFullTable() throws Exception {
+    List<Scan> scans = ParallelScanner.split(new Scan(), regions());
+    assertEquals(3, scans.size());
+    assertEquals(0, scans.get(0).getStartRow().length);
+    assertEquals("g", Bytes.toString(scans.get(0).getStopRow()));
+    assertEquals("p", Bytes.toString(scans.get(2).getStartRow()));
+    assertEquals(0, scans.get(2).getStopRow().length);
+  }
+
+  public void testSplitKeyRange() throws Exception {
+    Scan template = new Scan(Bytes.toBytes("c"), Bytes.toBytes("k"));
+    List<Scan> scans = ParallelScanner.split(template, regions());
+    assertEquals(2, scans.size());
+    assertEquals("c", Bytes.toString(scans.get(0).getStartRow()));
+    assertEquals("g", Bytes.toString(scans.get(0).getStopRow()));
+    assertEquals("g", Bytes.toString(scans.get(1).getStartRow()));
+    assertEquals("k", Bytes.toString(scans.get(1).getStopRow()));
+  }
+
+  public void testSplitOpenEndedRange() throws Exception {
+    Scan template = new Scan(Bytes.toBytes("q"));
+    List<Scan> scans = ParallelScanner.split(template, regions());
+    assertEquals(1, scans.size());
+    assertEquals("q", Bytes.toString(scans.get(0).getStartRow()));
+    assertEquals(0, scans.get(0).getStopRow().length);
+  }
+
+  public void testValueFilterTemplate() throws Exception {
+    Scan template = new Scan();
+    template.setFilter(new SingleColumnValueFilter(Bytes.toBytes("d"), Bytes.toBytes("status"),
+            CompareOp.EQUAL, Bytes.toBytes("OK")));
+    template.setCaching(50);
+    template.setCacheBlocks(false);
+    ParallelScanner scanner = new ParallelScanner(null, TableName.valueOf("t"));
+    for (Scan scan : ParallelScanner.split(template, regions())) {
+      // no batch with a filter on whole rows, the template settings are kept
+      scanner.configure(scan);
+      assertEquals(-1, scan.getBatch());
+      assertEquals(50, scan.getCaching());
+      assertFalse(scan.getCacheBlocks());
+      assertTrue(scan.getFilter() instanceof SingleColumnValueFilter);
+    }
+    Scan scan = new Scan(template);
+    scanner.setCaching(200).setBatch(-1).setCacheBlocks(true).configure(scan);
+    assertEquals(-1, scan.getBatch());
+    assertEquals(200, scan.getCaching());
+    assertTrue(scan.getCacheBlocks());
+  }
+
+  public void testDefaultCaching() throws Exception {
+    Scan scan = new Scan();
+    new ParallelScanner(null, TableName.valueOf("t")).configure(scan);
+    assertEquals(ParallelScanner.DEFAULT_CACHING, scan.getCaching());
+  }
+}
@@ -0,0 +1,93 @@
+package com.manganit.half.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Unit test for RegionSkewAnalyzer.
+ */
+public class RegionSkewAnalyzerTest
+        extends TestCase {
+
+  private static final TableName TABLE = TableName.valueOf("skew");
+  private static final ServerName RS1 = ServerName.valueOf("rs1", 16020, 1L);
+  private static final ServerName RS2 = ServerName.valueOf("rs2", 16020, 1L);
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public RegionSkewAnalyzerTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(RegionSkewAnalyzerTest.class);
+  }
+
+  private static List<HRegionInfo> regions(int n) {
+    List<HRegionInfo> regions = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      byte[] start = i == 0 ? new byte[0] : Bytes.toBytes("k" + i);
+      byte[] end = i == n - 1 ? new byte[0] : Bytes.toBytes("k" + (i + 1));
+      regions.add(new HRegionInfo(TABLE, start, end, false, 1L));
+    }
+    return regions;
+  }
+
+  private static RegionSkewAnalyzer.RegionStats stats(HRegionInfo region, ServerName server, double rate) {
+    return new RegionSkewAnalyzer.RegionStats(region, server, rate, 100, 10, 2, 1.0f);
+  }
+
+  public void testEvenLoadNeedsNoAction() {
+    List<HRegionInfo> regions = regions(4);
+    List<RegionSkewAnalyzer.RegionStats> stats = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      stats.add(stats(regions.get(i), i % 2 == 0 ? RS1 : RS2, 100));
+    }
+    RegionSkewAnalyzer.Plan plan = new RegionSkewAnalyzer(null, new Configuration(false)).plan(TABLE, stats);
+    assertTrue(plan.getActions().isEmpty());
+    assertEquals(1.0, plan.getRegionSkew(), 1e-9);
+  }
+
+  public void testHotRegionIsSplitAndColdRegionsMerged() {
+    List<HRegionInfo> regions = regions(6);
+    List<RegionSkewAnalyzer.RegionStats> stats = new ArrayList<>();
+    stats.add(stats(regions.get(0), RS1, 1000));
+    stats.add(stats(regions.get(1), RS2, 100));
+    stats.add(stats(regions.get(2), RS1, 100));
+    stats.add(stats(regions.get(3), RS2, 100));
+    stats.add(stats(regions.get(4), RS1, 1));
+    stats.add(stats(regions.get(5), RS2, 1));
+    RegionSkewAnalyzer.Plan plan = new RegionSkewAnalyzer(null, new Configuration(false)).plan(TABLE, stats);
+    assertEquals(RegionSkewAnalyzer.Action.Type.SPLIT, plan.getActions().get(0).getType());
+    assertEquals(regions.get(0), plan.getActions().get(0).getRegion());
+    assertEquals(RegionSkewAnalyzer.Action.Type.MERGE, plan.getActions().get(1).getType());
+    assertEquals(regions.get(4), plan.getActions().get(1).getRegion());
+  }
+
+  public void testOverloadedServerIsRelieved() {
+    List<HRegionInfo> regions = regions(4);
+    List<RegionSkewAnalyzer.RegionStats> stats = new ArrayList<>();
+    stats.add(stats(regions.get(0), RS1, 200));
+    stats.add(stats(regions.get(1), RS1, 200));
+    stats.add(stats(regions.get(2), RS1, 200));
+    stats.add(stats(regions.get(3), RS2, 20));
+    RegionSkewAnalyzer.Plan plan = new RegionSkewAnalyzer(null, new Configuration(false)).plan(TABLE, stats);
+    assertEquals(1, plan.getActions().size());
+    assertEquals(RegionSkewAnalyzer.Action.Type.MOVE, plan.getActions().get(0).getType());
+  }
+}
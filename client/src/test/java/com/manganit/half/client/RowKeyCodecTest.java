@@ -0,0 +1,61 @@
+package com.manganit.half.client;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Unit test for RowKeyCodec.
+ */
+public class RowKeyCodecTest
+        extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public RowKeyCodecTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(RowKeyCodecTest.class);
+  }
+
+  public void testRoundTrip() {
+    RowKeyCodec codec = new RowKeyCodec(16);
+    byte[] key = codec.newKey().add("app").add(-42L).addReversedTimestamp(1500000000000L).add(7).build();
+    assertEquals(codec.bucketOf(codec.unsalt(key)), key[0]);
+    RowKeyCodec.KeyReader reader = codec.read(key);
+    assertEquals("app", reader.readString());
+    assertEquals(-42L, reader.readLong());
+    assertEquals(1500000000000L, reader.readReversedTimestamp());
+    assertEquals(7, reader.readInt());
+  }
+
+  public void testOrderIsPreserved() {
+    RowKeyCodec codec = new RowKeyCodec(0);
+    byte[] negative = codec.newKey().add(-1L).build();
+    byte[] positive = codec.newKey().add(1L).build();
+    assertTrue(Bytes.compareTo(negative, positive) < 0);
+    byte[] older = codec.newKey().addReversedTimestamp(1000L).build();
+    byte[] newer = codec.newKey().addReversedTimestamp(2000L).build();
+    assertTrue(Bytes.compareTo(newer, older) < 0);
+    byte[] shortName = codec.newKey().add("ab").add(9L).build();
+    byte[] longName = codec.newKey().add("abc").add(0L).build();
+    assertTrue(Bytes.compareTo(shortName, longName) < 0);
+  }
+
+  public void testBucketsAreBounded() {
+    RowKeyCodec codec = new RowKeyCodec(8);
+    for (long i = 0; i < 1000; i++) {
+      int bucket = codec.bucketOf(Bytes.toBytes(i));
+      assertTrue(bucket >= 0 && bucket < 8);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package com.manganit.half.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Unit test for the bucket scans and the merge order of SaltedScanner.
+ */
+public class SaltedScannerTest
+        extends TestCase {
+
+  private static final byte[] FAMILY = Bytes.toBytes("d");
+
+  private final RowKeyCodec codec = new RowKeyCodec(4);
+  private final SaltedScanner scanner = new SaltedScanner(null, TableName.valueOf("t"), codec);
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public SaltedScannerTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(SaltedScannerTest.class);
+  }
+
+  private Result row(String key) {
+    byte[] row = codec.salt(Bytes.toBytes(key));
+    return Result.create(new Cell[]{new KeyValue(row, FAMILY, FAMILY, row)});
+  }
+
+  private static List<String> keys(List<Result> results) {
+    List<String> keys = new ArrayList<>();
+    for (Result r : results) {
+      keys.add(Bytes.toString(r.getRow(), 1, r.getRow().length - 1));
+    }
+    return keys;
+  }
+
+  public void testBucketScan() throws IOException {
+    Scan scan = scanner.bucketScan(new Scan(Bytes.toBytes("b"), Bytes.toBytes("d")), 2);
+    assertTrue(Bytes.equals(codec.withBucket(2, Bytes.toBytes("b")), scan.getStartRow()));
+    assertTrue(Bytes.equals(codec.withBucket(2, Bytes.toBytes("d")), scan.getStopRow()));
+
+    Scan all = scanner.bucketScan(new Scan(), 2);
+    assertTrue(Bytes.equals(new byte[]{2}, all.getStartRow()));
+    assertTrue(Bytes.equals(new byte[]{3}, all.getStopRow()));
+    assertEquals(0, scanner.bucketScan(new Scan(), 3).getStopRow().length);
+  }
+
+  public void testReversedBucketScan() throws IOException {
+    Scan template = new Scan(Bytes.toBytes("d"), Bytes.toBytes("b"));
+    template.setReversed(true);
+    Scan scan = scanner.bucketScan(template, 2);
+    assertTrue(scan.isReversed());
+    assertTrue(Bytes.equals(codec.withBucket(2, Bytes.toBytes("d")), scan.getStartRow()));
+    assertTrue(Bytes.equals(codec.withBucket(2, Bytes.toBytes("b")), scan.getStopRow()));
+
+    Scan reversed = new Scan();
+    reversed.setReversed(true);
+    Scan all = scanner.bucketScan(reversed, 2);
+    // from the end of the bucket down to its first key
+    assertTrue(Bytes.equals(new byte[]{3}, all.getStartRow()));
+    assertTrue(Bytes.compareTo(all.getStopRow(), new byte[]{2}) < 0);
+    assertTrue(Bytes.compareTo(all.getStopRow(), codec.withBucket(1, Bytes.toBytes("zzz"))) > 0);
+    assertEquals(0, scanner.bucketScan(reversed, 3).getStartRow().length);
+    assertEquals(0, scanner.bucketScan(reversed, 0).getStopRow().length);
+  }
+
+  public void testRowOrder() {
+    List<Result> rows = new ArrayList<>();
+    for (String key : new String[]{"c", "a", "e", "b", "d"}) {
+      rows.add(row(key));
+    }
+    Collections.sort(rows, scanner.rowOrder(false));
+    assertEquals("[a, b, c, d, e]", keys(rows).toString());
+    Collections.sort(rows, scanner.rowOrder(true));
+    assertEquals("[e, d, c, b, a]", keys(rows).toString());
+  }
+}
@@ -0,0 +1,103 @@
+package com.manganit.half.client;
+
+import java.io.IOException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.SingleColumnValueExcludeFilter;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Unit test for ScanQuery.
+ */
+public class ScanQueryTest
+        extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public ScanQueryTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ScanQueryTest.class);
+  }
+
+  public void testPrefix() throws IOException {
+    Scan scan = new ScanQuery().prefix(Bytes.toBytes("ab")).build();
+    assertEquals("ab", Bytes.toString(scan.getStartRow()));
+    assertEquals("ac", Bytes.toString(scan.getStopRow()));
+  }
+
+  public void testReversedPrefixStopsBelowThePrefix() throws IOException {
+    byte[] prefix = Bytes.toBytes("ab");
+    Scan scan = new ScanQuery().prefix(prefix).reversed(true).build();
+    assertEquals("ac", Bytes.toString(scan.getStartRow()));
+    byte[] stop = scan.getStopRow();
+    assertTrue(stop.length > 0);
+    assertTrue(Bytes.compareTo(stop, prefix) < 0);
+    assertTrue(Bytes.compareTo(stop, Bytes.toBytes("aa\u007f")) > 0);
+  }
+
+  public void testPreviousPrefix() {
+    assertEquals(0, ScanQuery.previousPrefix(new byte[0]).length);
+    assertTrue(Bytes.equals(new byte[]{1}, ScanQuery.previousPrefix(new byte[]{1, 0})));
+    byte[] previous = ScanQuery.previousPrefix(new byte[]{1, 5});
+    assertTrue(Bytes.compareTo(previous, new byte[]{1, 5}) < 0);
+    assertTrue(Bytes.compareTo(previous, new byte[]{1, 4, (byte) 0xff, (byte) 0xff}) > 0);
+  }
+
+  public void testPrefixWithinRange() throws IOException {
+    Scan scan = new ScanQuery().range(Bytes.toBytes("ab5"), Bytes.toBytes("b"))
+            .prefix(Bytes.toBytes("ab")).build();
+    assertEquals("ab5", Bytes.toString(scan.getStartRow()));
+    assertEquals("ac", Bytes.toString(scan.getStopRow()));
+  }
+
+  public void testReversedPrefixWithinRange() throws IOException {
+    Scan scan = new ScanQuery().range(Bytes.toBytes("ab5"), Bytes.toBytes("ab2"))
+            .prefix(Bytes.toBytes("ab")).reversed(true).build();
+    assertEquals("ab5", Bytes.toString(scan.getStartRow()));
+    assertEquals("ab2", Bytes.toString(scan.getStopRow()));
+  }
+
+  public void testDisjointRangeAndPrefixIsRejected() throws IOException {
+    try {
+      new ScanQuery().range(Bytes.toBytes("c"), Bytes.toBytes("d")).prefix(Bytes.toBytes("ab")).build();
+      fail("disjoint range and prefix");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testProjectionReadsTheFilteredColumn() throws IOException {
+    Scan scan = new ScanQuery()
+            .columns("d:name", "d:amount")
+            .whereEquals("d", "status", Bytes.toBytes("OK"))
+            .build();
+    byte[] d = Bytes.toBytes("d");
+    assertTrue(scan.getFamilyMap().get(d).contains(Bytes.toBytes("status")));
+    assertTrue(scan.getFamilyMap().get(d).contains(Bytes.toBytes("name")));
+    // the status is tested but not returned
+    assertTrue(scan.getFilter() instanceof SingleColumnValueExcludeFilter);
+    assertTrue(((SingleColumnValueFilter) scan.getFilter()).getFilterIfMissing());
+  }
+
+  public void testProjectedFilteredColumnIsReturned() throws IOException {
+    Scan scan = new ScanQuery()
+            .columns("d")
+            .whereEquals("d", "status", Bytes.toBytes("OK"))
+            .build();
+    assertFalse(scan.getFilter() instanceof SingleColumnValueExcludeFilter);
+    assertTrue(scan.getFilter() instanceof SingleColumnValueFilter);
+  }
+}
@@ -0,0 +1,63 @@
+package com.manganit.half.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Unit test for SplitPoints.
+ */
+public class SplitPointsTest
+        extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public SplitPointsTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(SplitPointsTest.class);
+  }
+
+  public void testUniform() {
+    byte[][] splits = SplitPoints.uniform(4);
+    assertEquals(3, splits.length);
+    assertEquals(0x40, splits[0][0] & 0xff);
+    assertEquals(0x80, splits[1][0] & 0xff);
+    assertEquals(0xc0, splits[2][0] & 0xff);
+    assertEquals(0, SplitPoints.uniform(1).length);
+  }
+
+  public void testFromSampleIsSortedAndBalanced() {
+    List<byte[]> keys = new ArrayList<>();
+    for (int i = 999; i >= 0; i--) {
+      keys.add(Bytes.toBytes(String.format("key%04d", i)));
+    }
+    byte[][] splits = SplitPoints.fromSample(keys.iterator(), 4, 10000);
+    assertEquals(3, splits.length);
+    assertEquals("key0250", Bytes.toString(splits[0]));
+    assertEquals("key0500", Bytes.toString(splits[1]));
+    assertEquals("key0750", Bytes.toString(splits[2]));
+  }
+
+  public void testFromSampleDropsDuplicates() {
+    List<byte[]> keys = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      keys.add(Bytes.toBytes("same"));
+    }
+    byte[][] splits = SplitPoints.fromSample(keys.iterator(), 8, 1000);
+    assertEquals(1, splits.length);
+    assertEquals(0, SplitPoints.fromSample(new ArrayList<byte[]>().iterator(), 8, 1000).length);
+  }
+}
@@ -0,0 +1,82 @@
+package com.manganit.half.client;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.io.compress.Compression;
+import org.apache.hadoop.hbase.io.encoding.DataBlockEncoding;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Unit test for TableSpec and SchemaDiff.
+ */
+public class TableSpecTest
+        extends TestCase {
+
+  private static final String SPEC = "table=events\n"
+          + "splits=\\\\x10,\\\\x20\n"
+          + "family.d.compression=snappy\n"
+          + "family.d.encoding=FAST_DIFF\n"
+          + "family.d.ttl=3600\n"
+          + "family.raw.enabled=true\n";
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public TableSpecTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(TableSpecTest.class);
+  }
+
+  private static TableSpec load() throws Exception {
+    return TableSpec.load(new ByteArrayInputStream(SPEC.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  public void testLoad() throws Exception {
+    TableSpec spec = load();
+    assertEquals(TableName.valueOf("events"), spec.getTableName());
+    assertEquals(2, spec.getSplitKeys().length);
+    assertTrue(Bytes.equals(new byte[]{0x10}, spec.getSplitKeys()[0]));
+    HTableDescriptor htd = spec.toDescriptor();
+    HColumnDescriptor d = htd.getFamily(Bytes.toBytes("d"));
+    assertEquals(Compression.Algorithm.SNAPPY, d.getCompressionType());
+    assertEquals(DataBlockEncoding.FAST_DIFF, d.getDataBlockEncoding());
+    assertEquals(3600, d.getTimeToLive());
+    assertTrue(htd.hasFamily(Bytes.toBytes("raw")));
+  }
+
+  public void testDiffOfNewTable() throws Exception {
+    SchemaDiff diff = new SchemaDiff(null, load());
+    assertFalse(diff.isEmpty());
+    assertTrue(diff.getChanges().get(0).startsWith("create table"));
+  }
+
+  public void testDiffOfLiveTable() throws Exception {
+    TableSpec spec = load();
+    assertTrue(new SchemaDiff(spec.toDescriptor(), spec).isEmpty());
+
+    HTableDescriptor live = new HTableDescriptor(TableName.valueOf("events"));
+    live.addFamily(new HColumnDescriptor("d"));
+    live.addFamily(new HColumnDescriptor("old"));
+    SchemaDiff diff = new SchemaDiff(live, spec);
+    // compression, encoding and ttl of d, and the new raw family
+    assertEquals(4, diff.getChanges().size());
+
+    diff = new SchemaDiff(live, spec.dropUnlistedFamilies(true));
+    assertTrue(diff.getChanges().contains("drop family old"));
+  }
+}
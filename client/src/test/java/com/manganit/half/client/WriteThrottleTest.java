@@ -0,0 +1,87 @@
+package com.manganit.half.client;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.hbase.RegionTooBusyException;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.TableName;
+
+/**
+ * Unit test for WriteThrottle.
+ */
+public class WriteThrottleTest
+        extends TestCase {
+
+  private static final TableName TABLE = TableName.valueOf("t");
+  private static final ServerName RS1 = ServerName.valueOf("rs1", 16020, 1L);
+  private static final ServerName RS2 = ServerName.valueOf("rs2", 16020, 1L);
+  private static final long MB = 1024 * 1024;
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public WriteThrottleTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(WriteThrottleTest.class);
+  }
+
+  public void testBurstOfFailuresDecreasesOnce() {
+    WriteThrottle throttle = new WriteThrottle(1000, 10, 10000, 500, 100, 0.5f, 60000, 2 * MB);
+    for (int i = 0; i < 500; i++) {
+      throttle.onFailure(TABLE, RS1, new RegionTooBusyException("busy"));
+    }
+    assertEquals(500.0, throttle.getRate(TABLE));
+    assertEquals(500.0, throttle.getRate(RS1));
+  }
+
+  public void testNoIncreaseWithinDecreaseInterval() {
+    WriteThrottle throttle = new WriteThrottle(1000, 10, 10000, 500, 100, 0.5f, 60000, 2 * MB);
+    throttle.onFailure(TABLE, RS1, new RegionTooBusyException("busy"));
+    throttle.onSuccess(TABLE, RS1, 10);
+    assertEquals(500.0, throttle.getRate(TABLE));
+  }
+
+  public void testDecreaseAgainAfterInterval() {
+    WriteThrottle throttle = new WriteThrottle(1000, 10, 10000, 500, 100, 0.5f, 0, 2 * MB);
+    throttle.onFailure(TABLE, RS1, new RegionTooBusyException("busy"));
+    throttle.onFailure(TABLE, RS1, new RegionTooBusyException("busy"));
+    assertEquals(250.0, throttle.getRate(TABLE));
+    throttle.onSuccess(TABLE, RS1, 10);
+    assertEquals(350.0, throttle.getRate(TABLE));
+  }
+
+  public void testSuccessCreditsEachServer() {
+    WriteThrottle throttle = new WriteThrottle(1000, 10, 10000, 500, 100, 0.5f, 0, 2 * MB);
+    Map<ServerName, Long> bytes = new HashMap<>();
+    bytes.put(RS1, MB);
+    bytes.put(RS2, MB);
+    throttle.onSuccess(TABLE, bytes, 2 * MB, 100);
+    assertEquals(1100.0, throttle.getRate(TABLE));
+    assertEquals(1100.0, throttle.getRate(RS1));
+    assertEquals(1100.0, throttle.getRate(RS2));
+  }
+
+  public void testLargeBatchLatencyIsNormalized() {
+    WriteThrottle throttle = new WriteThrottle(1000, 10, 10000, 500, 100, 0.5f, 0, 2 * MB);
+    Map<ServerName, Long> bytes = new HashMap<>();
+    bytes.put(RS1, 8 * MB);
+    // 8 MB in 1.2 s is 300 ms per 2 MB, under the target latency
+    throttle.onSuccess(TABLE, bytes, 8 * MB, 1200);
+    assertEquals(1100.0, throttle.getRate(RS1));
+    assertEquals(1100.0, throttle.getRate(TABLE));
+    assertEquals(300, throttle.normalize(1200, 8 * MB));
+    assertEquals(400, throttle.normalize(400, MB));
+  }
+}
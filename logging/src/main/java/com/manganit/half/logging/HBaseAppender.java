@@ -18,27 +18,80 @@ package com.manganit.half.logging;
 
 import com.manganit.half.util.NamedThreadFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
-import org.apache.hadoop.hbase.client.HConnection;
-import org.apache.hadoop.hbase.client.HConnectionManager;
-import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.BufferedMutatorParams;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.ConnectionFactory;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
 
 import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
 import org.apache.log4j.spi.LoggingEvent;
 
 /**
+ * Log4J appender writing the events to an HBase table.
+ * <p>
+ * The events are queued in a bounded preallocated {@link RingBuffer} and
+ * written by a background thread, so a slow or unavailable HBase never grows
+ * the heap. When the buffer is full the overflow policy applies:
+ * <ul>
+ * <li>BLOCK: wait for a free slot, except on the writer thread itself,</li>
+ * <li>DROP_NEWEST: drop the new event,</li>
+ * <li>DROP_OLDEST: evict the oldest event to make room,</li>
+ * <li>DROP_BELOW_LEVEL: drop the new event below the drop threshold level,
+ * evict the oldest one otherwise.</li>
+ * </ul>
+ * The dropped events are counted, see {@link #getDroppedCount()}.
+ * <p>
+ * A dedicated flusher thread writes the buffered events as soon as one of
+ * the triggers fires: {@code batchSize} events buffered, the oldest buffered
+ * event waiting for {@code period} milliseconds, or about
+ * {@code maxBatchBytes} bytes of messages buffered. Each write takes at most
+ * {@code maxBatchSize} events, the flusher loops until the triggers are off.
+ * <p>
+ * The writes go through a {@link BufferedMutator}: the batches triggered by
+ * bytes fill its write buffer of {@code maxBatchBytes} and are sent
+ * asynchronously, with up to {@code maxInFlight} concurrent requests per
+ * RegionServer. The batches triggered by {@code batchSize} events or by the
+ * linger period are written and flushed, the flusher waiting for HBase to
+ * acknowledge them. The puts failing after the HBase client retries are resubmitted
+ * with an exponential backoff, {@code maxRetries} times at most. Closing the
+ * appender writes and flushes the buffered events, within
+ * {@code closeTimeout} milliseconds.
+ * <p>
+ * The row keys are built by a {@link LogRowKey} from {@code saltBuckets},
+ * {@code keyPrefix} and {@code reversedTimestamp}, read the events back with
+ * a {@link HBaseLogReader} using the same settings. Each row holds the
+ * formatted event in the {@code log} column, its level and thread name in
+ * the {@code level} and {@code thread} columns.
+ * <p>
+ * With a {@code spillDir}, the appender survives the HBase outages: while
+ * HBase cannot be reached, or once a put exhausted its retries, the events
+ * are appended to local {@link SpillLog} segments instead, up to
+ * {@code spillMaxBytes}. A background thread replays the segments in order,
+ * with a backoff, and the appender writes to HBase again after a successful
+ * replay. The connection is retried with the same backoff, and the segments
+ * left by a previous run are replayed too.
  *
  * @author Damien Claveau
  * 
@@ -46,16 +99,75 @@ import org.apache.log4j.spi.LoggingEvent;
 
 public class HBaseAppender extends AppenderSkeleton implements Runnable {
 
+    /**
+     * Behaviour of {@link #append(LoggingEvent)} when the buffer is full
+     */
+    public enum OverflowPolicy {
+        BLOCK, DROP_NEWEST, DROP_OLDEST, DROP_BELOW_LEVEL
+    }
+
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final String RETRY_ATTRIBUTE = "half.log.retry";
+    private static final long MAX_RETRY_BACKOFF_MS = 60000L;
+    private static final byte[] LOG_QUALIFIER = Bytes.toBytes("log");
+    private static final byte[] LEVEL_QUALIFIER = Bytes.toBytes("level");
+    private static final byte[] THREAD_QUALIFIER = Bytes.toBytes("thread");
+
+    /**
+     * Put waiting for its resubmission
+     */
+    private static class Retry {
+
+        final Put put;
+        final long due;
+
+        Retry(Put put, long due) {
+            this.put = put;
+            this.due = due;
+        }
+    }
+
     private int batchSize = 10;
     private int period = 1000;
+    private int maxBatchSize = 1000;
+    private long maxBatchBytes = 4L * 1024 * 1024;
+    private int maxInFlight = 4;
+    private int maxRetries = 5;
+    private int retryBackoff = 100;
+    private int closeTimeout = 10000;
+    private String spillDir = null;
+    private long spillSegmentSize = 64L * 1024 * 1024;
+    private long spillMaxBytes = 1024L * 1024 * 1024;
+    private SpillLog spill;
+    // writes go to the spill until a replay succeeds
+    private volatile boolean hbaseDown = false;
+    private volatile Thread replayThread;
+    private Future<?> replayTask;
     private String hbLogName = "test";
     private String hbLogFamily = "bg";
-    private Queue<LoggingEvent> loggingEvents;
-    private ScheduledExecutorService executor;
-    private ScheduledFuture<?> task;
+    private int saltBuckets = 16;
+    private String keyPrefix = "{host}";
+    private boolean reversedTimestamp = false;
+    private LogRowKey rowKey;
+    private byte[] family;
+    private int bufferSize = 8192;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_BELOW_LEVEL;
+    private Level dropThreshold = Level.WARN;
+    private RingBuffer<LoggingEvent> loggingEvents;
+    private final AtomicLong droppedNewest = new AtomicLong();
+    private final AtomicLong droppedOldest = new AtomicLong();
+    private long reportedDrops = 0;
+    private final AtomicLong failed = new AtomicLong();
+    private long reportedFailures = 0;
+    // failed puts, only used by the flusher thread
+    private final List<Retry> retries = new ArrayList<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private volatile boolean running = false;
+    private volatile Thread writerThread;
+    private ExecutorService executor;
     private Configuration conf;
-    private HConnection hconnection;
-    private HTableInterface htable;
+    private volatile Connection connection;
+    private volatile BufferedMutator mutator;
 
     /**
      * activateOptions
@@ -64,18 +176,44 @@ public class HBaseAppender extends AppenderSkeleton implements Runnable {
     public void activateOptions() {
         try {
             super.activateOptions();
-            //time-based thread that flushes events to HBase
-            executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("HBaseAppender"));
-            //internal queue of events
-            loggingEvents = new ConcurrentLinkedQueue<>();
-            //run every [period] time-interval
-            task = executor.scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+            openBuffer();
+            rowKey = new LogRowKey(saltBuckets, keyPrefix, reversedTimestamp);
+            family = Bytes.toBytes(hbLogFamily);
+            if (spillDir != null) {
+                try {
+                    spill = new SpillLog(new File(spillDir), spillSegmentSize, spillMaxBytes);
+                } catch (IOException e) {
+                    System.err.println("Spill disabled: " + e);
+                }
+            }
+            //dedicated threads that flush events to HBase and replay the spill
+            executor = Executors.newFixedThreadPool(spill == null ? 1 : 2, new NamedThreadFactory("HBaseAppender"));
+            executor.execute(this);
+            if (spill != null) {
+                replayTask = executor.submit(this::replaySpill);
+            }
             System.out.println("ActivateOptions ok!");
         } catch (Exception e) {
+            running = false;
             System.err.println("Error during activateOptions: " + e);
         }
     }
 
+    /**
+     * Allocate the internal bounded queue of events and accept new ones
+     */
+    void openBuffer() {
+        loggingEvents = new RingBuffer<>(bufferSize);
+        running = true;
+    }
+
+    /**
+     * @return the internal queue of events
+     */
+    RingBuffer<LoggingEvent> getBuffer() {
+        return loggingEvents;
+    }
+
     /**
      * @return success or failure
      *
@@ -85,48 +223,361 @@ public class HBaseAppender extends AppenderSkeleton implements Runnable {
             if (conf == null) {
                 //read classpath hbase-site.xml
                 conf = HBaseConfiguration.create();
-                //htable connection
-                hconnection = HConnectionManager.createConnection(conf);
-                htable = hconnection.getTable(hbLogName);
-                System.out.println("Init Hbase OK!");
+                //concurrent asynchronous batches per RegionServer
+                conf.setInt(HConstants.HBASE_CLIENT_MAX_PERSERVER_TASKS, maxInFlight);
             }
+            if (connection == null) {
+                connection = ConnectionFactory.createConnection(conf);
+            }
+            BufferedMutatorParams params = new BufferedMutatorParams(TableName.valueOf(hbLogName))
+                    .writeBufferSize(maxBatchBytes)
+                    .listener((e, m) -> onWriteFailure(e));
+            mutator = connection.getBufferedMutator(params);
+            System.out.println("Init Hbase OK!");
             return true;
         } catch (Exception e) {
-            task.cancel(false);
-            executor.shutdown();
-            System.err.println("Init Hbase fail !");
+            System.err.println("Init Hbase fail ! " + e);
             return false;
         }
     }
 
+    /**
+     * Flusher loop, parked until a trigger fires, the linger time elapses, a
+     * retry is due or HBase may be reached again
+     */
     @Override
     public void run() {
-        if (conf == null || htable == null) {
-            initHbase();
-        }
-        try {
-            //
-            if (batchSize <= loggingEvents.size()) {
-                LoggingEvent event;
-                List<Put> logs = new ArrayList<>();
-                // Consume events from queue
-                while ((event = loggingEvents.poll()) != null) {
-                    try {
-                        // Row key balanced distribution among Region Servers
-                        Put log = new Put((event.getThreadName() + event.getLevel().toString() + System.currentTimeMillis()).getBytes());
-                        //
-                        log.add(hbLogFamily.getBytes(), "log".getBytes(), layout.format(event).getBytes());
-                        logs.add(log);
-                    } catch (Exception e) {
-                        System.err.println("Error logging put " + e);
+        writerThread = Thread.currentThread();
+        long lingerNanos = TimeUnit.MILLISECONDS.toNanos(period);
+        List<LoggingEvent> batch = new ArrayList<>(maxBatchSize);
+        // arrival time of the oldest events not flushed to HBase yet, 0 when there are none
+        long lingerStart = 0;
+        // next connection attempt while HBase cannot be reached
+        long reconnectAt = System.nanoTime();
+        long reconnectDelay = retryBackoff;
+        while (running) {
+            try {
+                reportDrops();
+                long now = System.nanoTime();
+                long wait = Long.MAX_VALUE;
+                if (mutator == null) {
+                    if (now - reconnectAt >= 0) {
+                        if (initHbase()) {
+                            reconnectDelay = retryBackoff;
+                        } else {
+                            reconnectAt = now + TimeUnit.MILLISECONDS.toNanos(reconnectDelay);
+                            reconnectDelay = Math.min(MAX_RETRY_BACKOFF_MS, reconnectDelay * 2);
+                        }
+                    }
+                    if (mutator == null) {
+                        wait = Math.max(0, reconnectAt - now);
+                        if (spill == null) {
+                            // nowhere to write, the events wait in the buffer
+                            LockSupport.parkNanos(this, wait);
+                            continue;
+                        }
+                    }
+                }
+                if (mutator != null) {
+                    long retryDelay = resubmit(now, false);
+                    if (retryDelay == 0 && lingerStart == 0) {
+                        lingerStart = now;
                     }
+                    wait = Math.min(wait, retryDelay);
                 }
-                // Flush and insert batch of events
-                if (logs.size() > 0) htable.put(logs);
+                if (lingerStart == 0 && loggingEvents.size() == 0) {
+                    LockSupport.parkNanos(this, Math.min(lingerNanos, wait));
+                    continue;
+                }
+                if (lingerStart == 0) {
+                    lingerStart = now;
+                }
+                if (now - lingerStart >= lingerNanos) {
+                    write(batch);
+                    if (mutator != null) {
+                        mutator.flush();
+                    }
+                    lingerStart = loggingEvents.size() > 0 ? System.nanoTime() : 0;
+                } else if (loggingEvents.size() >= batchSize) {
+                    // the write buffer is sized in bytes, it may be far from full: send the batch now
+                    write(batch);
+                    if (mutator != null) {
+                        mutator.flush();
+                    }
+                    lingerStart = loggingEvents.size() > 0 ? System.nanoTime() : 0;
+                } else if (pendingBytes.get() >= maxBatchBytes) {
+                    // sent asynchronously once the write buffer is full
+                    write(batch);
+                } else {
+                    LockSupport.parkNanos(this, Math.min(lingerStart + lingerNanos - now, wait));
+                }
+            } catch (Exception e) {
+                System.err.println("Error run " + e);
+                LockSupport.parkNanos(this, lingerNanos);
+            }
+        }
+        shutdownHbase(batch);
+    }
+
+    /**
+     * Write and flush the remaining events, then release the connection
+     *
+     * @param batch reused list of events
+     */
+    private void shutdownHbase(List<LoggingEvent> batch) {
+        if (replayTask != null) {
+            try {
+                replayTask.get(closeTimeout, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                System.err.println("Error stopping the replay " + e);
+            }
+        }
+        try {
+            while (loggingEvents.size() > 0) {
+                write(batch);
+            }
+            if (mutator != null) {
+                resubmit(System.nanoTime(), true);
+                mutator.flush();
             }
         } catch (Exception e) {
-            System.err.println("Error run " + e);
+            System.err.println("Error flushing on close " + e);
+        }
+        try {
+            // the failures of the last writes reach the retries or the spill, still open
+            if (mutator != null) mutator.close();
+        } catch (IOException e) {
+            System.err.println("Error close " + e);
+        }
+        // no more retry after the final flush, spill what is left
+        List<Put> left = new ArrayList<>(retries.size());
+        for (Retry retry : retries) {
+            left.add(retry.put);
+        }
+        retries.clear();
+        spillOrFail(left);
+        reportDrops();
+        try {
+            if (spill != null) spill.close();
+            if (connection != null) connection.close();
+        } catch (IOException e) {
+            System.err.println("Error close " + e);
+        }
+    }
+
+    /**
+     * Replay loop of the spill segments, oldest first, with a backoff while
+     * HBase is unavailable
+     */
+    private void replaySpill() {
+        replayThread = Thread.currentThread();
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(period);
+        long delay = retryBackoff;
+        while (running) {
+            File segment = null;
+            try {
+                if (mutator != null) {
+                    segment = spill.oldest();
+                }
+            } catch (IOException e) {
+                System.err.println("Error sealing spill segment " + e);
+            }
+            if (segment == null) {
+                LockSupport.parkNanos(this, idleNanos);
+                continue;
+            }
+            SpillLog.ReadResult replayed = replay(segment);
+            if (replayed != null) {
+                if (replayed.isCorrupt()) {
+                    System.err.println("Spill segment " + segment + " lost " + replayed.corruptBytes
+                            + " corrupted bytes, kept aside for inspection");
+                    spill.quarantine(segment);
+                } else {
+                    spill.delete(segment);
+                }
+                hbaseDown = false;
+                delay = retryBackoff;
+            } else if (running) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(delay));
+                delay = Math.min(MAX_RETRY_BACKOFF_MS, delay * 2);
+            }
+        }
+    }
+
+    /**
+     * Write a segment to HBase with a dedicated mutator
+     *
+     * @param segment spill segment
+     * @return the outcome of the read, null if some puts were not written
+     */
+    private SpillLog.ReadResult replay(File segment) {
+        AtomicLong errors = new AtomicLong();
+        BufferedMutatorParams params = new BufferedMutatorParams(TableName.valueOf(hbLogName))
+                .writeBufferSize(maxBatchBytes)
+                .listener((e, m) -> errors.addAndGet(e.getNumExceptions()));
+        try (BufferedMutator replayer = connection.getBufferedMutator(params)) {
+            SpillLog.ReadResult result = SpillLog.read(segment, maxBatchSize, puts -> {
+                if (!running) {
+                    throw new InterruptedIOException("Appender closed during the replay");
+                }
+                replayer.mutate(puts);
+            });
+            replayer.flush();
+            if (errors.get() == 0) {
+                System.out.println("Replayed " + result.puts + " spilled events from " + segment);
+                return result;
+            }
+        } catch (IOException e) {
+            System.err.println("Error replaying " + segment + " " + e);
+        }
+        return null;
+    }
+
+    /**
+     * Hand at most maxBatchSize events over to the mutator
+     *
+     * @param batch reused list of events
+     * @throws IOException IOException
+     */
+    private void write(List<LoggingEvent> batch) throws IOException {
+        batch.clear();
+        loggingEvents.drainTo(batch, maxBatchSize);
+        long bytes = 0;
+        List<Put> logs = new ArrayList<>(batch.size());
+        for (LoggingEvent event : batch) {
+            bytes += estimateSize(event);
+            try {
+                // salted unique row key, balanced among Region Servers
+                Put log = new Put(rowKey.next(event.getTimeStamp()));
+                long ts = event.getTimeStamp();
+                log.addColumn(family, LOG_QUALIFIER, ts, Bytes.toBytes(layout.format(event)));
+                log.addColumn(family, LEVEL_QUALIFIER, ts, Bytes.toBytes(event.getLevel().toString()));
+                log.addColumn(family, THREAD_QUALIFIER, ts, Bytes.toBytes(event.getThreadName()));
+                logs.add(log);
+            } catch (Exception e) {
+                System.err.println("Error logging put " + e);
+            }
+        }
+        batch.clear();
+        pendingBytes.addAndGet(-bytes);
+        if (logs.isEmpty()) {
+            return;
+        }
+        if (mutator == null || (hbaseDown && spill != null)) {
+            spillOrFail(logs);
+        } else {
+            mutator.mutate(logs);
+        }
+    }
+
+    /**
+     * Append puts to the spill, count them as failed when it is disabled or full
+     *
+     * @param puts puts which could not be written
+     */
+    private void spillOrFail(List<Put> puts) {
+        if (spill != null) {
+            List<Put> fitting = new ArrayList<>(puts.size());
+            for (Put put : puts) {
+                if (SpillLog.fits(put)) {
+                    fitting.add(put);
+                }
+            }
+            if (fitting.size() < puts.size()) {
+                System.err.println((puts.size() - fitting.size()) + " events too large for the spill");
+                failed.addAndGet(puts.size() - fitting.size());
+                puts = fitting;
+            }
+        }
+        if (puts.isEmpty()) {
+            return;
+        }
+        try {
+            if (spill != null && spill.append(puts)) {
+                return;
+            }
+        } catch (IOException e) {
+            System.err.println("Error spilling " + e);
         }
+        failed.addAndGet(puts.size());
+    }
+
+    /**
+     * Called by the mutator, on the flusher thread, with the puts which failed
+     * after the HBase client retries
+     *
+     * @param e failed puts
+     */
+    private void onWriteFailure(RetriesExhaustedWithDetailsException e) {
+        List<Put> lost = new ArrayList<>();
+        for (int i = 0; i < e.getNumExceptions(); i++) {
+            Row row = e.getRow(i);
+            if (!(row instanceof Put)) {
+                continue;
+            }
+            Put put = (Put) row;
+            byte[] previous = put.getAttribute(RETRY_ATTRIBUTE);
+            int attempt = previous == null ? 0 : Bytes.toInt(previous);
+            if (attempt >= maxRetries || retries.size() >= bufferSize) {
+                lost.add(put);
+                continue;
+            }
+            put.setAttribute(RETRY_ATTRIBUTE, Bytes.toBytes(attempt + 1));
+            long backoff = Math.min(MAX_RETRY_BACKOFF_MS, (long) retryBackoff << Math.min(attempt, 20));
+            retries.add(new Retry(put, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff)));
+        }
+        if (!lost.isEmpty() && spill != null) {
+            // HBase is considered down until the replay of the spill succeeds
+            hbaseDown = true;
+        }
+        spillOrFail(lost);
+    }
+
+    /**
+     * Resubmit the failed puts whose backoff elapsed
+     *
+     * @param now current nano time
+     * @param all resubmit all the puts without waiting for their backoff
+     * @return nanoseconds until the next retry, 0 if some puts were resubmitted,
+     * Long.MAX_VALUE if none is pending
+     * @throws IOException IOException
+     */
+    private long resubmit(long now, boolean all) throws IOException {
+        if (retries.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        long next = Long.MAX_VALUE;
+        List<Put> due = new ArrayList<>();
+        for (Iterator<Retry> it = retries.iterator(); it.hasNext();) {
+            Retry retry = it.next();
+            if (all || retry.due - now <= 0) {
+                due.add(retry.put);
+                it.remove();
+            } else {
+                next = Math.min(next, retry.due - now);
+            }
+        }
+        if (due.isEmpty()) {
+            return next;
+        }
+        if (hbaseDown && spill != null) {
+            spillOrFail(due);
+        } else {
+            // may call back onWriteFailure, hence outside of the iteration
+            mutator.mutate(due);
+        }
+        return 0;
+    }
+
+    /**
+     * Approximate footprint of a buffered event, counted against maxBatchBytes
+     *
+     * @param event Log4J event
+     * @return estimated size in bytes
+     */
+    private static long estimateSize(LoggingEvent event) {
+        String message = event.getRenderedMessage();
+        return 128 + (message == null ? 0 : 2L * message.length());
     }
 
     /**
@@ -139,12 +590,122 @@ public class HBaseAppender extends AppenderSkeleton implements Runnable {
         try {
             populateEvent(loggingEvent);
             //
-            loggingEvents.add(loggingEvent);
+            enqueue(loggingEvent);
         } catch (Exception e) {
             System.err.println("Error populating event and adding to queue" + e);
         }
     }
 
+    /**
+     * Queue an event, applying the overflow policy when the buffer is full
+     *
+     * @param event Log4J event
+     */
+    void enqueue(LoggingEvent event) {
+        if (loggingEvents.offer(event)) {
+            signal(estimateSize(event));
+            return;
+        }
+        OverflowPolicy policy = overflowPolicy;
+        if (policy == OverflowPolicy.DROP_BELOW_LEVEL) {
+            policy = event.getLevel().isGreaterOrEqual(dropThreshold)
+                    ? OverflowPolicy.DROP_OLDEST : OverflowPolicy.DROP_NEWEST;
+        }
+        // the writer thread, e.g. logging from the HBase client, must not wait for itself
+        if (policy == OverflowPolicy.BLOCK && Thread.currentThread() == writerThread) {
+            policy = OverflowPolicy.DROP_NEWEST;
+        }
+        switch (policy) {
+            case BLOCK:
+                while (!loggingEvents.offer(event)) {
+                    if (closed || !running || Thread.currentThread().isInterrupted()) {
+                        droppedNewest.incrementAndGet();
+                        return;
+                    }
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                }
+                signal(estimateSize(event));
+                break;
+            case DROP_OLDEST:
+                while (!loggingEvents.offer(event)) {
+                    LoggingEvent evicted = loggingEvents.poll();
+                    if (evicted != null) {
+                        pendingBytes.addAndGet(-estimateSize(evicted));
+                        droppedOldest.incrementAndGet();
+                    }
+                }
+                signal(estimateSize(event));
+                break;
+            default:
+                droppedNewest.incrementAndGet();
+                break;
+        }
+    }
+
+    /**
+     * Account a queued event and wake the flusher up when it crossed a trigger:
+     * first event of a linger period, batch size or byte budget reached
+     *
+     * @param bytes estimated size of the event
+     */
+    private void signal(long bytes) {
+        long pending = pendingBytes.addAndGet(bytes);
+        int size = loggingEvents.size();
+        if (size == 1 || size == batchSize
+                || (pending >= maxBatchBytes && pending - bytes < maxBatchBytes)) {
+            Thread writer = writerThread;
+            if (writer != null) {
+                LockSupport.unpark(writer);
+            }
+        }
+    }
+
+    /**
+     * Report the events dropped since the last report
+     */
+    private void reportDrops() {
+        long dropped = getDroppedCount();
+        if (dropped > reportedDrops) {
+            System.err.println("HBaseAppender buffer full, " + (dropped - reportedDrops)
+                    + " events dropped (" + droppedNewest.get() + " new, " + droppedOldest.get() + " old in total)");
+            reportedDrops = dropped;
+        }
+        long failures = failed.get();
+        if (failures > reportedFailures) {
+            System.err.println("HBaseAppender write failures, " + (failures - reportedFailures)
+                    + " events lost (" + failures + " in total)");
+            reportedFailures = failures;
+        }
+    }
+
+    /**
+     * @return number of events dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        return droppedNewest.get() + droppedOldest.get();
+    }
+
+    /**
+     * @return number of new events dropped because the buffer was full
+     */
+    public long getDroppedNewestCount() {
+        return droppedNewest.get();
+    }
+
+    /**
+     * @return number of old events evicted because the buffer was full
+     */
+    public long getDroppedOldestCount() {
+        return droppedOldest.get();
+    }
+
+    /**
+     * @return number of events lost because their writes kept failing
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
     /**
      * 
      *
@@ -164,13 +725,24 @@ public class HBaseAppender extends AppenderSkeleton implements Runnable {
      */
     @Override
     public void close() {
+        closed = true;
+        running = false;
         try {
-            task.cancel(false);
+            Thread writer = writerThread;
+            if (writer != null) {
+                LockSupport.unpark(writer);
+            }
+            Thread replayer = replayThread;
+            if (replayer != null) {
+                LockSupport.unpark(replayer);
+            }
+            // the flusher writes and flushes the remaining events before exiting
             executor.shutdown();
-            htable.close();
-            hconnection.close();
-        } catch (IOException e) {
-            System.err.println("Error close " + e);
+            if (!executor.awaitTermination(closeTimeout, TimeUnit.MILLISECONDS)) {
+                System.err.println("HBaseAppender not flushed within " + closeTimeout + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -186,7 +758,8 @@ public class HBaseAppender extends AppenderSkeleton implements Runnable {
     /**
      * 
      *
-     * @param batchSize Number of events before flush
+     * @param batchSize Number of buffered events triggering a write and a
+     * flush of the mutator, before the linger period elapses
      */
     public void setBatchSize(int batchSize) {
         this.batchSize = batchSize;
@@ -195,12 +768,120 @@ public class HBaseAppender extends AppenderSkeleton implements Runnable {
     /**
      * 
      *
-     * @param period Number of seconds ellapsed before flush
+     * @param period Maximum time in milliseconds an event waits before flush
      */
     public void setPeriod(int period) {
         this.period = period;
     }
 
+    /**
+     *
+     *
+     * @param maxBatchSize Maximum number of events written by one flush
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    /**
+     *
+     *
+     * @param maxBatchBytes Approximate buffered message bytes triggering a flush
+     */
+    public void setMaxBatchBytes(long maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     *
+     *
+     * @param maxInFlight Maximum number of concurrent write requests per RegionServer
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     *
+     *
+     * @param maxRetries Number of resubmissions of a failed put before it is lost
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     *
+     *
+     * @param retryBackoff Initial delay in milliseconds before a failed put is resubmitted, doubled on each attempt
+     */
+    public void setRetryBackoff(int retryBackoff) {
+        this.retryBackoff = retryBackoff;
+    }
+
+    /**
+     *
+     *
+     * @param closeTimeout Maximum time in milliseconds to flush the buffered events on close
+     */
+    public void setCloseTimeout(int closeTimeout) {
+        this.closeTimeout = closeTimeout;
+    }
+
+    /**
+     *
+     *
+     * @param spillDir Local directory of the events spilled during HBase outages, none by default
+     */
+    public void setSpillDir(String spillDir) {
+        this.spillDir = spillDir;
+    }
+
+    /**
+     *
+     *
+     * @param spillSegmentSize Size in bytes above which a new spill segment is started
+     */
+    public void setSpillSegmentSize(long spillSegmentSize) {
+        this.spillSegmentSize = spillSegmentSize;
+    }
+
+    /**
+     *
+     *
+     * @param spillMaxBytes Maximum size in bytes of the spill, the events are lost beyond
+     */
+    public void setSpillMaxBytes(long spillMaxBytes) {
+        this.spillMaxBytes = spillMaxBytes;
+    }
+
+    /**
+     *
+     *
+     * @param bufferSize Maximum number of buffered events, rounded up to a power of two
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     *
+     *
+     * @param overflowPolicy BLOCK, DROP_NEWEST, DROP_OLDEST or DROP_BELOW_LEVEL
+     */
+    public void setOverflowPolicy(String overflowPolicy) {
+        this.overflowPolicy = OverflowPolicy.valueOf(overflowPolicy.trim().toUpperCase());
+    }
+
+    /**
+     *
+     *
+     * @param dropThreshold Level below which events are dropped by DROP_BELOW_LEVEL
+     */
+    public void setDropThreshold(String dropThreshold) {
+        this.dropThreshold = Level.toLevel(dropThreshold, Level.WARN);
+    }
+
     /**
      * 
      *
@@ -217,4 +898,31 @@ public class HBaseAppender extends AppenderSkeleton implements Runnable {
     public void setHbLogFamily(String hbLogFamily) {
         this.hbLogFamily = hbLogFamily;
     }
-}
\ No newline at end of file
+
+    /**
+     *
+     *
+     * @param saltBuckets Number of row key salt buckets, at most 256, 0 or 1 for no salt
+     */
+    public void setSaltBuckets(int saltBuckets) {
+        this.saltBuckets = saltBuckets;
+    }
+
+    /**
+     *
+     *
+     * @param keyPrefix Row key prefix, e.g. "myapp/{host}" where {host} is the local host name
+     */
+    public void setKeyPrefix(String keyPrefix) {
+        this.keyPrefix = keyPrefix;
+    }
+
+    /**
+     *
+     *
+     * @param reversedTimestamp Store the newest events first in the row key order
+     */
+    public void setReversedTimestamp(boolean reversedTimestamp) {
+        this.reversedTimestamp = reversedTimestamp;
+    }
+}
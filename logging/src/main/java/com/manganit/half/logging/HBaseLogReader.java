@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.logging;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+
+/**
+ * Reader of the events written by {@link HBaseAppender} in a time range.
+ * <p>
+ * Scans the range in each salt bucket and merges the scanners, so the events
+ * come in time order, oldest first, or newest first with reversed
+ * timestamps. The {@link LogRowKey} must match the one of the appender.
+ * <pre>
+ * try (HBaseLogReader reader = new HBaseLogReader(table, rowKey, from, to)) {
+ *     while (reader.hasNext()) {
+ *         Result event = reader.next();
+ *     }
+ * }
+ * </pre>
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public class HBaseLogReader implements Iterator<Result>, Closeable {
+
+    /**
+     * Scanner of one bucket with its current row
+     */
+    private static class Head {
+
+        final ResultScanner scanner;
+        Result current;
+
+        Head(ResultScanner scanner) {
+            this.scanner = scanner;
+        }
+
+        boolean advance() throws IOException {
+            current = scanner.next();
+            return current != null;
+        }
+    }
+
+    private final List<Head> heads = new ArrayList<>();
+    private final PriorityQueue<Head> queue;
+
+    /**
+     *
+     * @param table log table
+     * @param rowKey row key layout of the appender
+     * @param from first event time in milliseconds, inclusive
+     * @param to last event time in milliseconds, exclusive
+     * @throws IOException IOException
+     */
+    public HBaseLogReader(Table table, LogRowKey rowKey, long from, long to) throws IOException {
+        this(table, rowKey, from, to, new Scan());
+    }
+
+    /**
+     *
+     * @param table log table
+     * @param rowKey row key layout of the appender
+     * @param from first event time in milliseconds, inclusive
+     * @param to last event time in milliseconds, exclusive
+     * @param template scan settings (families, filter, caching), its rows are replaced
+     * @throws IOException IOException
+     */
+    public HBaseLogReader(Table table, LogRowKey rowKey, long from, long to, Scan template) throws IOException {
+        int buckets = rowKey.getBuckets();
+        this.queue = new PriorityQueue<>(buckets, (a, b) -> rowKey.compare(a.current.getRow(), b.current.getRow()));
+        try {
+            for (int bucket = 0; bucket < buckets; bucket++) {
+                Scan scan = new Scan(template);
+                scan.setStartRow(rowKey.startRow(bucket, from, to));
+                scan.setStopRow(rowKey.stopRow(bucket, from, to));
+                Head head = new Head(table.getScanner(scan));
+                heads.add(head);
+                if (head.advance()) {
+                    queue.add(head);
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !queue.isEmpty();
+    }
+
+    @Override
+    public Result next() {
+        Head head = queue.poll();
+        if (head == null) {
+            throw new NoSuchElementException();
+        }
+        Result result = head.current;
+        try {
+            if (head.advance()) {
+                queue.add(head);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        for (Head head : heads) {
+            head.scanner.close();
+        }
+        heads.clear();
+        queue.clear();
+    }
+}
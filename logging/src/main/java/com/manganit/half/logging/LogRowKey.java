@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.logging;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Row keys of the log events:
+ * <pre>
+ * [salt][prefix][0x00][timestamp][sequence][jvm]
+ * </pre>
+ * <ul>
+ * <li>salt: one byte bucket, the sequence modulo the number of buckets,
+ * spreading the writes over as many regions; left out with less than two
+ * buckets,</li>
+ * <li>prefix: application and host, UTF-8, where {@code {host}} stands for
+ * the local host name,</li>
+ * <li>timestamp: event time in milliseconds, 8 bytes big-endian, or
+ * {@code Long.MAX_VALUE - time} to read the newest events first,</li>
+ * <li>sequence: 8 bytes, incremented for each key of the JVM,</li>
+ * <li>jvm: 4 bytes hash of the JVM name, for the JVMs sharing a prefix.</li>
+ * </ul>
+ * The keys of a JVM never collide, and within a bucket the keys of a prefix
+ * are sorted by time, so a time range is read with one scan per bucket, see
+ * {@link HBaseLogReader}.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+public final class LogRowKey {
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+    private static final int JVM_ID = ManagementFactory.getRuntimeMXBean().getName().hashCode();
+    private static final int SUFFIX_LENGTH = Bytes.SIZEOF_LONG + Bytes.SIZEOF_LONG + Bytes.SIZEOF_INT;
+
+    private final int saltBuckets;
+    private final byte[] prefix;
+    private final boolean reversed;
+
+    /**
+     *
+     * @param saltBuckets number of salt buckets, at most 256, less than two for no salt
+     * @param prefix application and host prefix, {@code {host}} is replaced by the local host name
+     * @param reversed newest events first
+     */
+    public LogRowKey(int saltBuckets, String prefix, boolean reversed) {
+        if (saltBuckets > 256) {
+            throw new IllegalArgumentException("At most 256 salt buckets: " + saltBuckets);
+        }
+        this.saltBuckets = saltBuckets < 2 ? 0 : saltBuckets;
+        this.prefix = Bytes.toBytes(resolvePrefix(prefix == null ? "" : prefix));
+        this.reversed = reversed;
+    }
+
+    private static String resolvePrefix(String prefix) {
+        if (!prefix.contains("{host}")) {
+            return prefix;
+        }
+        String hostname;
+        try {
+            hostname = InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            hostname = "unknown";
+        }
+        return prefix.replace("{host}", hostname);
+    }
+
+    /**
+     * @return number of salt buckets, 1 without salt
+     */
+    public int getBuckets() {
+        return saltBuckets == 0 ? 1 : saltBuckets;
+    }
+
+    public boolean isReversed() {
+        return reversed;
+    }
+
+    /**
+     * @param timestamp event time in milliseconds
+     * @return a new row key
+     */
+    public byte[] next(long timestamp) {
+        long sequence = SEQUENCE.getAndIncrement();
+        int bucket = saltBuckets == 0 ? 0 : (int) ((sequence & Long.MAX_VALUE) % saltBuckets);
+        byte[] key = header(bucket, SUFFIX_LENGTH);
+        int offset = key.length - SUFFIX_LENGTH;
+        offset = Bytes.putLong(key, offset, encode(timestamp));
+        offset = Bytes.putLong(key, offset, sequence);
+        Bytes.putInt(key, offset, JVM_ID);
+        return key;
+    }
+
+    /**
+     * @param bucket salt bucket
+     * @param from first event time, inclusive
+     * @param to last event time, exclusive
+     * @return first row of the range in the bucket
+     */
+    public byte[] startRow(int bucket, long from, long to) {
+        return timeRow(bucket, reversed ? encode(to - 1) : encode(from));
+    }
+
+    /**
+     * @param bucket salt bucket
+     * @param from first event time, inclusive
+     * @param to last event time, exclusive
+     * @return row following the range in the bucket
+     */
+    public byte[] stopRow(int bucket, long from, long to) {
+        return timeRow(bucket, reversed ? encode(from - 1) : encode(to));
+    }
+
+    /**
+     * @param row row key
+     * @return event time in milliseconds
+     */
+    public long getTimestamp(byte[] row) {
+        return encode(Bytes.toLong(row, row.length - SUFFIX_LENGTH));
+    }
+
+    /**
+     * Order of the rows of all the buckets, ignoring the salt
+     *
+     * @param left row key
+     * @param right row key
+     * @return comparison result
+     */
+    public int compare(byte[] left, byte[] right) {
+        int skip = saltBuckets == 0 ? 0 : 1;
+        return Bytes.compareTo(left, skip, left.length - skip, right, skip, right.length - skip);
+    }
+
+    /**
+     * Symmetric timestamp encoding
+     */
+    private long encode(long timestamp) {
+        return reversed ? Long.MAX_VALUE - timestamp : timestamp;
+    }
+
+    private byte[] timeRow(int bucket, long encoded) {
+        byte[] row = header(bucket, Bytes.SIZEOF_LONG);
+        Bytes.putLong(row, row.length - Bytes.SIZEOF_LONG, encoded);
+        return row;
+    }
+
+    /**
+     * @return salt, prefix and separator followed by room for the suffix
+     */
+    private byte[] header(int bucket, int suffix) {
+        int salt = saltBuckets == 0 ? 0 : 1;
+        byte[] row = new byte[salt + prefix.length + 1 + suffix];
+        if (salt == 1) {
+            row[0] = (byte) bucket;
+        }
+        System.arraycopy(prefix, 0, row, salt, prefix.length);
+        row[salt + prefix.length] = 0;
+        return row;
+    }
+}
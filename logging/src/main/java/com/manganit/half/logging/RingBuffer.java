@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.logging;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free ring buffer, preallocated at construction.
+ * <p>
+ * Each slot carries a sequence number telling producers and consumers
+ * whether it is free or filled for the current lap, so offer and poll only
+ * need a CAS on the tail or head counter and allocate nothing. Several
+ * threads may offer and poll concurrently, which lets producers evict the
+ * oldest element when the buffer is full.
+ *
+ * @param <E> element type
+ *
+ * @author Damien Claveau
+ *
+ */
+
+final class RingBuffer<E> {
+
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity minimum capacity, rounded up to a power of two
+     */
+    RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        slots = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * @param e element
+     * @return false if the buffer is full
+     */
+    boolean offer(E e) {
+        long pos = tail.get();
+        while (true) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots[index] = e;
+                    sequences.lazySet(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * @return the oldest element, null if the buffer is empty
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        long pos = head.get();
+        while (true) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    E e = (E) slots[index];
+                    slots[index] = null;
+                    sequences.lazySet(index, pos + mask + 1);
+                    return e;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    /**
+     * Move at most max elements to a collection
+     *
+     * @param to destination
+     * @param max maximum number of elements
+     * @return number of moved elements
+     */
+    int drainTo(Collection<? super E> to, int max) {
+        int n = 0;
+        E e;
+        while (n < max && (e = poll()) != null) {
+            to.add(e);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * @return approximate number of elements
+     */
+    int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(slots.length, size));
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright 2017 Manganit.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.manganit.half.logging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Put;
+
+/**
+ * Local append-only log of the puts which could not be written to HBase.
+ * <p>
+ * The puts are appended through a {@link FileChannel} to segment files named
+ * {@code spill-<number>.seg}, a new segment is started above the segment
+ * size. A segment starts with a magic number followed by the records:
+ * <pre>
+ * [int payload length][int payload CRC32]
+ * [short row length][row][short cell count]
+ * ([byte family length][family][short qualifier length][qualifier][long timestamp][int value length][value])*
+ * </pre>
+ * The segments without the magic number, written by previous versions, have
+ * no timestamp. The segments are read back memory-mapped, oldest first. A
+ * torn record at the end of a segment, left by a crash during an append,
+ * ends it. A corrupted record elsewhere is skipped up to the next valid one
+ * and reported, the segment is then kept as {@code spill-<number>.corrupt}.
+ * The payloads are at most {@link #MAX_RECORD} bytes, a larger length is a
+ * corruption.
+ * The segments left by a previous run are picked up at startup. A directory
+ * serves a single appender.
+ *
+ * @author Damien Claveau
+ *
+ */
+
+final class SpillLog implements Closeable {
+
+    /**
+     * Consumer of the puts read from a segment
+     */
+    interface Sink {
+
+        void accept(List<Put> puts) throws IOException;
+    }
+
+    /**
+     * Outcome of the read of a segment
+     */
+    static final class ReadResult {
+
+        long puts = 0;
+        long corruptBytes = 0;
+
+        /**
+         * @return true if corrupted records were skipped
+         */
+        boolean isCorrupt() {
+            return corruptBytes > 0;
+        }
+    }
+
+    private static final String PREFIX = "spill-";
+    private static final String SUFFIX = ".seg";
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+    private static final int HEADER = 8;
+    // negative, never the payload length of a first record
+    private static final int MAGIC = 0xCAFE5E61;
+    /**
+     * Largest record payload in bytes
+     */
+    static final int MAX_RECORD = 64 * 1024 * 1024;
+
+    private final File dir;
+    private final long segmentSize;
+    private final long maxBytes;
+    private final List<File> segments = new ArrayList<>();
+    private long nextSegment = 0;
+    private long totalBytes = 0;
+    private File activeFile;
+    private FileChannel active;
+
+    /**
+     *
+     * @param dir spill directory, created if needed
+     * @param segmentSize size in bytes above which a new segment is started
+     * @param maxBytes maximum size in bytes of all the segments
+     * @throws IOException IOException
+     */
+    SpillLog(File dir, long segmentSize, long maxBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create spill directory " + dir);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                segments.add(file);
+                totalBytes += file.length();
+                String number = file.getName().substring(PREFIX.length(), file.getName().length() - SUFFIX.length());
+                nextSegment = Math.max(nextSegment, Long.parseLong(number) + 1);
+            }
+        }
+    }
+
+    /**
+     * Append puts to the active segment
+     *
+     * @param puts puts
+     * @return false if the spill size limit is reached, the puts are not appended
+     * @throws IOException IOException, or a put larger than {@link #MAX_RECORD}
+     */
+    synchronized boolean append(List<Put> puts) throws IOException {
+        ByteBuffer buffer = encode(puts);
+        if (totalBytes + buffer.remaining() > maxBytes) {
+            return false;
+        }
+        if (active != null && active.size() >= segmentSize) {
+            seal();
+        }
+        if (active == null) {
+            activeFile = new File(dir, String.format("%s%020d%s", PREFIX, nextSegment++, SUFFIX));
+            active = FileChannel.open(activeFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            segments.add(activeFile);
+            ByteBuffer magic = ByteBuffer.allocate(4).putInt(0, MAGIC);
+            while (magic.hasRemaining()) {
+                active.write(magic);
+            }
+            totalBytes += 4;
+        }
+        totalBytes += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            active.write(buffer);
+        }
+        return true;
+    }
+
+    /**
+     * Oldest segment to replay, the active segment is sealed when it is the
+     * only one left so the next puts go to a new segment
+     *
+     * @return the oldest segment, null if there is none
+     * @throws IOException IOException
+     */
+    synchronized File oldest() throws IOException {
+        if (segments.isEmpty()) {
+            return null;
+        }
+        File oldest = segments.get(0);
+        if (oldest.equals(activeFile)) {
+            seal();
+        }
+        return oldest;
+    }
+
+    /**
+     * Delete a replayed segment
+     *
+     * @param segment segment
+     */
+    synchronized void delete(File segment) {
+        if (segments.remove(segment)) {
+            totalBytes -= segment.length();
+        }
+        if (segment.exists() && !segment.delete()) {
+            System.err.println("Cannot delete spill segment " + segment);
+        }
+    }
+
+    /**
+     * Keep a segment holding corrupted records aside, its valid records being
+     * replayed
+     *
+     * @param segment segment
+     */
+    synchronized void quarantine(File segment) {
+        if (segments.remove(segment)) {
+            totalBytes -= segment.length();
+        }
+        String name = segment.getName();
+        File corrupt = new File(dir, name.substring(0, name.length() - SUFFIX.length()) + CORRUPT_SUFFIX);
+        if (segment.exists() && !segment.renameTo(corrupt)) {
+            System.err.println("Cannot quarantine spill segment " + segment);
+        }
+    }
+
+    /**
+     * @return total size in bytes of the segments
+     */
+    synchronized long size() {
+        return totalBytes;
+    }
+
+    private void seal() throws IOException {
+        if (active != null) {
+            active.force(false);
+            active.close();
+            active = null;
+            activeFile = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        seal();
+    }
+
+    /**
+     * @param put put
+     * @return true if the put fits in a record
+     */
+    static boolean fits(Put put) {
+        return payloadSize(put) <= MAX_RECORD;
+    }
+
+    private static long payloadSize(Put put) {
+        long size = 2 + put.getRow().length + 2;
+        for (List<Cell> cells : put.getFamilyCellMap().values()) {
+            for (Cell cell : cells) {
+                size += 1 + cell.getFamilyLength() + 2 + cell.getQualifierLength() + 8 + 4 + cell.getValueLength();
+            }
+        }
+        return size;
+    }
+
+    private static ByteBuffer encode(List<Put> puts) throws IOException {
+        long size = 0;
+        for (Put put : puts) {
+            long payload = payloadSize(put);
+            if (payload > MAX_RECORD) {
+                throw new IOException("Put of " + payload + " bytes larger than a spill record");
+            }
+            size += HEADER + payload;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Puts of " + size + " bytes larger than a spill append");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        CRC32 crc = new CRC32();
+        for (Put put : puts) {
+            int start = buffer.position();
+            buffer.position(start + HEADER);
+            buffer.putShort((short) put.getRow().length).put(put.getRow());
+            buffer.putShort((short) put.size());
+            for (List<Cell> cells : put.getFamilyCellMap().values()) {
+                for (Cell cell : cells) {
+                    buffer.put(cell.getFamilyLength())
+                            .put(cell.getFamilyArray(), cell.getFamilyOffset(), cell.getFamilyLength());
+                    buffer.putShort((short) cell.getQualifierLength())
+                            .put(cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength());
+                    buffer.putLong(cell.getTimestamp());
+                    buffer.putInt(cell.getValueLength())
+                            .put(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
+                }
+            }
+            int length = buffer.position() - start - HEADER;
+            crc.reset();
+            crc.update(buffer.array(), start + HEADER, length);
+            buffer.putInt(start, length).putInt(start + 4, (int) crc.getValue());
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Read a segment, oldest puts first, skipping the corrupted records
+     *
+     * @param segment segment
+     * @param batchSize number of puts handed over at once
+     * @param sink consumer of the puts
+     * @return number of puts read and of corrupted bytes skipped
+     * @throws IOException IOException
+     */
+    static ReadResult read(File segment, int batchSize, Sink sink) throws IOException {
+        ReadResult result = new ReadResult();
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            boolean timestamps = buffer.remaining() >= 4 && buffer.getInt(0) == MAGIC;
+            if (timestamps) {
+                buffer.position(4);
+            }
+            CRC32 crc = new CRC32();
+            List<Put> puts = new ArrayList<>(batchSize);
+            while (buffer.remaining() >= HEADER) {
+                int start = buffer.position();
+                Put put = record(buffer, crc, timestamps);
+                if (put == null) {
+                    int next = resync(buffer, start + 1, crc, timestamps);
+                    if (next < 0) {
+                        int length = buffer.getInt(start);
+                        if (length <= MAX_RECORD && length > buffer.limit() - start - HEADER) {
+                            // the last record runs past the end of the segment, a torn tail
+                            System.err.println("Torn record at " + start + " in " + segment + ", "
+                                    + (buffer.limit() - start) + " bytes ignored");
+                            break;
+                        }
+                        next = buffer.limit();
+                    }
+                    System.err.println("Corrupted record at " + start + " in " + segment + ", "
+                            + (next - start) + " bytes skipped");
+                    result.corruptBytes += next - start;
+                    buffer.position(next);
+                    continue;
+                }
+                puts.add(put);
+                if (puts.size() >= batchSize) {
+                    sink.accept(puts);
+                    result.puts += puts.size();
+                    puts = new ArrayList<>(batchSize);
+                }
+            }
+            if (!puts.isEmpty()) {
+                sink.accept(puts);
+                result.puts += puts.size();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Read the record at the buffer position, the payload is checked and
+     * decoded in place
+     *
+     * @return the put, null if the record is torn or corrupted, the buffer
+     * position is then undefined
+     */
+    private static Put record(ByteBuffer buffer, CRC32 crc, boolean timestamps) {
+        if (buffer.remaining() < HEADER) {
+            return null;
+        }
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (length <= 0 || length > MAX_RECORD || length > buffer.remaining()) {
+            return null;
+        }
+        ByteBuffer payload = buffer.slice();
+        payload.limit(length);
+        buffer.position(buffer.position() + length);
+        crc.reset();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+        payload.rewind();
+        try {
+            return decode(payload, timestamps);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return position of the next valid record from a position, -1 if there is none
+     */
+    private static int resync(ByteBuffer buffer, int from, CRC32 crc, boolean timestamps) {
+        for (int position = from; position <= buffer.limit() - HEADER; position++) {
+            buffer.position(position);
+            if (record(buffer, crc, timestamps) != null) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private static Put decode(ByteBuffer payload, boolean timestamps) {
+        Put put = new Put(bytes(payload, payload.getShort() & 0xffff));
+        int cells = payload.getShort() & 0xffff;
+        for (int i = 0; i < cells; i++) {
+            byte[] family = bytes(payload, payload.get() & 0xff);
+            byte[] qualifier = bytes(payload, payload.getShort() & 0xffff);
+            long timestamp = timestamps ? payload.getLong() : HConstants.LATEST_TIMESTAMP;
+            byte[] value = bytes(payload, payload.getInt());
+            put.addColumn(family, qualifier, timestamp, value);
+        }
+        return put;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,102 @@
+package com.manganit.half.logging;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Unit test for the overflow policies of HBaseAppender.
+ */
+public class HBaseAppenderTest
+        extends TestCase {
+
+    private static final Logger LOGGER = Logger.getLogger(HBaseAppenderTest.class);
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public HBaseAppenderTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(HBaseAppenderTest.class);
+    }
+
+    private static LoggingEvent event(Level level, String message) {
+        return new LoggingEvent(HBaseAppenderTest.class.getName(), LOGGER, level, message, null);
+    }
+
+    /**
+     * Appender with a full buffer of two events, without HBase
+     */
+    private static HBaseAppender fullAppender(String policy) {
+        HBaseAppender appender = new HBaseAppender();
+        appender.setBufferSize(2);
+        appender.setOverflowPolicy(policy);
+        appender.openBuffer();
+        appender.enqueue(event(Level.INFO, "1"));
+        appender.enqueue(event(Level.INFO, "2"));
+        return appender;
+    }
+
+    private static String poll(HBaseAppender appender) {
+        LoggingEvent event = appender.getBuffer().poll();
+        return event == null ? null : event.getRenderedMessage();
+    }
+
+    public void testDropNewest() {
+        HBaseAppender appender = fullAppender("DROP_NEWEST");
+        appender.enqueue(event(Level.ERROR, "3"));
+        assertEquals(1, appender.getDroppedNewestCount());
+        assertEquals(0, appender.getDroppedOldestCount());
+        assertEquals("1", poll(appender));
+        assertEquals("2", poll(appender));
+        assertNull(poll(appender));
+    }
+
+    public void testDropOldest() {
+        HBaseAppender appender = fullAppender("DROP_OLDEST");
+        appender.enqueue(event(Level.INFO, "3"));
+        assertEquals(0, appender.getDroppedNewestCount());
+        assertEquals(1, appender.getDroppedOldestCount());
+        assertEquals("2", poll(appender));
+        assertEquals("3", poll(appender));
+        assertNull(poll(appender));
+    }
+
+    public void testDropBelowLevel() {
+        HBaseAppender appender = fullAppender("DROP_BELOW_LEVEL");
+        appender.setDropThreshold("WARN");
+        appender.enqueue(event(Level.INFO, "3"));
+        assertEquals(1, appender.getDroppedNewestCount());
+        appender.enqueue(event(Level.WARN, "4"));
+        assertEquals(1, appender.getDroppedOldestCount());
+        assertEquals("2", poll(appender));
+        assertEquals("4", poll(appender));
+        assertNull(poll(appender));
+    }
+
+    public void testBlockWaitsForAFreeSlot() throws InterruptedException {
+        final HBaseAppender appender = fullAppender("BLOCK");
+        Thread producer = new Thread(() -> appender.enqueue(event(Level.INFO, "3")));
+        producer.start();
+        producer.join(200);
+        assertTrue("producer should wait for a free slot", producer.isAlive());
+        assertEquals("1", poll(appender));
+        producer.join(10000);
+        assertFalse(producer.isAlive());
+        assertEquals(0, appender.getDroppedCount());
+        assertEquals("2", poll(appender));
+        assertEquals("3", poll(appender));
+        assertNull(poll(appender));
+    }
+}
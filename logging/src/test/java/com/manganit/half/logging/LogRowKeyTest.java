@@ -0,0 +1,123 @@
+package com.manganit.half.logging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Unit test for LogRowKey.
+ */
+public class LogRowKeyTest
+        extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public LogRowKeyTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(LogRowKeyTest.class);
+    }
+
+    /**
+     * @return true if the scan of the bucket of the row over [from, to) returns it
+     */
+    private static boolean inRange(LogRowKey keys, byte[] row, long from, long to) {
+        int bucket = keys.getBuckets() > 1 ? row[0] & 0xff : 0;
+        return Bytes.compareTo(keys.startRow(bucket, from, to), row) <= 0
+                && Bytes.compareTo(row, keys.stopRow(bucket, from, to)) < 0;
+    }
+
+    private static void checkBounds(LogRowKey keys) {
+        assertTrue(inRange(keys, keys.next(1000L), 1000L, 2000L));
+        assertTrue(inRange(keys, keys.next(1999L), 1000L, 2000L));
+        assertFalse(inRange(keys, keys.next(999L), 1000L, 2000L));
+        assertFalse(inRange(keys, keys.next(2000L), 1000L, 2000L));
+        // the epoch is the first time of the range
+        assertTrue(inRange(keys, keys.next(0L), 0L, 10L));
+        assertTrue(inRange(keys, keys.next(9L), 0L, 10L));
+        assertFalse(inRange(keys, keys.next(10L), 0L, 10L));
+    }
+
+    public void testBounds() {
+        checkBounds(new LogRowKey(0, "app", false));
+        checkBounds(new LogRowKey(4, "app", false));
+    }
+
+    public void testReversedBounds() {
+        checkBounds(new LogRowKey(0, "app", true));
+        checkBounds(new LogRowKey(4, "app", true));
+    }
+
+    public void testReversedKeysAreNewestFirst() {
+        LogRowKey keys = new LogRowKey(0, "app", true);
+        assertTrue(Bytes.compareTo(keys.next(2000L), keys.next(1000L)) < 0);
+        assertTrue(Bytes.compareTo(keys.startRow(0, 1000L, 2000L), keys.stopRow(0, 1000L, 2000L)) < 0);
+        assertTrue(Bytes.compareTo(keys.startRow(0, 0L, 10L), keys.stopRow(0, 0L, 10L)) < 0);
+    }
+
+    public void testTimestampRoundTrip() {
+        for (boolean reversed : new boolean[]{false, true}) {
+            LogRowKey keys = new LogRowKey(8, "app", reversed);
+            for (long time : new long[]{0L, 1L, 1500000000000L, Long.MAX_VALUE}) {
+                assertEquals(time, keys.getTimestamp(keys.next(time)));
+            }
+        }
+    }
+
+    public void testBucketDistribution() {
+        LogRowKey keys = new LogRowKey(4, "app", false);
+        assertEquals(4, keys.getBuckets());
+        int[] counts = new int[4];
+        for (int i = 0; i < 400; i++) {
+            byte[] row = keys.next(1000L);
+            counts[row[0] & 0xff]++;
+        }
+        for (int count : counts) {
+            assertEquals(100, count);
+        }
+    }
+
+    public void testNoSalt() {
+        LogRowKey keys = new LogRowKey(1, "app", false);
+        assertEquals(1, keys.getBuckets());
+        assertEquals("app", Bytes.toString(keys.next(1000L), 0, 3));
+    }
+
+    public void testTooManyBuckets() {
+        try {
+            new LogRowKey(257, "app", false);
+            fail("more than 256 buckets");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testCompareOrdersTheBucketsByTime() {
+        for (boolean reversed : new boolean[]{false, true}) {
+            final LogRowKey keys = new LogRowKey(4, "app", reversed);
+            List<byte[]> rows = new ArrayList<>();
+            for (long time = 10L; time > 0; time--) {
+                rows.add(keys.next(time * 1000L));
+            }
+            Collections.sort(rows, keys::compare);
+            for (int i = 1; i < rows.size(); i++) {
+                long previous = keys.getTimestamp(rows.get(i - 1));
+                long time = keys.getTimestamp(rows.get(i));
+                assertTrue(reversed ? previous > time : previous < time);
+            }
+        }
+    }
+}
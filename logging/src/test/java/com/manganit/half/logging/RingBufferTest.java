@@ -0,0 +1,148 @@
+package com.manganit.half.logging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for RingBuffer.
+ */
+public class RingBufferTest
+        extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public RingBufferTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(RingBufferTest.class);
+    }
+
+    public void testCapacityIsAPowerOfTwo() {
+        assertEquals(2, new RingBuffer<Integer>(0).capacity());
+        assertEquals(2, new RingBuffer<Integer>(2).capacity());
+        assertEquals(8, new RingBuffer<Integer>(5).capacity());
+        assertEquals(8, new RingBuffer<Integer>(8).capacity());
+    }
+
+    public void testFullAndEmpty() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(4);
+        assertNull(buffer.poll());
+        assertEquals(0, buffer.size());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(4));
+        assertEquals(4, buffer.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Integer.valueOf(i), buffer.poll());
+        }
+        assertNull(buffer.poll());
+        assertEquals(0, buffer.size());
+    }
+
+    public void testWrapAround() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(4);
+        int next = 0;
+        int expected = 0;
+        // several laps with the head and tail in every slot
+        for (int lap = 0; lap < 50; lap++) {
+            while (buffer.offer(next)) {
+                next++;
+            }
+            for (int i = 0; i < 3; i++) {
+                assertEquals(Integer.valueOf(expected++), buffer.poll());
+            }
+        }
+        while (expected < next) {
+            assertEquals(Integer.valueOf(expected++), buffer.poll());
+        }
+        assertNull(buffer.poll());
+    }
+
+    public void testDrainTo() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(8);
+        for (int i = 0; i < 6; i++) {
+            buffer.offer(i);
+        }
+        List<Integer> to = new ArrayList<>();
+        assertEquals(4, buffer.drainTo(to, 4));
+        assertEquals(2, buffer.drainTo(to, 4));
+        assertEquals(0, buffer.drainTo(to, 4));
+        for (int i = 0; i < 6; i++) {
+            assertEquals(Integer.valueOf(i), to.get(i));
+        }
+    }
+
+    public void testMultipleProducersAndConsumers() throws InterruptedException {
+        final int producers = 4;
+        final int consumers = 4;
+        final int perProducer = 100000;
+        final int total = producers * perProducer;
+        final RingBuffer<Integer> buffer = new RingBuffer<>(64);
+        final AtomicIntegerArray seen = new AtomicIntegerArray(total);
+        final AtomicLong consumed = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int first = p * perProducer;
+            threads.add(new Thread(() -> {
+                awaitQuietly(start);
+                for (int i = first; i < first + perProducer; i++) {
+                    while (!buffer.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+        for (int c = 0; c < consumers; c++) {
+            threads.add(new Thread(() -> {
+                awaitQuietly(start);
+                while (consumed.get() < total) {
+                    Integer e = buffer.poll();
+                    if (e == null) {
+                        Thread.yield();
+                    } else {
+                        seen.incrementAndGet(e);
+                        consumed.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join(60000);
+            assertFalse("stuck thread", t.isAlive());
+        }
+        assertEquals(total, consumed.get());
+        for (int i = 0; i < total; i++) {
+            assertEquals("element " + i, 1, seen.get(i));
+        }
+        assertNull(buffer.poll());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
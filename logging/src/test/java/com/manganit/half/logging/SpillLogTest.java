@@ -0,0 +1,165 @@
+package com.manganit.half.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Unit test for SpillLog.
+ */
+public class SpillLogTest
+        extends TestCase {
+
+    private static final byte[] FAMILY = Bytes.toBytes("bg");
+    private static final byte[] QUALIFIER = Bytes.toBytes("log");
+
+    private File dir;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public SpillLogTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(SpillLogTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = Files.createTempDirectory("spill").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static Put put(int i) {
+        return new Put(Bytes.toBytes("row" + i)).addColumn(FAMILY, QUALIFIER, 1000L + i, Bytes.toBytes("event" + i));
+    }
+
+    /**
+     * Spill puts, one record each, and return the sealed segment
+     */
+    private File spill(int count) throws IOException {
+        SpillLog spill = new SpillLog(dir, Long.MAX_VALUE, Long.MAX_VALUE);
+        for (int i = 0; i < count; i++) {
+            assertTrue(spill.append(Arrays.asList(put(i))));
+        }
+        File segment = spill.oldest();
+        spill.close();
+        return segment;
+    }
+
+    private static List<Put> readAll(File segment, SpillLog.ReadResult[] result) throws IOException {
+        final List<Put> puts = new ArrayList<>();
+        result[0] = SpillLog.read(segment, 2, puts::addAll);
+        return puts;
+    }
+
+    public void testRoundTripKeepsTimestamps() throws IOException {
+        File segment = spill(5);
+        SpillLog.ReadResult[] result = new SpillLog.ReadResult[1];
+        List<Put> puts = readAll(segment, result);
+        assertEquals(5, result[0].puts);
+        assertFalse(result[0].isCorrupt());
+        for (int i = 0; i < 5; i++) {
+            Cell cell = puts.get(i).get(FAMILY, QUALIFIER).get(0);
+            assertEquals("row" + i, Bytes.toString(puts.get(i).getRow()));
+            assertEquals(1000L + i, cell.getTimestamp());
+            assertEquals("event" + i, Bytes.toString(CellUtil.cloneValue(cell)));
+        }
+    }
+
+    public void testTornTailIsTolerated() throws IOException {
+        File segment = spill(3);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 5);
+        }
+        SpillLog.ReadResult[] result = new SpillLog.ReadResult[1];
+        readAll(segment, result);
+        assertEquals(2, result[0].puts);
+        assertFalse(result[0].isCorrupt());
+    }
+
+    public void testCorruptRecordIsSkippedAndReported() throws IOException {
+        File segment = spill(3);
+        long length = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // flip a byte in the payload of the second record
+            long position = 4 + (length - 4) / 3 + 12;
+            file.seek(position);
+            int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0xff);
+        }
+        SpillLog.ReadResult[] result = new SpillLog.ReadResult[1];
+        List<Put> puts = readAll(segment, result);
+        assertEquals(2, result[0].puts);
+        assertTrue(result[0].isCorrupt());
+        assertEquals("row0", Bytes.toString(puts.get(0).getRow()));
+        assertEquals("row2", Bytes.toString(puts.get(1).getRow()));
+
+        SpillLog spill = new SpillLog(dir, Long.MAX_VALUE, Long.MAX_VALUE);
+        spill.quarantine(segment);
+        assertFalse(segment.exists());
+        assertTrue(new File(dir, segment.getName().replace(".seg", ".corrupt")).exists());
+        assertNull(spill.oldest());
+        assertEquals(0, spill.size());
+        spill.close();
+    }
+
+    public void testCorruptLengthIsSkipped() throws IOException {
+        File segment = spill(3);
+        long length = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // a length above the largest record in the header of the second record
+            file.seek(4 + (length - 4) / 3);
+            file.writeInt(SpillLog.MAX_RECORD + 1);
+        }
+        SpillLog.ReadResult[] result = new SpillLog.ReadResult[1];
+        List<Put> puts = readAll(segment, result);
+        assertEquals(2, result[0].puts);
+        assertTrue(result[0].isCorrupt());
+        assertEquals("row0", Bytes.toString(puts.get(0).getRow()));
+        assertEquals("row2", Bytes.toString(puts.get(1).getRow()));
+    }
+
+    public void testCorruptLengthAtTheEndIsNotATornTail() throws IOException {
+        File segment = spill(3);
+        long length = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(4 + 2 * (length - 4) / 3);
+            file.writeInt(SpillLog.MAX_RECORD + 1);
+        }
+        SpillLog.ReadResult[] result = new SpillLog.ReadResult[1];
+        readAll(segment, result);
+        assertEquals(2, result[0].puts);
+        assertTrue(result[0].isCorrupt());
+    }
+}